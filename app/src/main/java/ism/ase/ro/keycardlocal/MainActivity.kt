@@ -4,8 +4,10 @@ import android.nfc.NfcAdapter
 import android.os.Bundle
 import android.util.Log
 import androidx.appcompat.app.AppCompatActivity
+import ism.ase.ro.keycardlocal.util.android.KeystorePairingStore
 import ism.ase.ro.keycardlocal.util.android.NFCCardManager
 import org.bouncycastle.util.encoders.Hex
+import java.io.IOException
 import ism.ase.ro.keycardlocal.util.io.CardChannel
 import ism.ase.ro.keycardlocal.util.io.CardListener
 import ism.ase.ro.keycardlocal.util.applet.*
@@ -18,6 +20,8 @@ class MainActivity : AppCompatActivity() {
 
     private var nfcAdapter: NfcAdapter? = null
     private var cardManager: NFCCardManager? = null
+    private var pairingStore: PairingStore? = null
+    private var pairingStoreOpened = false
     //private LedgerBLEManager cardManager;
     //private boolean connected;
 
@@ -34,6 +38,7 @@ class MainActivity : AppCompatActivity() {
                 try {
                     // Applet-specific code
                     val cmdSet = KeycardCommandSet(cardChannel)
+                    cmdSet.setPairingStore(openPairingStore())
                     Log.i(TAG, "Applet selection successful")
 
                     // First thing to do is selecting the applet on the card.
@@ -67,7 +72,7 @@ class MainActivity : AppCompatActivity() {
                     )
                     Log.i(TAG, "Has NDEF capability: " + info.hasNDEFCapability())
                     if (info.hasSecureChannelCapability()) {
-                        // In real projects, the pairing key should be saved and used for all new sessions.
+                        // The pairing is saved in the pairing store, so only the first session with a card actually pairs.
                         cmdSet.autoPair("KeycardTest")
                         val pairing: Pairing = cmdSet.getPairing()
 
@@ -149,14 +154,6 @@ class MainActivity : AppCompatActivity() {
                     Log.i(TAG, "Recovery ID: " + signature.getRecId())
                     Log.i(TAG, "R: " + Hex.toHexString(signature.getR()))
                     Log.i(TAG, "S: " + Hex.toHexString(signature.getS()))
-                    if (info.hasSecureChannelCapability()) {
-                        // Cleanup, in a real application you would not unpair and instead keep the pairing key for successive interactions.
-                        // We also remove all other pairings so that we do not fill all slots with failing runs. Again in real application
-                        // this would be a very bad idea to do.
-                        cmdSet.unpairOthers()
-                        cmdSet.autoUnpair()
-                        Log.i(TAG, "Unpaired.")
-                    }
                 } catch (e: Exception) {
                     Log.e(TAG, e.message!!)
                 }
@@ -182,6 +179,21 @@ class MainActivity : AppCompatActivity() {
     });*/
     }
 
+    // The store reads a file and the Android Keystore, so it is opened on first use from the card thread rather than in
+    // onCreate. If it cannot be opened the example still works, pairing again on every session.
+    @Synchronized
+    private fun openPairingStore(): PairingStore? {
+        if (!pairingStoreOpened) {
+            pairingStoreOpened = true
+            try {
+                pairingStore = KeystorePairingStore(this)
+            } catch (e: IOException) {
+                Log.e(TAG, "Pairing store unavailable: " + e.message)
+            }
+        }
+        return pairingStore
+    }
+
     override fun onResume() {
         super.onResume()
         if (nfcAdapter != null) {
@@ -200,4 +212,9 @@ class MainActivity : AppCompatActivity() {
             nfcAdapter!!.disableReaderMode(this)
         }
     }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        cardManager?.stop()
+    }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package ism.ase.ro.keycardlocal.util.android;
+
+import android.content.Context;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import ism.ase.ro.keycardlocal.util.applet.FilePairingStore;
+
+/**
+ * A PairingStore kept in the no-backup directory of the application, encrypted with an AES key of the Android Keystore.
+ * The key never leaves the keystore, so the file is useless once copied to another device, and is created on first use.
+ */
+public class KeystorePairingStore extends FilePairingStore {
+  private static final String KEYSTORE = "AndroidKeyStore";
+  private static final String DEFAULT_FILE_NAME = "keycard_pairings";
+  private static final String DEFAULT_KEY_ALIAS = "keycard_pairing_store";
+
+  /**
+   * Opens the default store of the application.
+   *
+   * @param context the context
+   * @throws IOException the store could not be read or the key could not be created
+   */
+  public KeystorePairingStore(Context context) throws IOException {
+    this(new File(context.getNoBackupFilesDir(), DEFAULT_FILE_NAME), DEFAULT_KEY_ALIAS);
+  }
+
+  /**
+   * Opens the store kept in the given file, encrypted with the keystore key with the given alias.
+   *
+   * @param file the file
+   * @param keyAlias the alias of the key
+   * @throws IOException the store could not be read or the key could not be created
+   */
+  public KeystorePairingStore(File file, String keyAlias) throws IOException {
+    super(file, keystoreKey(keyAlias));
+  }
+
+  private static SecretKey keystoreKey(String alias) throws IOException {
+    try {
+      KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+      keyStore.load(null);
+      KeyStore.Entry entry = keyStore.getEntry(alias, null);
+
+      if (entry instanceof KeyStore.SecretKeyEntry) {
+        return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+      }
+
+      KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+      generator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+          .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+          .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+          .setKeySize(256)
+          .build());
+
+      return generator.generateKey();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not get the pairing store key", e);
+    }
+  }
+}
@@ -8,43 +8,71 @@ import android.content.pm.PackageManager;
 import androidx.core.app.ActivityCompat;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import ism.ase.ro.keycardlocal.util.io.APDUCommand;
 import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.AdaptiveTimeoutPolicy;
+import ism.ase.ro.keycardlocal.util.io.BufferPool;
 import ism.ase.ro.keycardlocal.util.io.CardChannel;
 import ism.ase.ro.keycardlocal.util.io.CardListener;
+import ism.ase.ro.keycardlocal.util.io.LatencyHistogram;
 import ism.ase.ro.keycardlocal.util.io.LedgerUtil;
+import ism.ase.ro.keycardlocal.util.io.ResponseChainingCardChannel;
 
 public class LedgerBLEChannel implements CardChannel {
   final public static UUID LEDGER_UUID = UUID.fromString("13D63400-2C97-0004-0000-4C6564676572");
   final public static UUID LEDGER_REQ_UUID = UUID.fromString("13D63400-2C97-0004-0002-4C6564676572");
   final public static UUID LEDGER_RSP_UUID = UUID.fromString("13D63400-2C97-0004-0001-4C6564676572");
 
-  final private static int BLE_WRITE_FAILED = -1;
-  final private static int BLE_WRITE_STARTED = 0;
-  final private static int BLE_WRITE_FINISHED = 1;
-
-  final private static int BLE_TIMEOUT = 2000;
+  final private static int BLE_TIMEOUT = 2000; // minimum wait for each segment, extended up to the deadline of the timeout policy
+  final private static int DEFAULT_ATT_MTU = 23;
+  final private static int MAX_ATT_MTU = 517;
+  final private static int ATT_HEADER_SIZE = 3;
 
 
   private BluetoothGatt bluetoothGatt;
   private final Context context;
   private BluetoothGattCharacteristic reqChar;
   private boolean connected;
+  private boolean notificationsEnabled;
   private int mtuSize;
-  private int writeStatus;
+  private int attMtu;
+  private volatile boolean writeWithoutResponse;
+  private volatile CompletableFuture<Integer> pendingWrite;
   private LinkedBlockingQueue<byte[]> readQueue;
+  private final BufferPool transmitBuffers;
+  private final LatencyHistogram writeLatency;
+  private final AdaptiveTimeoutPolicy timeoutPolicy;
 
   public LedgerBLEChannel(Context context, BluetoothDevice device, CardListener listener) {
+    this(context, device, listener, new AdaptiveTimeoutPolicy());
+  }
+
+  /**
+   * Connects to the device, using the given policy to compute the deadline of each APDU exchange.
+   *
+   * @param context the context
+   * @param device the device to connect to
+   * @param listener the listener notified when the channel is ready and when the device disconnects
+   * @param timeoutPolicy the timeout policy, possibly shared with other channels
+   */
+  public LedgerBLEChannel(Context context, BluetoothDevice device, CardListener listener, AdaptiveTimeoutPolicy timeoutPolicy) {
     this.context = context;
     this.connected = false;
-    this.mtuSize = 20;
+    this.mtuSize = DEFAULT_ATT_MTU - ATT_HEADER_SIZE;
+    this.attMtu = DEFAULT_ATT_MTU;
     this.readQueue = new LinkedBlockingQueue<>();
-    this.writeStatus = BLE_WRITE_FINISHED;
-    final CardChannel channel = this;
+    this.transmitBuffers = new BufferPool();
+    this.writeLatency = new LatencyHistogram();
+    this.timeoutPolicy = timeoutPolicy;
+    final CardChannel channel = new ResponseChainingCardChannel(this);
 
     if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
       // TODO: Consider calling
@@ -78,6 +106,13 @@ public class LedgerBLEChannel implements CardChannel {
           }
           bluetoothGatt.discoverServices();
         } else {
+          notificationsEnabled = false;
+          CompletableFuture<Integer> write = pendingWrite;
+
+          if (write != null) {
+            write.completeExceptionally(new IOException("device disconnected"));
+          }
+
           (new Thread() {
             @Override
             public void run() {
@@ -108,6 +143,32 @@ public class LedgerBLEChannel implements CardChannel {
         }
 
         reqChar = service.getCharacteristic(LEDGER_REQ_UUID);
+
+        // the notifications are enabled once the MTU exchange is over, since the stack runs one GATT operation at a time
+        if (!bluetoothGatt.requestMtu(MAX_ATT_MTU)) {
+          enableNotifications(gatt, service);
+        }
+      }
+
+      @Override
+      public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          attMtu = mtu;
+        }
+
+        enableNotifications(gatt, gatt.getService(LEDGER_UUID));
+      }
+
+      /**
+       * The device can start another MTU exchange at any time, so this is called at most once per connection: writing
+       * the descriptor again would restart the handshake of the Ledger protocol and report the channel twice.
+       */
+      private void enableNotifications(BluetoothGatt gatt, BluetoothGattService service) {
+        if (notificationsEnabled) {
+          return;
+        }
+
+        notificationsEnabled = true;
         BluetoothGattCharacteristic rsp = service.getCharacteristic(LEDGER_RSP_UUID);
         bluetoothGatt.setCharacteristicNotification(rsp, true);
 
@@ -118,11 +179,16 @@ public class LedgerBLEChannel implements CardChannel {
 
       @Override
       public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        writeStatus = status == BluetoothGatt.GATT_SUCCESS ? BLE_WRITE_FINISHED : BLE_WRITE_FAILED;
+        CompletableFuture<Integer> write = pendingWrite;
+
+        if (write != null) {
+          write.complete(status);
+        }
       }
 
       @Override
       public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        reqChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         reqChar.setValue(new byte[]{0x08, 0x00, 0x00, 0x00, 0x00});
         if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
           // TODO: Consider calling
@@ -142,7 +208,8 @@ public class LedgerBLEChannel implements CardChannel {
         byte[] rsp = characteristic.getValue();
 
         if (rsp[0] == 0x08) {
-          mtuSize = rsp[5];
+          // the device reports the largest segment it accepts, which cannot exceed what the negotiated MTU carries
+          mtuSize = Math.min(rsp[5] & 0xff, attMtu - ATT_HEADER_SIZE);
           (new Thread() {
             @Override
             public void run() {
@@ -159,10 +226,18 @@ public class LedgerBLEChannel implements CardChannel {
 
   @Override
   public APDUResponse send(APDUCommand cmd) throws IOException {
-    return LedgerUtil.send(cmd, mtuSize, false, new LedgerUtil.Callback() {
+    long exchangeStart = System.nanoTime();
+    long deadline = exchangeStart + TimeUnit.MILLISECONDS.toNanos(timeoutPolicy.getTimeoutMillis(cmd));
+
+    // notifications left over from an exchange which timed out would otherwise be taken as the response to this one
+    readQueue.clear();
+
+    APDUResponse response = LedgerUtil.send(cmd, mtuSize, false, new LedgerUtil.Callback() {
       @Override
       public void write(byte[] chunk) throws IOException {
-        writeStatus = BLE_WRITE_STARTED;
+        CompletableFuture<Integer> write = new CompletableFuture<>();
+        pendingWrite = write;
+        reqChar.setWriteType(useWriteWithoutResponse() ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         reqChar.setValue(chunk);
         if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
           // TODO: Consider calling
@@ -174,19 +249,32 @@ public class LedgerBLEChannel implements CardChannel {
           // for ActivityCompat#requestPermissions for more details.
           return;
         }
-        bluetoothGatt.writeCharacteristic(reqChar);
+        long start = System.nanoTime();
 
-        long timeout = 0;
-        while (writeStatus == BLE_WRITE_STARTED || timeout >= BLE_TIMEOUT) {
-          try {
-            Thread.sleep(10);
-            timeout += 10;
-          } catch (InterruptedException e) {
-            throw new IOException("write interrupted");
-          }
+        if (!bluetoothGatt.writeCharacteristic(reqChar)) {
+          throw new IOException("write operation failed");
         }
 
-        if (writeStatus != BLE_WRITE_FINISHED) {
+        int status;
+
+        try {
+          status = write.get(segmentTimeout(deadline), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          timeoutPolicy.recordTimeout(cmd);
+          readQueue.clear();
+          throw new IOException("write timeout");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("write interrupted");
+        } catch (ExecutionException e) {
+          throw new IOException("write operation failed", e.getCause());
+        } finally {
+          pendingWrite = null;
+        }
+
+        writeLatency.record(System.nanoTime() - start);
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
           throw new IOException("write operation failed");
         }
       }
@@ -194,18 +282,80 @@ public class LedgerBLEChannel implements CardChannel {
       @Override
       public void read(byte[] chunk) throws IOException {
         try {
-          byte[] data = readQueue.poll(BLE_TIMEOUT, TimeUnit.MILLISECONDS);
+          byte[] data = readQueue.poll(segmentTimeout(deadline), TimeUnit.NANOSECONDS);
 
           if (data == null) {
+            timeoutPolicy.recordTimeout(cmd);
+            readQueue.clear();
             throw new IOException("read timeout");
           }
 
           System.arraycopy(data, 0, chunk, 0, Math.min(data.length, chunk.length));
         } catch (InterruptedException e) {
-          throw new IOException("read timeout");
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("read interrupted");
         }
       }
-    });
+    }, transmitBuffers);
+
+    timeoutPolicy.recordLatency(cmd, System.nanoTime() - exchangeStart);
+    return response;
+  }
+
+  /**
+   * Returns how long to wait for the next segment: what is left of the exchange deadline, but never less than
+   * BLE_TIMEOUT, so that a short learned deadline cannot make a single slow connection event fail the exchange.
+   *
+   * @param deadline the deadline of the exchange, in System.nanoTime() terms
+   * @return the timeout in nanoseconds
+   */
+  private static long segmentTimeout(long deadline) {
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(BLE_TIMEOUT), deadline - System.nanoTime());
+  }
+
+  /**
+   * Returns the policy computing the deadline of each APDU exchange.
+   *
+   * @return the timeout policy
+   */
+  public AdaptiveTimeoutPolicy getTimeoutPolicy() {
+    return timeoutPolicy;
+  }
+
+  /**
+   * Enables or disables streaming of APDU segments with write-without-response. With acknowledged writes every segment
+   * waits for an ATT write response from the device, which costs at least one connection event. Without response, the
+   * segments of an APDU are pushed back to back: onCharacteristicWrite is then called as soon as the local stack has
+   * queued the packet, so waiting for it before the next segment is the flow control keeping the controller buffers
+   * from overflowing. Ignored if the device does not support this write type.
+   *
+   * @param enabled whether to use write-without-response
+   */
+  public void setWriteWithoutResponse(boolean enabled) {
+    this.writeWithoutResponse = enabled;
+  }
+
+  private boolean useWriteWithoutResponse() {
+    return writeWithoutResponse && (reqChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+  }
+
+  /**
+   * Returns the size of the segments APDUs are split in, as reported by the device and bound by the negotiated MTU.
+   *
+   * @return the segment size
+   */
+  public int getSegmentSize() {
+    return mtuSize;
+  }
+
+  /**
+   * Returns the distribution of the time between writing a chunk and its completion callback, which is the
+   * acknowledgement of the device unless write-without-response is enabled.
+   *
+   * @return the per-chunk write latency histogram
+   */
+  public LatencyHistogram getWriteLatency() {
+    return writeLatency;
   }
 
   @Override
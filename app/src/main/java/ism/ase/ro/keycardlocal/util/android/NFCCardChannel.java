@@ -1,43 +1,268 @@
 package ism.ase.ro.keycardlocal.util.android;
 
+import android.nfc.TagLostException;
 import android.nfc.tech.IsoDep;
-import android.util.Log;
 
 import ism.ase.ro.keycardlocal.util.io.APDUCommand;
 import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.AdaptiveTimeoutPolicy;
+import ism.ase.ro.keycardlocal.util.io.BatchPolicy;
+import ism.ase.ro.keycardlocal.util.io.BatchResult;
+import ism.ase.ro.keycardlocal.util.io.BufferPool;
 import ism.ase.ro.keycardlocal.util.io.CardChannel;
+import ism.ase.ro.keycardlocal.util.io.TraceBuffer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Implementation of the CardChannel interface using the Android NFC API.
+ * Implementation of the CardChannel interface using the Android NFC API. Every command is recorded in a TraceBuffer,
+ * which can be dumped after the fact instead of logging each APDU as it is sent.
+ *
+ * Android reports a transceive timeout the same way as a lost tag. When a timeout policy is set, the channel tries to
+ * reconnect the tag before reporting it lost: if the tag is still in the field, the command fails with an IOException
+ * but the channel stays connected, so the flow can be retried from the SELECT with the longer deadline the policy now
+ * gives the command.
  */
 public class NFCCardChannel implements CardChannel {
-  private static final String TAG = "CardChannel";
+  private static final int EXTENDED_APDU_OVERHEAD = 9; // header, 3-byte Lc and 2-byte Le
+
+  private static final int HISTORICAL_BYTES_COMPACT_TLV = 0x80;
+  private static final int TAG_CARD_CAPABILITIES = 0x7;
+  private static final int CARD_CAPABILITIES_EXTENDED_LENGTH = 0x40;
 
   private IsoDep isoDep;
+  private final Runnable tagLostListener;
+  private final TraceBuffer trace;
+  private final AdaptiveTimeoutPolicy timeoutPolicy;
+  private final ByteBuffer[] transmitBuffers;
+  private int timeout;
 
   public NFCCardChannel(IsoDep isoDep) {
+    this(isoDep, null, new TraceBuffer(), null);
+  }
+
+  /**
+   * Constructs a channel which reports tag removal as soon as a command fails because of it, which is the cheapest way
+   * to detect that the card has left the field.
+   *
+   * @param isoDep the connected tag
+   * @param tagLostListener called when a transceive fails because the tag is gone, can be null
+   * @param trace the buffer recording the commands sent, possibly shared with other channels
+   * @param timeoutPolicy the policy setting the transceive timeout of each command, can be null to keep the timeout
+   *                      set on the tag
+   */
+  public NFCCardChannel(IsoDep isoDep, Runnable tagLostListener, TraceBuffer trace, AdaptiveTimeoutPolicy timeoutPolicy) {
     this.isoDep = isoDep;
+    this.tagLostListener = tagLostListener;
+    this.trace = trace;
+    this.timeoutPolicy = timeoutPolicy;
+    this.transmitBuffers = new ByteBuffer[BufferPool.SHORT_APDU_BUFFER_SIZE + 1];
+  }
+
+  /**
+   * IsoDep.transceive only accepts an array of the exact APDU length, so one buffer per length is kept and reused. A
+   * signing session only uses a handful of distinct lengths. Extended APDUs are rare and get a fresh array.
+   *
+   * @param cmd the command to serialize
+   * @param claimed the lengths whose buffer already holds another command of the same batch, or null outside a batch
+   * @return the serialized command
+   */
+  private byte[] serialize(APDUCommand cmd, boolean[] claimed) {
+    int length = cmd.getSerializedLength();
+
+    if (length >= transmitBuffers.length || (claimed != null && claimed[length])) {
+      byte[] apdu = new byte[length];
+      cmd.serializeInto(ByteBuffer.wrap(apdu));
+      return apdu;
+    }
+
+    ByteBuffer buffer = transmitBuffers[length];
+
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(length);
+      transmitBuffers[length] = buffer;
+    }
+
+    if (claimed != null) {
+      claimed[length] = true;
+    }
+
+    buffer.clear();
+    cmd.serializeInto(buffer);
+    return buffer.array();
+  }
+
+  /**
+   * Returns the trace of the commands sent through this channel.
+   *
+   * @return the trace buffer
+   */
+  public TraceBuffer getTrace() {
+    return trace;
   }
 
   @Override
   public APDUResponse send(APDUCommand cmd) throws IOException {
-    byte[] apdu = cmd.serialize();
-    Log.d(TAG, String.format("COMMAND CLA: %02X INS: %02X P1: %02X P2: %02X LC: %02X", cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData().length));
-    
+    return transceive(cmd);
+  }
+
+  /**
+   * Sends the commands back to back. All commands are serialized before the first one is sent, so that nothing but the
+   * transceive calls runs while the card is in the field. Commands sharing a length with an earlier command of the
+   * batch get their own array.
+   *
+   * @param cmds the commands to send
+   * @param policy what to do when a command fails
+   * @return the responses and timing of the batch
+   * @throws IOException communication error
+   */
+  @Override
+  public BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    byte[][] apdus = new byte[cmds.size()][];
+    boolean[] claimed = new boolean[transmitBuffers.length];
+
+    for (int i = 0; i < apdus.length; i++) {
+      apdus[i] = serialize(cmds.get(i), claimed);
+    }
+
+    long start = System.nanoTime();
+    List<APDUResponse> responses = new ArrayList<>(cmds.size());
+
+    for (int i = 0; i < apdus.length; i++) {
+      APDUResponse response = transceive(cmds.get(i), apdus[i]);
+      responses.add(response);
+
+      if (!response.isOK() && policy == BatchPolicy.STOP_ON_ERROR) {
+        break;
+      }
+    }
+
+    return new BatchResult(responses, cmds.size(), System.nanoTime() - start);
+  }
+
+  private APDUResponse transceive(APDUCommand cmd) throws IOException {
+    return transceive(cmd, serialize(cmd, null));
+  }
+
+  private APDUResponse transceive(APDUCommand cmd, byte[] apdu) throws IOException {
+    long start = System.nanoTime();
+
     try {
-      byte[] resp = this.isoDep.transceive(apdu);
-      APDUResponse response = new APDUResponse(resp);
-      Log.d(TAG, String.format("RESPONSE LEN: %02X, SW: %04X %n-----------------------", response.getData().length, response.getSw()));
+      setTimeout(cmd);
+      APDUResponse response = new APDUResponse(this.isoDep.transceive(apdu));
+      long elapsed = System.nanoTime() - start;
+      trace.record(cmd, response, start, elapsed);
+
+      if (timeoutPolicy != null) {
+        timeoutPolicy.recordLatency(cmd, elapsed);
+      }
+
       return response;
+    } catch(TagLostException e) {
+      trace.recordFailure(cmd, start, System.nanoTime() - start);
+
+      // a transceive timeout is reported as a lost tag, the next attempt of this command gets a longer deadline
+      if (timeoutPolicy != null) {
+        timeoutPolicy.recordTimeout(cmd);
+
+        if (reconnect()) {
+          throw new IOException("Transceive timeout", e);
+        }
+      }
+
+      onTagLost();
+      throw e;
+    } catch(IOException e) {
+      trace.recordFailure(cmd, start, System.nanoTime() - start);
+      throw e;
     } catch(SecurityException e) {
+      trace.recordFailure(cmd, start, System.nanoTime() - start);
+      onTagLost();
       throw new IOException("Tag disconnected", e);
     } catch(IllegalArgumentException e) {
+      trace.recordFailure(cmd, start, System.nanoTime() - start);
       throw new IOException("Malformed card response", e);
     }
   }
 
+  private void setTimeout(APDUCommand cmd) {
+    if (timeoutPolicy == null) {
+      return;
+    }
+
+    int newTimeout = timeoutPolicy.getTimeoutMillis(cmd);
+
+    if (newTimeout != timeout) {
+      this.isoDep.setTimeout(newTimeout);
+      timeout = newTimeout;
+    }
+  }
+
+  private boolean cardSupportsExtendedLength() {
+    byte[] historicalBytes = this.isoDep.getHistoricalBytes();
+
+    if (historicalBytes == null) {
+      historicalBytes = this.isoDep.getHiLayerResponse();
+    }
+
+    return supportsExtendedLength(historicalBytes);
+  }
+
+  /**
+   * Looks for the extended Lc and Le bit in the card capabilities of the given historical bytes. Only the compact-TLV
+   * format, introduced by the 0x80 category indicator, is understood.
+   *
+   * @param historicalBytes the historical bytes of the card, can be null
+   * @return true if the card announces support for extended length APDUs
+   */
+  static boolean supportsExtendedLength(byte[] historicalBytes) {
+    if (historicalBytes == null || historicalBytes.length == 0 || (historicalBytes[0] & 0xff) != HISTORICAL_BYTES_COMPACT_TLV) {
+      return false;
+    }
+
+    int off = 1;
+
+    while (off < historicalBytes.length) {
+      int tag = (historicalBytes[off] >> 4) & 0x0f;
+      int len = historicalBytes[off] & 0x0f;
+
+      if (tag == TAG_CARD_CAPABILITIES && len >= 3 && (off + 3) < historicalBytes.length) {
+        return (historicalBytes[off + 3] & CARD_CAPABILITIES_EXTENDED_LENGTH) != 0;
+      }
+
+      off += 1 + len;
+    }
+
+    return false;
+  }
+
+  /**
+   * Reconnects the tag after a transceive failure. Succeeds only if the tag is still in the field, in which case the
+   * failure was a timeout rather than the tag leaving. The reconnection resets the ISO-DEP session, so the applet is no
+   * longer selected and any secure channel is gone.
+   *
+   * @return true if the tag is connected again
+   */
+  private boolean reconnect() {
+    try {
+      this.isoDep.close();
+      this.isoDep.connect();
+      timeout = 0;
+      return this.isoDep.isConnected();
+    } catch(IOException | SecurityException e) {
+      return false;
+    }
+  }
+
+  private void onTagLost() {
+    if (tagLostListener != null) {
+      tagLostListener.run();
+    }
+  }
+
   @Override
   public boolean isConnected() {
     try {
@@ -46,4 +271,25 @@ public class NFCCardChannel implements CardChannel {
       return false;
     }
   }
+
+  /**
+   * Extended length APDUs are used only if both the reader and the card support them. The reader reports its own
+   * support, the card announces it in the card capabilities of its historical bytes (ISO 7816-4, 8.1.1.2.7). Cards
+   * which do not announce it are assumed not to support it.
+   *
+   * @return the maximum command data length
+   */
+  @Override
+  public int getMaxCommandDataLength() {
+    try {
+      if (!this.isoDep.isExtendedLengthApduSupported() || !cardSupportsExtendedLength()) {
+        return APDUCommand.MAX_SHORT_DATA_LENGTH;
+      }
+
+      int maxLength = this.isoDep.getMaxTransceiveLength() - EXTENDED_APDU_OVERHEAD;
+      return Math.max(APDUCommand.MAX_SHORT_DATA_LENGTH, Math.min(maxLength, APDUCommand.MAX_EXTENDED_DATA_LENGTH));
+    } catch(SecurityException e) {
+      return APDUCommand.MAX_SHORT_DATA_LENGTH;
+    }
+  }
 }
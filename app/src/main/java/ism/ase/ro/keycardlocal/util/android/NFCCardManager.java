@@ -3,46 +3,133 @@ package ism.ase.ro.keycardlocal.util.android;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
-import android.os.SystemClock;
 import android.util.Log;
 
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ism.ase.ro.keycardlocal.util.globalplatform.Crypto;
+import ism.ase.ro.keycardlocal.util.io.AdaptiveTimeoutPolicy;
+import ism.ase.ro.keycardlocal.util.io.AsyncCardChannel;
 import ism.ase.ro.keycardlocal.util.io.CardListener;
+import ism.ase.ro.keycardlocal.util.io.ChannelMetrics;
+import ism.ase.ro.keycardlocal.util.io.MetricsCardChannel;
+import ism.ase.ro.keycardlocal.util.io.ResponseChainingCardChannel;
+import ism.ase.ro.keycardlocal.util.io.TraceBuffer;
 
 /**
- * Manages connection of NFC-based cards. Extends Thread and must be started using the start() method. The thread has
- * a runloop which monitors the connection and from which CardListener callbacks are called.
+ * Manages connection of NFC-based cards. Must be started using the start() method and registered as reader callback
+ * with NfcAdapter.enableReaderMode(). Discovered tags are connected immediately and the onConnected callback is
+ * dispatched right away on the callback executor. Removal is detected either by a failing transceive or, once the
+ * listener has returned while the tag is still in the field, by a cheap periodic liveness probe.
+ *
+ * CardListener callbacks for a given tag are never run concurrently: onDisconnected is only called after onConnected
+ * has returned.
  */
-public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback {
+public class NFCCardManager implements NfcAdapter.ReaderCallback {
   private static final String TAG = "NFCCardManager";
-  private static final int DEFAULT_LOOP_SLEEP_MS = 50;
+  private static final int DEFAULT_PROBE_INTERVAL_MS = 50;
 
-  private IsoDep isoDep;
-  private boolean isRunning;
-  private CardListener cardListener;
-  private int loopSleepMS;
+  private static final ScheduledExecutorService probeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "NFCCardManager-probe");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private enum State {
+    STOPPED,
+    RUNNING,
+    PAUSED
+  }
+
+  private volatile State state;
+  private volatile CardListener cardListener;
+  private volatile Executor callbackExecutor;
+  private final int probeIntervalMS;
+  private final AtomicReference<Connection> current;
+  private final ChannelMetrics metrics;
+  private final TraceBuffer trace;
+  private final AdaptiveTimeoutPolicy timeoutPolicy;
 
   static {
     Crypto.addBouncyCastleProvider();
   }
 
   /**
-   * Constructs an NFC Card Manager with default delay between loop iterations.
+   * Constructs an NFC Card Manager with the default liveness probe interval.
    */
   public NFCCardManager() {
-    this(DEFAULT_LOOP_SLEEP_MS);
+    this(DEFAULT_PROBE_INTERVAL_MS);
+  }
+
+  /**
+   * Constructs an NFC Card Manager with the given liveness probe interval. The probe only runs while a tag is
+   * connected and no listener callback is running.
+   *
+   * @param probeIntervalMS time between two liveness checks of a connected tag
+   */
+  public NFCCardManager(int probeIntervalMS) {
+    this(probeIntervalMS, new AdaptiveTimeoutPolicy());
+  }
+
+  /**
+   * Constructs an NFC Card Manager with the given liveness probe interval and timeout policy. The policy sets the
+   * transceive timeout of each command and keeps learning across connections.
+   *
+   * @param probeIntervalMS time between two liveness checks of a connected tag
+   * @param timeoutPolicy the timeout policy
+   */
+  public NFCCardManager(int probeIntervalMS, AdaptiveTimeoutPolicy timeoutPolicy) {
+    this.probeIntervalMS = probeIntervalMS;
+    this.timeoutPolicy = timeoutPolicy;
+    this.state = State.STOPPED;
+    this.current = new AtomicReference<>();
+    this.metrics = new ChannelMetrics();
+    this.trace = new TraceBuffer();
+    this.callbackExecutor = defaultCallbackExecutor();
+  }
+
+  private static ExecutorService defaultCallbackExecutor() {
+    return Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "NFCCardManager-callback");
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   /**
-   * Constructs an NFC Card Manager with the given delay between loop iterations.
+   * Returns the metrics of all commands sent to the cards connected through this manager.
    *
-   * @param loopSleepMS time to sleep between loops
+   * @return the channel metrics
    */
-  public NFCCardManager(int loopSleepMS) {
-    this.loopSleepMS = loopSleepMS;
+  public ChannelMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the trace of the last commands sent to the cards connected through this manager. It is always recording
+   * and is meant to be dumped when something goes wrong.
+   *
+   * @return the trace buffer
+   */
+  public TraceBuffer getTrace() {
+    return trace;
+  }
+
+  /**
+   * Returns the policy setting the transceive timeout of each command.
+   *
+   * @return the timeout policy
+   */
+  public AdaptiveTimeoutPolicy getTimeoutPolicy() {
+    return timeoutPolicy;
   }
 
   /**
@@ -50,70 +137,76 @@ public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback
    * @return if connected, false otherwise
    */
   public boolean isConnected() {
-    try {
-      return isoDep != null && isoDep.isConnected();
-    } catch (SecurityException e) {
-      return false;
-    }
+    Connection connection = current.get();
+    return connection != null && connection.isAlive();
   }
 
-  @Override
-  public void onTagDiscovered(Tag tag) {
-    isoDep = IsoDep.get(tag);
-    try {
-      isoDep = IsoDep.get(tag);
-      isoDep.connect();
-      isoDep.setTimeout(120000);
-    } catch (IOException | SecurityException e) {
-      Log.e(TAG, "error connecting to tag");
-    }
+  /**
+   * Starts accepting tags. Tags discovered before this call are ignored.
+   */
+  public void start() {
+    state = State.RUNNING;
   }
 
   /**
-   * Runloop. Do NOT invoke directly. Use start() instead.
+   * Stops accepting new tags until resume() is called. A card already connected is not affected.
    */
-  public void run() {
-    boolean connected = isConnected();
-
-    while (true) {
-      boolean newConnected = isConnected();
-      if (newConnected != connected) {
-        connected = newConnected;
-        Log.i(TAG, "tag " + (connected ? "connected" : "disconnected"));
-
-        if (connected && !isRunning) {
-          onCardConnected();
-        } else {
-          onCardDisconnected();
-        }
-      }
-
-      SystemClock.sleep(loopSleepMS);
+  public void pause() {
+    if (state == State.RUNNING) {
+      state = State.PAUSED;
     }
   }
 
   /**
-   * Reacts on card connected by calling the callback of the registered listener.
+   * Accepts tags again after a call to pause().
    */
-  private void onCardConnected() {
-    isRunning = true;
-
-    if (cardListener != null) {
-      cardListener.onConnected(new NFCCardChannel(isoDep));
+  public void resume() {
+    if (state == State.PAUSED) {
+      state = State.RUNNING;
     }
-
-    isRunning = false;
   }
 
   /**
-   * Reacts on card disconnected by calling the callback of the registered listener.
+   * Stops accepting tags and closes the connected tag, if any. The listener receives onDisconnected once it has
+   * returned from onConnected. The manager can be started again.
    */
-  private void onCardDisconnected() {
-    isRunning = false;
-    isoDep = null;
-    if (cardListener != null) {
-      cardListener.onDisconnected();
+  public void stop() {
+    state = State.STOPPED;
+
+    Connection connection = current.get();
+
+    if (connection != null) {
+      connection.lost();
+    }
+  }
+
+  @Override
+  public void onTagDiscovered(Tag tag) {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    IsoDep isoDep = IsoDep.get(tag);
+
+    if (isoDep == null) {
+      return;
+    }
+
+    try {
+      isoDep.connect();
+    } catch (IOException | SecurityException e) {
+      Log.e(TAG, "error connecting to tag");
+      return;
     }
+
+    Connection connection = new Connection(isoDep);
+    Connection previous = current.getAndSet(connection);
+
+    if (previous != null) {
+      previous.lost();
+    }
+
+    callbackExecutor.execute(connection::open);
   }
 
   /**
@@ -124,4 +217,131 @@ public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback
   public void setCardListener(CardListener listener) {
     cardListener = listener;
   }
+
+  /**
+   * Sets the executor on which the CardListener callbacks are run. The default is a cached thread pool, so that a tap
+   * never waits for a thread to be created after the first one. An executor running tasks in order, for example a
+   * single thread, also keeps the callbacks of consecutive tags from overlapping.
+   *
+   * @param executor the executor for listener callbacks
+   */
+  public void setCallbackExecutor(Executor executor) {
+    callbackExecutor = executor;
+  }
+
+  /**
+   * A connected tag. Tracks whether the listener is running, so that a removal detected meanwhile is only reported
+   * after onConnected has returned.
+   */
+  private final class Connection {
+    private final IsoDep isoDep;
+    private boolean opened;
+    private boolean listening;
+    private boolean lost;
+    private ScheduledFuture<?> probe;
+
+    Connection(IsoDep isoDep) {
+      this.isoDep = isoDep;
+    }
+
+    void open() {
+      synchronized (this) {
+        if (lost) {
+          return;
+        }
+
+        opened = true;
+        listening = true;
+      }
+
+      Log.i(TAG, "tag connected");
+
+      try {
+        CardListener listener = cardListener;
+
+        if (listener != null) {
+          AsyncCardChannel channel = new AsyncCardChannel(new MetricsCardChannel(new ResponseChainingCardChannel(new NFCCardChannel(isoDep, this::lost, trace, timeoutPolicy)), metrics));
+
+          try {
+            listener.onConnected(channel);
+          } finally {
+            channel.close();
+          }
+        }
+      } finally {
+        boolean disconnected;
+
+        synchronized (this) {
+          listening = false;
+          disconnected = lost;
+
+          if (!lost) {
+            probe = probeScheduler.scheduleWithFixedDelay(this::probe, probeIntervalMS, probeIntervalMS, TimeUnit.MILLISECONDS);
+          }
+        }
+
+        if (disconnected) {
+          notifyDisconnected();
+        }
+      }
+    }
+
+    boolean isAlive() {
+      synchronized (this) {
+        if (lost) {
+          return false;
+        }
+      }
+
+      try {
+        return isoDep.isConnected();
+      } catch (SecurityException e) {
+        return false;
+      }
+    }
+
+    private void probe() {
+      if (!isAlive()) {
+        lost();
+      }
+    }
+
+    void lost() {
+      boolean disconnected;
+
+      synchronized (this) {
+        if (lost) {
+          return;
+        }
+
+        lost = true;
+        disconnected = opened && !listening;
+
+        if (probe != null) {
+          probe.cancel(false);
+        }
+      }
+
+      current.compareAndSet(this, null);
+
+      try {
+        isoDep.close();
+      } catch (IOException | SecurityException e) {
+        // the tag is gone anyway
+      }
+
+      if (disconnected) {
+        notifyDisconnected();
+      }
+    }
+
+    private void notifyDisconnected() {
+      Log.i(TAG, "tag disconnected");
+      CardListener listener = cardListener;
+
+      if (listener != null) {
+        callbackExecutor.execute(listener::onDisconnected);
+      }
+    }
+  }
 }
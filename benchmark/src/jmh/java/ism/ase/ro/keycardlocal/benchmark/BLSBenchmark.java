@@ -0,0 +1,34 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.applet.BLS;
+
+/**
+ * Hashing a message to G2 and compressing the resulting point, the client side work of a BLS signature.
+ */
+@State(Scope.Thread)
+public class BLSBenchmark {
+  private byte[] message;
+  private byte[] point;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    message = "keycard benchmark message".getBytes();
+    point = BLS.hash(message);
+  }
+
+  @Benchmark
+  public byte[] hash() {
+    return BLS.hash(message);
+  }
+
+  @Benchmark
+  public byte[] compress() {
+    return BLS.compress(point);
+  }
+}
@@ -0,0 +1,90 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.crypto.JCACryptoBackend;
+import ism.ase.ro.keycardlocal.util.crypto.LightweightCryptoBackend;
+
+/**
+ * The lightweight backend against the JCA one, on the primitives used per command (SCP02 MACs, pairing hashes, the
+ * INIT encryption) and on the PBKDF2 derivations, where the lookup cost is negligible next to the iterations.
+ */
+@State(Scope.Thread)
+public class CryptoBackendBenchmark {
+  @Param({"lightweight", "jca"})
+  public String backendName;
+
+  private CryptoBackend backend;
+  private byte[] key8;
+  private byte[] key24;
+  private byte[] key32;
+  private byte[] iv8;
+  private byte[] iv16;
+  private byte[] data;
+  private char[] password;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SimulatedCard.installProvider();
+    backend = backendName.equals("jca") ? new JCACryptoBackend() : new LightweightCryptoBackend();
+
+    key8 = new byte[8];
+    key24 = new byte[24];
+    key32 = new byte[32];
+    iv8 = new byte[8];
+    iv16 = new byte[16];
+    data = new byte[64];
+
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+
+    password = "KeycardDefaultPairing".toCharArray();
+  }
+
+  @Benchmark
+  public byte[] sha256() {
+    return backend.sha256(key32, data);
+  }
+
+  @Benchmark
+  public byte[] sha512() {
+    return backend.sha512(key32, key32, data);
+  }
+
+  @Benchmark
+  public byte[] des3CBC() {
+    return backend.des3CBCEncrypt(key24, iv8, data, 0, data.length);
+  }
+
+  @Benchmark
+  public byte[] desCBC() {
+    return backend.desCBCEncrypt(key8, iv8, data, 0, data.length);
+  }
+
+  @Benchmark
+  public byte[] desECB() {
+    return backend.desECBEncrypt(key8, iv8);
+  }
+
+  @Benchmark
+  public byte[] aesCBC() {
+    return backend.aesCBCEncrypt(key32, iv16, data);
+  }
+
+  @Benchmark
+  public byte[] hmacSHA512() {
+    return backend.hmacSHA512(key32, data);
+  }
+
+  @Benchmark
+  public byte[] pbkdf2SHA256() {
+    return backend.pbkdf2SHA256(password, data, 1000, 32);
+  }
+}
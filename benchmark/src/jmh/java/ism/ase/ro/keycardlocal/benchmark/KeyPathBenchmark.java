@@ -0,0 +1,36 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.applet.KeyPath;
+
+/**
+ * Key path parsing and formatting.
+ */
+@State(Scope.Thread)
+public class KeyPathBenchmark {
+  @Param({"m/44'/60'/0'/0/0", "../0", "m/43'/60'/1581'/1'/0/1/2/3/4/5"})
+  public String path;
+
+  private KeyPath parsed;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    parsed = new KeyPath(path);
+  }
+
+  @Benchmark
+  public KeyPath parse() {
+    return new KeyPath(path);
+  }
+
+  @Benchmark
+  public String format() {
+    return parsed.toString();
+  }
+}
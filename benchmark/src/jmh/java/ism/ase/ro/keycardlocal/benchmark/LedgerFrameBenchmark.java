@@ -0,0 +1,71 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ism.ase.ro.keycardlocal.util.io.LedgerUtil;
+
+/**
+ * Ledger transport framing: splitting an APDU in segments and reassembling a response from them.
+ */
+@State(Scope.Thread)
+public class LedgerFrameBenchmark {
+  @Param({"20", "153"})
+  public int segmentSize;
+
+  @Param({"64", "1024"})
+  public int length;
+
+  private byte[] apdu;
+  private byte[] chunk;
+  private List<byte[]> frames;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    apdu = new byte[length];
+    for (int i = 0; i < apdu.length; i++) {
+      apdu[i] = (byte) i;
+    }
+
+    chunk = new byte[segmentSize];
+    frames = new ArrayList<>();
+
+    // command and response frames share the same layout, so encoded frames can be fed to the decoder
+    LedgerUtil.FrameEncoder encoder = new LedgerUtil.FrameEncoder(apdu, apdu.length, segmentSize, false);
+    while (encoder.hasNext()) {
+      byte[] frame = new byte[segmentSize];
+      encoder.next(frame);
+      frames.add(frame);
+    }
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    LedgerUtil.FrameEncoder encoder = new LedgerUtil.FrameEncoder(apdu, apdu.length, segmentSize, false);
+
+    while (encoder.hasNext()) {
+      encoder.next(chunk);
+    }
+
+    return chunk;
+  }
+
+  @Benchmark
+  public byte[] decode() throws IOException {
+    LedgerUtil.FrameDecoder decoder = new LedgerUtil.FrameDecoder(segmentSize, false);
+
+    for (byte[] frame : frames) {
+      decoder.update(frame);
+    }
+
+    return decoder.getResponse();
+  }
+}
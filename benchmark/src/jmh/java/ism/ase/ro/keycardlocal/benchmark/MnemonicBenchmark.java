@@ -0,0 +1,27 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.applet.Mnemonic;
+
+/**
+ * BIP39 seed derivation, dominated by the 2048 PBKDF2-HMAC-SHA512 iterations.
+ */
+@State(Scope.Thread)
+public class MnemonicBenchmark {
+  private static final String PHRASE = "abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon about";
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SimulatedCard.installProvider();
+  }
+
+  @Benchmark
+  public byte[] toBinarySeed() {
+    return Mnemonic.toBinarySeed(PHRASE, "");
+  }
+}
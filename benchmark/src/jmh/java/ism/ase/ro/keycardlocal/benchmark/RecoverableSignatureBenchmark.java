@@ -0,0 +1,50 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+import ism.ase.ro.keycardlocal.util.applet.CashCommandSet;
+import ism.ase.ro.keycardlocal.util.applet.RecoverableSignature;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+
+/**
+ * Parsing of SIGN responses. The legacy template carries the public key, so the recovery id must be found by trying
+ * every candidate. The raw format carries the recovery id, so the public key is recovered once.
+ */
+@State(Scope.Thread)
+public class RecoverableSignatureBenchmark {
+  private byte[] hash;
+  private byte[] legacySignature;
+  private byte[] rawSignature;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, APDUException {
+    SimulatedCard card = SimulatedCard.open();
+
+    hash = new byte[32];
+    for (int i = 0; i < hash.length; i++) {
+      hash[i] = (byte) i;
+    }
+
+    rawSignature = card.cmdSet.sign(hash).checkOK().getData();
+
+    CashCommandSet cash = new CashCommandSet(card.simulator);
+    cash.select().checkOK();
+    legacySignature = cash.sign(hash).checkOK().getData();
+  }
+
+  @Benchmark
+  public RecoverableSignature legacy() {
+    return new RecoverableSignature(hash, legacySignature);
+  }
+
+  @Benchmark
+  public RecoverableSignature raw() {
+    return new RecoverableSignature(hash, rawSignature);
+  }
+}
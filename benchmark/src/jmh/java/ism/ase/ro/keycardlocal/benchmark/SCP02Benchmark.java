@@ -0,0 +1,39 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.globalplatform.SCP02Wrapper;
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+
+/**
+ * SCP02 C-MAC wrapping, as done for every LOAD and INSTALL command during applet installation.
+ */
+@State(Scope.Thread)
+public class SCP02Benchmark {
+  @Param({"0", "32", "239"})
+  public int payloadLength;
+
+  private SCP02Wrapper wrapper;
+  private APDUCommand cmd;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    byte[] macKey = new byte[16];
+    for (int i = 0; i < macKey.length; i++) {
+      macKey[i] = (byte) (0x40 + i);
+    }
+
+    wrapper = new SCP02Wrapper(macKey);
+    cmd = new APDUCommand(0x80, 0xE8, 0x00, 0x00, new byte[payloadLength]);
+  }
+
+  @Benchmark
+  public APDUCommand wrap() {
+    return wrapper.wrap(cmd);
+  }
+}
@@ -0,0 +1,47 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ism.ase.ro.keycardlocal.util.crypto.Secp256k1;
+
+/**
+ * The host side secp256k1 operations: public key computation with the precomputed G tables, ECDH with an arbitrary
+ * point, and point decompression through the cache.
+ */
+@State(Scope.Thread)
+public class Secp256k1Benchmark {
+  private byte[] privateKey;
+  private byte[] peerPublicKey;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    privateKey = new byte[32];
+    byte[] peerPrivateKey = new byte[32];
+
+    for (int i = 0; i < privateKey.length; i++) {
+      privateKey[i] = (byte) (i + 1);
+      peerPrivateKey[i] = (byte) (0x80 - i);
+    }
+
+    peerPublicKey = Secp256k1.publicKey(peerPrivateKey, true);
+  }
+
+  @Benchmark
+  public byte[] publicKey() {
+    return Secp256k1.publicKey(privateKey, false);
+  }
+
+  @Benchmark
+  public byte[] ecdh() {
+    return Secp256k1.ecdh(privateKey, peerPublicKey);
+  }
+
+  @Benchmark
+  public Object decodePoint() {
+    return Secp256k1.decodePoint(peerPublicKey);
+  }
+}
@@ -0,0 +1,65 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+import ism.ase.ro.keycardlocal.util.applet.KeycardCommandSet;
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+
+/**
+ * Keycard secure channel wrapping and unwrapping. The wrap benchmark only encrypts and MACs the command. The round trip
+ * also sends it to the simulator and verifies and decrypts the response, so it includes the work done by the simulated
+ * card, which mirrors the client side operations.
+ */
+public class SecureChannelBenchmark {
+  private static final int INS_STORE_DATA = 0xE2;
+
+  @State(Scope.Thread)
+  public static class WrapState {
+    @Param({"0", "32", "200"})
+    public int payloadLength;
+
+    SimulatedCard card;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, APDUException {
+      card = SimulatedCard.open();
+      payload = new byte[payloadLength];
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class RoundTripState {
+    @Param({"0", "32", "200"})
+    public int payloadLength;
+
+    SimulatedCard card;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, APDUException {
+      card = SimulatedCard.open();
+      payload = new byte[payloadLength];
+    }
+  }
+
+  @Benchmark
+  public APDUCommand protectedCommand(WrapState state) {
+    return state.card.session.protectedCommand(0x80, INS_STORE_DATA, KeycardCommandSet.STORE_DATA_P1_PUBLIC, 0, state.payload);
+  }
+
+  @Benchmark
+  public APDUResponse transmit(RoundTripState state) throws IOException {
+    APDUCommand cmd = state.card.session.protectedCommand(0x80, INS_STORE_DATA, KeycardCommandSet.STORE_DATA_P1_PUBLIC, 0, state.payload);
+    return state.card.session.transmit(state.card.simulator, cmd);
+  }
+}
@@ -0,0 +1,62 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.IOException;
+import java.security.Security;
+
+import ism.ase.ro.keycardlocal.util.applet.KeycardCommandSet;
+import ism.ase.ro.keycardlocal.util.applet.SecureChannelSession;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+import ism.ase.ro.keycardlocal.util.simulator.KeycardSimulator;
+
+/**
+ * Prepares an initialized KeycardSimulator with an open and authenticated secure channel, as a fixture for the
+ * benchmarks needing real card responses.
+ */
+final class SimulatedCard {
+  static final String PIN = "123456";
+  static final String PUK = "123456789012";
+  static final byte[] PAIRING_SECRET = new byte[32];
+  static final byte[] SEED = new byte[64];
+
+  final KeycardSimulator simulator;
+  final SecureChannelSession session;
+  final KeycardCommandSet cmdSet;
+
+  private SimulatedCard() throws IOException, APDUException {
+    installProvider();
+
+    simulator = new KeycardSimulator();
+    simulator.initialize(PIN, PUK, PAIRING_SECRET);
+
+    session = new SecureChannelSession();
+    cmdSet = new KeycardCommandSet(simulator, session);
+    cmdSet.select().checkOK();
+    cmdSet.autoPair(PAIRING_SECRET);
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN(PIN).checkAuthOK();
+    cmdSet.loadKey(SEED).checkOK();
+  }
+
+  /**
+   * Creates a card with the master key derived from an all-zero seed loaded, the PIN verified and a secure channel
+   * open.
+   *
+   * @return the card
+   * @throws IOException communication error
+   * @throws APDUException unexpected response from the simulator
+   */
+  static SimulatedCard open() throws IOException, APDUException {
+    return new SimulatedCard();
+  }
+
+  /**
+   * The command sets look up the BouncyCastle provider by name, which is not registered by default outside Android.
+   */
+  static void installProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package ism.ase.ro.keycardlocal.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+import ism.ase.ro.keycardlocal.util.applet.ApplicationInfo;
+import ism.ase.ro.keycardlocal.util.applet.BIP32KeyPair;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+
+/**
+ * TinyBERTLV parsing of the two most common templates: the application info returned by SELECT and the key template
+ * returned by EXPORT KEY.
+ */
+@State(Scope.Thread)
+public class TLVBenchmark {
+  private byte[] applicationInfo;
+  private byte[] keyTemplate;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, APDUException {
+    SimulatedCard card = SimulatedCard.open();
+    applicationInfo = card.cmdSet.select().checkOK().getData();
+    keyTemplate = BIP32KeyPair.fromBinarySeed(SimulatedCard.SEED).toTLV();
+  }
+
+  @Benchmark
+  public ApplicationInfo applicationInfo() {
+    return new ApplicationInfo(applicationInfo);
+  }
+
+  @Benchmark
+  public BIP32KeyPair keyPair() {
+    return BIP32KeyPair.fromTLV(keyTemplate);
+  }
+}
@@ -1,12 +1,10 @@
 package ism.ase.ro.keycardlocal.util.applet;
 
-import org.bouncycastle.math.ec.ECPoint;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.math.BigInteger;
 import java.util.Arrays;
 
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.crypto.Secp256k1;
+
 /**
  * Represents a BIP32 keypair. This can be a master key or any other key in the path. Contains convenience method to
  * read and write formats the the card understands.
@@ -28,15 +26,8 @@ public class BIP32KeyPair {
    * @return the BIP32 keypair
    */
   public static BIP32KeyPair fromBinarySeed(byte[] binarySeed) {
-    try {
-      Mac hmacSHA512 = Mac.getInstance("HmacSHA512");
-      SecretKeySpec keySpec = new SecretKeySpec("Bitcoin seed".getBytes(), "HmacSHA512");
-      hmacSHA512.init(keySpec);
-      byte[] mac = hmacSHA512.doFinal(binarySeed);
-      return new BIP32KeyPair(Arrays.copyOf(mac, 32), Arrays.copyOfRange(mac, 32, 64), null);
-    } catch (Exception e) {
-      throw new RuntimeException("Is BouncyCastle correctly installed? ", e);
-    }
+    byte[] mac = CryptoBackend.get().hmacSHA512("Bitcoin seed".getBytes(), binarySeed);
+    return new BIP32KeyPair(Arrays.copyOf(mac, 32), Arrays.copyOfRange(mac, 32, 64), null);
   }
 
   /**
@@ -100,9 +91,7 @@ public class BIP32KeyPair {
   }
 
   private void calculatePublicKey() {
-    BigInteger k = new BigInteger(1, this.privateKey);
-    ECPoint pubKey = RecoverableSignature.CURVE.getG().multiply(k);
-    this.publicKey = pubKey.getEncoded(false);
+    this.publicKey = Secp256k1.publicKey(this.privateKey, false);
   }
 
   /**
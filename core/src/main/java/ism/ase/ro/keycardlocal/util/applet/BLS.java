@@ -18,6 +18,19 @@ public class BLS {
     return new PointG2(g2).toByteArray(true);
   }
 
+  /**
+   * Signs a message already hashed to G2 with the hash method, by multiplying the point with the secret key. This is
+   * the operation performed by the card and is only meant for tests and simulation: it is neither constant time nor
+   * optimized.
+   *
+   * @param secretKey the secret key, as an unsigned big-endian integer
+   * @param g2 the uncompressed hashed message
+   * @return the compressed signature
+   */
+  public static byte[] sign(byte[] secretKey, byte[] g2) {
+    return new PointG2(g2).mulUnsafe(new BigInteger(1, secretKey)).toByteArray(true);
+  }
+
   private BLS() {}
 
   final static byte DST[] = {
@@ -2,21 +2,20 @@ package ism.ase.ro.keycardlocal.util.applet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.KeyFactory;
+import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
-import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.spec.ECGenParameterSpec;
 
-import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
-import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.jce.interfaces.ECPrivateKey;
-import org.bouncycastle.jce.spec.ECPublicKeySpec;
 import org.bouncycastle.util.Arrays;
 
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.crypto.Secp256k1;
+
 public class Certificate extends RecoverableSignature {
   public static final byte TLV_CERT = (byte) 0x8A;
 
@@ -42,8 +41,7 @@ public class Certificate extends RecoverableSignature {
     try {
       byte[] pub = ((ECPublicKey) identKeys.getPublic()).getQ().getEncoded(true);
 
-      MessageDigest md = MessageDigest.getInstance("SHA256", "BC");
-      byte[] hash = md.digest(pub);
+      byte[] hash = CryptoBackend.get().sha256(pub);
 
       Signature signer = Signature.getInstance("NONEwithECDSA", "BC");
       signer.initSign(caPair.getPrivate());
@@ -78,8 +76,7 @@ public class Certificate extends RecoverableSignature {
       byte[] s = Arrays.copyOfRange(certData, 65, 97);
       int recId = certData[97];
 
-      MessageDigest md = MessageDigest.getInstance("SHA256", "BC");
-      byte[] hash = md.digest(pub);
+      byte[] hash = CryptoBackend.get().sha256(pub);
       byte[] caPub = recoverFromSignature(recId, hash, r, s, true);
 
       Certificate cert = new Certificate(caPub, true, r, s, recId);
@@ -99,17 +96,11 @@ public class Certificate extends RecoverableSignature {
       tlv.enterConstructed(TLV_SIGNATURE_TEMPLATE);
       byte[] certData = tlv.readPrimitive(TLV_CERT);
       Certificate cert = fromTLV(certData);
-      byte[] signature = tlv.peekUnread();
-      Signature verifier = Signature.getInstance("NONEWithECDSA", "BC");
-
-      ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256k1");
-      ECPublicKeySpec cardKeySpec = new ECPublicKeySpec(ecSpec.getCurve().decodePoint(cert.identPub), ecSpec);
-      ECPublicKey cardKey = (ECPublicKey) KeyFactory.getInstance("ECDSA", "BC").generatePublic(cardKeySpec);
+      tlv.enterConstructed(TLV_ECDSA_TEMPLATE);
+      BigInteger r = new BigInteger(1, tlv.readPrimitive(TinyBERTLV.TLV_INT));
+      BigInteger s = new BigInteger(1, tlv.readPrimitive(TinyBERTLV.TLV_INT));
 
-      verifier.initVerify(cardKey);
-      verifier.update(hash);
-      
-      if (!verifier.verify(signature)) {
+      if (!Secp256k1.verify(hash, r, s, cert.identPub)) {
         return null;
       }
 
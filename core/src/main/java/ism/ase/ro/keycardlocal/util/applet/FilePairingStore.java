@@ -0,0 +1,100 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A PairingStore kept in a file. The file is replaced by writing the new store next to it and renaming it, so it is
+ * never left half written.
+ */
+public class FilePairingStore extends PairingStore {
+  private final File file;
+  private final SecretKey key;
+
+  /**
+   * Opens the store kept in the given file, creating it on the first write.
+   *
+   * @param file the file
+   * @param key the AES key encrypting the file
+   * @throws IOException the file could not be read or decrypted
+   */
+  public FilePairingStore(File file, SecretKey key) throws IOException {
+    this.file = file;
+    this.key = key;
+    load();
+  }
+
+  /**
+   * Opens the store kept in the given file, creating it on the first write.
+   *
+   * @param file the file
+   * @param key the 16, 24 or 32 bytes AES key encrypting the file
+   * @throws IOException the file could not be read or decrypted
+   */
+  public FilePairingStore(File file, byte[] key) throws IOException {
+    this(file, new SecretKeySpec(key, "AES"));
+  }
+
+  /**
+   * Returns the file holding the store.
+   *
+   * @return the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  protected SecretKey getKey() throws IOException {
+    return key;
+  }
+
+  @Override
+  protected byte[] read() throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+
+    byte[] data = new byte[(int) file.length()];
+
+    try (InputStream in = new FileInputStream(file)) {
+      int off = 0;
+
+      while (off < data.length) {
+        int n = in.read(data, off, data.length - off);
+
+        if (n < 0) {
+          throw new IOException("Truncated pairing store");
+        }
+
+        off += n;
+      }
+    }
+
+    return data;
+  }
+
+  @Override
+  protected void write(byte[] data) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(data);
+      out.getFD().sync();
+    }
+
+    if (!tmp.renameTo(file)) {
+      // renaming over an existing file fails on some platforms
+      if (!file.delete() || !tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Could not replace " + file);
+      }
+    }
+  }
+}
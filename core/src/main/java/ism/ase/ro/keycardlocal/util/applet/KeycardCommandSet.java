@@ -5,9 +5,6 @@ import static ism.ase.ro.keycardlocal.util.applet.Identifiers.KEYCARD_DEFAULT_IN
 import org.bouncycastle.jce.interfaces.ECPrivateKey;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.util.Arrays;
@@ -96,14 +93,26 @@ public class KeycardCommandSet {
   private final CardChannel apduChannel;
   private SecureChannelSession secureChannel;
   private ApplicationInfo info;
+  private PairingStore pairingStore;
+  private boolean restoredPairing;
+  private PairingSecretCache secretCache;
 
   /**
    * Creates a KeycardCommandSet using the given APDU Channel
    * @param apduChannel APDU channel
    */
   public KeycardCommandSet(CardChannel apduChannel) {
+    this(apduChannel, new SecureChannelSession());
+  }
+
+  /**
+   * Creates a KeycardCommandSet using the given APDU Channel and SecureChannel session
+   * @param apduChannel APDU channel
+   * @param secureChannel secure channel session
+   */
+  public KeycardCommandSet(CardChannel apduChannel, SecureChannelSession secureChannel) {
     this.apduChannel = apduChannel;
-    this.secureChannel = new SecureChannelSession();
+    this.secureChannel = secureChannel;
   }
 
   /**
@@ -137,6 +146,39 @@ public class KeycardCommandSet {
    */
   public void setPairing(Pairing pairing) {
     secureChannel.setPairing(pairing);
+    restoredPairing = false;
+  }
+
+  /**
+   * Returns the pairing store consulted before pairing.
+   *
+   * @return the pairing store, or null if none is set
+   */
+  public PairingStore getPairingStore() {
+    return pairingStore;
+  }
+
+  /**
+   * Sets the pairing store. When set, autoPair first looks up the instance UID of the selected card and, if it is
+   * known, reuses its pairing without sending any APDU. New pairings are added to the store and autoUnpair removes
+   * them. A stored pairing which the card rejects when opening the secure channel is removed as well, so that the next
+   * autoPair pairs again.
+   *
+   * @param pairingStore the pairing store, or null to disable it
+   */
+  public void setPairingStore(PairingStore pairingStore) {
+    this.pairingStore = pairingStore;
+  }
+
+  /**
+   * Sets the cache of the secrets derived from pairing passwords. No cache is used by default, since a cached secret
+   * outlives the call that derived it. Flows deriving the same secret repeatedly, such as INIT followed by PAIR or the
+   * provisioning of a batch of cards, can opt in with PairingSecretCache.getShared() or a cache of their own.
+   *
+   * @param secretCache the cache, or null to derive the secret on each call
+   */
+  public void setPairingSecretCache(PairingSecretCache secretCache) {
+    this.secretCache = secretCache;
   }
 
   /**
@@ -183,48 +225,79 @@ public class KeycardCommandSet {
    * @throws APDUException secure channel error
    */
   public void autoOpenSecureChannel() throws IOException, APDUException {
-    secureChannel.autoOpenSecureChannel(apduChannel);
+    try {
+      secureChannel.autoOpenSecureChannel(apduChannel);
+    } catch (APDUException e) {
+      if (restoredPairing) {
+        // the pairing slot has been freed or the card reinitialized since the pairing was stored
+        restoredPairing = false;
+        pairingStore.remove(info.getInstanceUID());
+      }
+
+      throw e;
+    }
   }
 
   /**
-   * Automatically pairs. Derives the secret from the given password.
+   * Automatically pairs. Derives the secret from the given password. If a pairing store is set and already holds a
+   * pairing for the selected card, that pairing is used instead and nothing is derived or sent.
    *
    * @throws IOException communication error
    * @throws APDUException pairing error
    */
   public void autoPair(String pairingPassword) throws IOException, APDUException {
+    if (restorePairing()) {
+      return;
+    }
+
     byte[] secret = pairingPasswordToSecret(pairingPassword);
 
     secureChannel.autoPair(apduChannel, secret);
+    storePairing();
   }
 
   /**
-   * Converts a pairing password to a binary pairing secret.
+   * Converts a pairing password to a binary pairing secret. If a pairing secret cache is set, the secret is taken from it
+   * when it has already been derived.
    *
    * @param pairingPassword the pairing password
    * @return the pairing secret
    */
   public byte[] pairingPasswordToSecret(String pairingPassword) {
-    SecretKey key;
+    int iterations = apduChannel.pairingPasswordPBKDF2IterationCount();
+    PairingSecretCache cache = secretCache;
 
-    try {
-      SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256", "BC");
-      PBEKeySpec spec = new PBEKeySpec(pairingPassword.toCharArray(), "Keycard Pairing Password Salt".getBytes(), apduChannel.pairingPasswordPBKDF2IterationCount(), 32 * 8);
-      key = skf.generateSecret(spec);
-    } catch (Exception e) {
-      throw new RuntimeException("Is Bouncycastle correctly initialized?");
+    return cache != null ? cache.derive(pairingPassword, iterations) : PairingSecretCache.computeSecret(pairingPassword, iterations);
+  }
+
+  /**
+   * Starts deriving the secret of the given pairing password on a background thread, so that a later pairingPasswordToSecret
+   * call, for example by autoPair or init, does not have to wait for it. Does nothing if no pairing secret cache is set.
+   *
+   * @param pairingPassword the pairing password
+   */
+  public void precomputePairingSecret(String pairingPassword) {
+    PairingSecretCache cache = secretCache;
+
+    if (cache != null) {
+      cache.precompute(pairingPassword, apduChannel.pairingPasswordPBKDF2IterationCount());
     }
-    return key.getEncoded();
   }
 
   /**
-   * Automatically pairs. Calls the corresponding method of the SecureChannel class.
+   * Automatically pairs. Calls the corresponding method of the SecureChannel class. If a pairing store is set and
+   * already holds a pairing for the selected card, that pairing is used instead and nothing is sent.
    *
    * @throws IOException communication error
    * @throws APDUException pairing error
    */
   public void autoPair(byte[] sharedSecret) throws IOException, APDUException {
+    if (restorePairing()) {
+      return;
+    }
+
     secureChannel.autoPair(apduChannel, sharedSecret);
+    storePairing();
   }
 
   /**
@@ -235,6 +308,34 @@ public class KeycardCommandSet {
    */
   public void autoUnpair() throws IOException, APDUException {
     secureChannel.autoUnpair(apduChannel);
+
+    if (pairingStore != null && info != null) {
+      pairingStore.remove(info.getInstanceUID());
+    }
+  }
+
+  private boolean restorePairing() {
+    restoredPairing = false;
+
+    if (pairingStore == null || info == null) {
+      return false;
+    }
+
+    Pairing pairing = pairingStore.get(info.getInstanceUID());
+
+    if (pairing == null) {
+      return false;
+    }
+
+    secureChannel.setPairing(pairing);
+    restoredPairing = true;
+    return true;
+  }
+
+  private void storePairing() throws IOException {
+    if (pairingStore != null && info != null) {
+      pairingStore.put(info.getInstanceUID(), getPairing());
+    }
   }
 
   /**
@@ -316,7 +417,19 @@ public class KeycardCommandSet {
    * @throws IOException communication error
    */
   public APDUResponse verifyPIN(String pin) throws IOException {
-    APDUCommand verifyPIN = secureChannel.protectedCommand(0x80, INS_VERIFY_PIN, 0, 0, pin.getBytes());
+    return verifyPIN(pin.getBytes());
+  }
+
+  /**
+   * Sends a VERIFY PIN APDU. The given bytes are encrypted using the secure channel and used as APDU data. Unlike a
+   * String, the array can be wiped by the caller once the command has been sent.
+   *
+   * @param pin the PIN
+   * @return the raw card response
+   * @throws IOException communication error
+   */
+  public APDUResponse verifyPIN(byte[] pin) throws IOException {
+    APDUCommand verifyPIN = secureChannel.protectedCommand(0x80, INS_VERIFY_PIN, 0, 0, pin);
     return secureChannel.transmit(apduChannel, verifyPIN);
   }
 
@@ -788,15 +901,21 @@ public class KeycardCommandSet {
     }
   }
 
-   /**
-   * Sends a STORE DATA APDU.
+  /**
+   * Sends a STORE DATA APDU. The applet takes the whole data in a single command, so it cannot be longer than
+   * SecureChannelSession.PAYLOAD_MAX_SIZE.
    *
    * @param data the data field of the APDU
    * @param dataType the type of data to be stored
    * @return the raw card response
    * @throws IOException communication error
+   * @throws IllegalArgumentException if the data is longer than SecureChannelSession.PAYLOAD_MAX_SIZE
    */
   public APDUResponse storeData(byte[] data, byte dataType) throws IOException {
+    if (data.length > SecureChannelSession.PAYLOAD_MAX_SIZE) {
+      throw new IllegalArgumentException("STORE DATA cannot carry more than " + SecureChannelSession.PAYLOAD_MAX_SIZE + " bytes, got " + data.length);
+    }
+
     APDUCommand storeData = secureChannel.protectedCommand(0x80, INS_STORE_DATA, dataType, 0, data);
     return secureChannel.transmit(apduChannel, storeData);
   }
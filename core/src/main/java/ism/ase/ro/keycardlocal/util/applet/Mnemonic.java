@@ -1,8 +1,6 @@
 package ism.ase.ro.keycardlocal.util.applet;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
 
 
 public class Mnemonic {
@@ -118,17 +116,7 @@ public class Mnemonic {
   }
 
   public static byte[] toBinarySeed(String mnemonicPhrase, String password) {
-    SecretKey key;
-
-    try {
-      SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512", "BC");
-      PBEKeySpec spec = new PBEKeySpec(mnemonicPhrase.toCharArray(), ("mnemonic" + password).getBytes(), 2048, 512);
-      key = skf.generateSecret(spec);
-    } catch (Exception e) {
-      throw new RuntimeException("Is Bouncycastle correctly initialized?", e);
-    }
-
-    return key.getEncoded();
+    return CryptoBackend.get().pbkdf2SHA512(mnemonicPhrase.toCharArray(), ("mnemonic" + password).getBytes(), 2048, 64);
   }
 
   /**
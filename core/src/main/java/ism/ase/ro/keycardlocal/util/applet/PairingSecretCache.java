@@ -0,0 +1,284 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+
+/**
+ * A bounded cache of the pairing secrets derived from pairing passwords. Deriving a secret runs PBKDF2 with tens of
+ * thousands of iterations, which is noticeable when the same password is used for INIT and PAIR, or for a batch of
+ * cards. A secret can also be precomputed on a background thread as soon as the password is known, so that the
+ * derivation is done before the card is in the field.
+ *
+ * Passwords are not kept: entries are indexed by a hash of the password and iteration count, salted with a random
+ * value chosen when the cache is created. Each entry expires after a fixed time from its derivation, and the least
+ * recently used entry is evicted when the cache is full. The secret of an entry is zeroed when it is evicted, expires
+ * or the cache is cleared; callers always receive a copy, which they are responsible for.
+ */
+public class PairingSecretCache implements AutoCloseable {
+  public static final int DEFAULT_CAPACITY = 8;
+  public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+  public static final int SECRET_LENGTH = 32;
+  private static final byte[] SALT = "Keycard Pairing Password Salt".getBytes(StandardCharsets.US_ASCII);
+  private static final long PRECOMPUTE_THREAD_KEEP_ALIVE_MS = 30000;
+
+  private static final class SharedHolder {
+    static final PairingSecretCache SHARED = new PairingSecretCache();
+  }
+
+  private final int capacity;
+  private final long ttlNanos;
+  private final byte[] keySalt;
+  private final Map<ByteBuffer, Slot> slots;
+  private final ThreadPoolExecutor precomputer;
+  private volatile boolean closed;
+
+  /**
+   * Creates a cache holding DEFAULT_CAPACITY secrets for DEFAULT_TTL_MS.
+   */
+  public PairingSecretCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_TTL_MS);
+  }
+
+  /**
+   * Creates a cache holding the given number of secrets for the given time.
+   *
+   * @param capacity the maximum number of secrets kept
+   * @param ttlMS how long a secret is kept after its derivation
+   */
+  public PairingSecretCache(int capacity, long ttlMS) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive");
+    }
+
+    this.capacity = capacity;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMS);
+    this.keySalt = new byte[32];
+    new SecureRandom().nextBytes(keySalt);
+
+    this.slots = new LinkedHashMap<ByteBuffer, Slot>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Slot> eldest) {
+        if (size() > PairingSecretCache.this.capacity) {
+          eldest.getValue().destroy();
+          return true;
+        }
+
+        return false;
+      }
+    };
+
+    this.precomputer = new ThreadPoolExecutor(1, 1, PRECOMPUTE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "PairingSecretCache");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    this.precomputer.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns a process-wide cache, for KeycardCommandSet instances that opt in with setPairingSecretCache.
+   *
+   * @return the shared cache
+   */
+  public static PairingSecretCache getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  /**
+   * Derives a pairing secret without any caching.
+   *
+   * @param pairingPassword the pairing password
+   * @param iterations the PBKDF2 iteration count
+   * @return the pairing secret
+   */
+  public static byte[] computeSecret(String pairingPassword, int iterations) {
+    return CryptoBackend.get().pbkdf2SHA256(pairingPassword.toCharArray(), SALT, iterations, SECRET_LENGTH);
+  }
+
+  /**
+   * Returns the secret derived from the given password, deriving it if it is not cached. Concurrent calls for the same
+   * password wait for a single derivation.
+   *
+   * @param pairingPassword the pairing password
+   * @param iterations the PBKDF2 iteration count
+   * @return a copy of the pairing secret
+   */
+  public byte[] derive(String pairingPassword, int iterations) {
+    if (closed) {
+      return computeSecret(pairingPassword, iterations);
+    }
+
+    ByteBuffer key = cacheKey(pairingPassword, iterations);
+    Slot slot;
+
+    synchronized (slots) {
+      long now = System.nanoTime();
+      removeExpired(now);
+      slot = slots.get(key);
+
+      if (slot == null) {
+        slot = new Slot(now + ttlNanos);
+        slots.put(key, slot);
+      }
+    }
+
+    byte[] secret = slot.get(pairingPassword, iterations);
+
+    // the entry has been evicted while its secret was being derived by another thread
+    return secret != null ? secret : computeSecret(pairingPassword, iterations);
+  }
+
+  /**
+   * Derives the secret of the given password on a background thread, unless it is already cached.
+   *
+   * @param pairingPassword the pairing password
+   * @param iterations the PBKDF2 iteration count
+   */
+  public void precompute(String pairingPassword, int iterations) {
+    if (closed) {
+      return;
+    }
+
+    try {
+      precomputer.execute(() -> Arrays.fill(derive(pairingPassword, iterations), (byte) 0));
+    } catch (RejectedExecutionException e) {
+      // closed meanwhile
+    }
+  }
+
+  /**
+   * Returns the number of cached secrets, including those still being derived.
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    synchronized (slots) {
+      removeExpired(System.nanoTime());
+      return slots.size();
+    }
+  }
+
+  /**
+   * Zeroes and removes all cached secrets.
+   */
+  public void clear() {
+    synchronized (slots) {
+      for (Slot slot : slots.values()) {
+        slot.destroy();
+      }
+
+      slots.clear();
+    }
+  }
+
+  /**
+   * Stops the background thread and clears the cache. Later calls to derive() compute the secret without caching it.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    precomputer.shutdownNow();
+    clear();
+  }
+
+  private ByteBuffer cacheKey(String pairingPassword, int iterations) {
+    byte[] password = pairingPassword.getBytes(StandardCharsets.UTF_8);
+    byte[] count = ByteBuffer.allocate(4).putInt(iterations).array();
+
+    try {
+      return ByteBuffer.wrap(CryptoBackend.get().sha256(keySalt, count, password));
+    } finally {
+      Arrays.fill(password, (byte) 0);
+    }
+  }
+
+  private void removeExpired(long now) {
+    Iterator<Slot> it = slots.values().iterator();
+
+    while (it.hasNext()) {
+      Slot slot = it.next();
+
+      if (now - slot.expiresAt >= 0) {
+        slot.destroy();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * A cached secret. The first caller derives it outside of any lock, so that evicting the entry never waits for a
+   * derivation, and the other callers wait for it.
+   */
+  private static final class Slot {
+    final long expiresAt;
+    private byte[] secret;
+    private boolean deriving;
+    private boolean destroyed;
+
+    Slot(long expiresAt) {
+      this.expiresAt = expiresAt;
+    }
+
+    byte[] get(String pairingPassword, int iterations) {
+      synchronized (this) {
+        while (deriving) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+          }
+        }
+
+        if (destroyed) {
+          return null;
+        } else if (secret != null) {
+          return secret.clone();
+        }
+
+        deriving = true;
+      }
+
+      byte[] derived = null;
+
+      try {
+        derived = computeSecret(pairingPassword, iterations);
+        return derived.clone();
+      } finally {
+        synchronized (this) {
+          deriving = false;
+
+          if (derived != null && !destroyed) {
+            secret = derived;
+          } else if (derived != null) {
+            Arrays.fill(derived, (byte) 0);
+          }
+
+          notifyAll();
+        }
+      }
+    }
+
+    synchronized void destroy() {
+      destroyed = true;
+
+      if (secret != null) {
+        Arrays.fill(secret, (byte) 0);
+        secret = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Remembers the pairings established with each card, indexed by the instance UID returned by SELECT. When set on a
+ * KeycardCommandSet, the store is looked up before pairing, so that a card which has already been paired opens its
+ * secure channel without deriving the pairing secret again, sending PAIR or taking another slot.
+ *
+ * All pairings are kept in memory and lookups never block. Each change rewrites the whole store, encrypted with
+ * AES-GCM under the key returned by getKey(). The key is only used through a Cipher, so it can be a non-extractable
+ * key of a hardware keystore. Subclasses decide where the encrypted store is kept and must call load() once they are
+ * ready to read it.
+ */
+public abstract class PairingStore {
+  private static final byte FORMAT_VERSION = 1;
+  private static final int GCM_TAG_LENGTH = 128;
+  private static final String CIPHER = "AES/GCM/NoPadding";
+
+  private final Map<ByteBuffer, Pairing> pairings;
+
+  protected PairingStore() {
+    this.pairings = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the pairing stored for the given card.
+   *
+   * @param instanceUID the instance UID of the card
+   * @return the pairing, or null if the card is unknown
+   */
+  public Pairing get(byte[] instanceUID) {
+    Pairing pairing = pairings.get(ByteBuffer.wrap(instanceUID));
+    return pairing != null ? new Pairing(pairing.toByteArray()) : null;
+  }
+
+  /**
+   * Stores the pairing of the given card, replacing the previous one if any.
+   *
+   * @param instanceUID the instance UID of the card
+   * @param pairing the pairing
+   * @throws IOException the store could not be written
+   */
+  public synchronized void put(byte[] instanceUID, Pairing pairing) throws IOException {
+    pairings.put(ByteBuffer.wrap(instanceUID.clone()), new Pairing(pairing.toByteArray()));
+    save();
+  }
+
+  /**
+   * Forgets the pairing of the given card.
+   *
+   * @param instanceUID the instance UID of the card
+   * @throws IOException the store could not be written
+   */
+  public synchronized void remove(byte[] instanceUID) throws IOException {
+    if (pairings.remove(ByteBuffer.wrap(instanceUID)) != null) {
+      save();
+    }
+  }
+
+  /**
+   * Returns the number of cards in the store.
+   *
+   * @return the number of stored pairings
+   */
+  public int size() {
+    return pairings.size();
+  }
+
+  /**
+   * Returns the key encrypting the store. It must be an AES key.
+   *
+   * @return the key
+   * @throws IOException the key is not available
+   */
+  protected abstract SecretKey getKey() throws IOException;
+
+  /**
+   * Reads the encrypted store.
+   *
+   * @return the encrypted store, or null if nothing has been written yet
+   * @throws IOException the store could not be read
+   */
+  protected abstract byte[] read() throws IOException;
+
+  /**
+   * Writes the encrypted store. The previous content must be replaced atomically, so that a failure leaves either the
+   * old or the new store.
+   *
+   * @param data the encrypted store
+   * @throws IOException the store could not be written
+   */
+  protected abstract void write(byte[] data) throws IOException;
+
+  /**
+   * Loads the pairings from the encrypted store, replacing those in memory.
+   *
+   * @throws IOException the store could not be read, was modified or is encrypted with another key
+   */
+  protected synchronized void load() throws IOException {
+    byte[] data = read();
+    pairings.clear();
+
+    if (data == null) {
+      return;
+    }
+
+    if (data.length < 2 || data[0] != FORMAT_VERSION) {
+      throw new IOException("Unsupported pairing store format");
+    }
+
+    int ivLength = data[1] & 0xff;
+
+    if (data.length < 2 + ivLength) {
+      throw new IOException("Truncated pairing store");
+    }
+
+    byte[] plain;
+
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(GCM_TAG_LENGTH, data, 2, ivLength));
+      cipher.updateAAD(data, 0, 1);
+      plain = cipher.doFinal(data, 2 + ivLength, data.length - 2 - ivLength);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("The pairing store is corrupted or encrypted with another key", e);
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+    int count = in.readUnsignedShort();
+
+    for (int i = 0; i < count; i++) {
+      byte[] instanceUID = new byte[in.readUnsignedByte()];
+      in.readFully(instanceUID);
+      byte[] pairing = new byte[in.readUnsignedByte()];
+      in.readFully(pairing);
+      pairings.put(ByteBuffer.wrap(instanceUID), new Pairing(pairing));
+    }
+
+    Arrays.fill(plain, (byte) 0);
+  }
+
+  private void save() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(pairings.size());
+
+    for (Map.Entry<ByteBuffer, Pairing> entry : pairings.entrySet()) {
+      byte[] instanceUID = entry.getKey().array();
+      byte[] pairing = entry.getValue().toByteArray();
+      out.writeByte(instanceUID.length);
+      out.write(instanceUID);
+      out.writeByte(pairing.length);
+      out.write(pairing);
+    }
+
+    byte[] plain = bytes.toByteArray();
+
+    try {
+      // the IV is generated by the cipher, since keystore keys do not accept one chosen by the caller
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.ENCRYPT_MODE, getKey());
+      cipher.updateAAD(new byte[] { FORMAT_VERSION });
+      byte[] iv = cipher.getIV();
+      byte[] encrypted = cipher.doFinal(plain);
+
+      byte[] data = new byte[2 + iv.length + encrypted.length];
+      data[0] = FORMAT_VERSION;
+      data[1] = (byte) iv.length;
+      System.arraycopy(iv, 0, data, 2, iv.length);
+      System.arraycopy(encrypted, 0, data, 2 + iv.length, encrypted.length);
+      write(data);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not encrypt the pairing store", e);
+    } finally {
+      Arrays.fill(plain, (byte) 0);
+    }
+  }
+}
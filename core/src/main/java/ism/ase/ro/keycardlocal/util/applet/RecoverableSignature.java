@@ -1,17 +1,14 @@
 package ism.ase.ro.keycardlocal.util.applet;
 
-import org.bouncycastle.asn1.x9.X9ECParameters;
-import org.bouncycastle.asn1.x9.X9IntegerConverter;
-import org.bouncycastle.crypto.ec.CustomNamedCurves;
-import org.bouncycastle.crypto.params.ECDomainParameters;
-import org.bouncycastle.math.ec.ECAlgorithms;
 import org.bouncycastle.math.ec.ECPoint;
-import org.bouncycastle.math.ec.FixedPointUtil;
 import org.bouncycastle.math.ec.custom.sec.SecP256K1Curve;
+import org.bouncycastle.util.BigIntegers;
 
 import java.math.BigInteger;
 import java.util.Arrays;
 
+import ism.ase.ro.keycardlocal.util.crypto.Secp256k1;
+
 /**
  * Signature with recoverable public key.
  */
@@ -26,14 +23,6 @@ public class RecoverableSignature {
   public static final byte TLV_RAW_SIGNATURE = (byte) 0x80;
   public static final byte TLV_ECDSA_TEMPLATE = (byte) 0x30;
 
-  private static final X9ECParameters CURVE_PARAMS = CustomNamedCurves.getByName("secp256k1");
-  static final ECDomainParameters CURVE;
-
-  static {
-    FixedPointUtil.precompute(CURVE_PARAMS.getG());
-    CURVE = new ECDomainParameters(CURVE_PARAMS.getCurve(), CURVE_PARAMS.getG(), CURVE_PARAMS.getN(), CURVE_PARAMS.getH());
-  }
-
   /**
    * Parses a signature from the card and calculates the recovery ID.
    *
@@ -159,7 +148,7 @@ public class RecoverableSignature {
   }
 
   static byte[] recoverFromSignature(int recId, BigInteger e, BigInteger r, BigInteger s, boolean compressed) {
-    BigInteger n = CURVE.getN();
+    BigInteger n = Secp256k1.DOMAIN.getN();
     BigInteger i = BigInteger.valueOf((long) recId / 2);
     BigInteger x = r.add(i.multiply(n));
     BigInteger prime = SecP256K1Curve.q;
@@ -168,24 +157,21 @@ public class RecoverableSignature {
       return null;
     }
 
+    // the cofactor is 1, so any point on the curve has order n and needs no further check
     ECPoint R = decompressKey(x, (recId & 1) == 1);
 
-    if (!R.multiply(n).isInfinity()) {
-      return null;
-    }
-
     BigInteger eInv = BigInteger.ZERO.subtract(e).mod(n);
     BigInteger rInv = r.modInverse(n);
     BigInteger srInv = rInv.multiply(s).mod(n);
     BigInteger eInvrInv = rInv.multiply(eInv).mod(n);
-    ECPoint q = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), eInvrInv, R, srInv);
+    ECPoint q = Secp256k1.sumOfTwoMultiplies(eInvrInv, R, srInv);
     return q.getEncoded(compressed);
   }
 
   private static ECPoint decompressKey(BigInteger xBN, boolean yBit) {
-    X9IntegerConverter x9 = new X9IntegerConverter();
-    byte[] compEnc = x9.integerToBytes(xBN, 1 + x9.getByteLength(CURVE.getCurve()));
+    byte[] compEnc = new byte[1 + Secp256k1.KEY_LENGTH];
+    System.arraycopy(BigIntegers.asUnsignedByteArray(Secp256k1.KEY_LENGTH, xBN), 0, compEnc, 1, Secp256k1.KEY_LENGTH);
     compEnc[0] = (byte)(yBit ? 0x03 : 0x02);
-    return CURVE.getCurve().decodePoint(compEnc);
+    return Secp256k1.decodePoint(compEnc);
   }
 }
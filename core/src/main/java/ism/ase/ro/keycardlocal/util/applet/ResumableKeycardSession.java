@@ -0,0 +1,400 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.CardChannel;
+import ism.ase.ro.keycardlocal.util.io.CardListener;
+
+/**
+ * A Keycard session which survives the card leaving the field. It is registered as the CardListener of a card manager
+ * and exposes a KeycardCommandSet which is used as usual (SELECT, OPEN SECURE CHANNEL, VERIFY PIN, ...) from a
+ * thread other than the one running the listener callbacks.
+ *
+ * When a protected command fails because the tag was lost, the session waits for a card with the same instance UID to
+ * be tapped again, selects it, reopens the secure channel with an ephemeral key generated while waiting, verifies the
+ * PIN again if it had been verified, and resends the command if it is safe to execute twice. The caller just sees the
+ * command return, so a multi-step flow continues where it was interrupted instead of starting over. Commands which are
+ * not safe to repeat, like GENERATE KEY or CHANGE PIN, throw the original IOException instead; the session is resumed
+ * by the next protected command.
+ *
+ * Each tag is kept connected, with its onConnected callback blocked, until it is lost, another tag is discovered or
+ * the session is closed. The session must therefore be closed once the flow is over.
+ */
+public class ResumableKeycardSession implements CardListener {
+  public static final long DEFAULT_RECONNECT_TIMEOUT_MS = 30000;
+
+  private final Object lock;
+  private final long reconnectTimeoutMS;
+  private final ResumableChannel channel;
+  private final ResumableSecureChannel secureChannel;
+  private final KeycardCommandSet cmdSet;
+
+  private CardChannel card;
+  private boolean closed;
+  private byte[] instanceUID;
+  private byte[] pin;
+  private int resumeCount;
+
+  /**
+   * Creates a session waiting at most DEFAULT_RECONNECT_TIMEOUT_MS for the card to come back.
+   */
+  public ResumableKeycardSession() {
+    this(DEFAULT_RECONNECT_TIMEOUT_MS);
+  }
+
+  /**
+   * Creates a session waiting at most the given time for the card to come back.
+   *
+   * @param reconnectTimeoutMS how long a command waits for a lost card before failing
+   */
+  public ResumableKeycardSession(long reconnectTimeoutMS) {
+    this.lock = new Object();
+    this.reconnectTimeoutMS = reconnectTimeoutMS;
+    this.channel = new ResumableChannel();
+    this.secureChannel = new ResumableSecureChannel();
+    this.cmdSet = new KeycardCommandSet(channel, secureChannel);
+  }
+
+  /**
+   * Returns the command set. Its commands block until a card is connected, and protected commands transparently
+   * resume the session when the card is lost and tapped again.
+   *
+   * @return the command set
+   */
+  public KeycardCommandSet getCommandSet() {
+    return cmdSet;
+  }
+
+  /**
+   * Returns the number of times the session has been resumed.
+   *
+   * @return the number of resumptions
+   */
+  public int getResumeCount() {
+    synchronized (lock) {
+      return resumeCount;
+    }
+  }
+
+  @Override
+  public void onConnected(CardChannel tag) {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+
+      card = tag;
+      lock.notifyAll();
+
+      // the channel is only valid until this method returns
+      while (card == tag && !closed) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onDisconnected() {
+    // the tag has already been released, either because it was lost or because a new one replaced it
+  }
+
+  /**
+   * Releases the connected tag, fails the commands waiting for a card and wipes the remembered PIN and the plaintext of
+   * the last protected command. The command set cannot be used afterwards.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      card = null;
+      lock.notifyAll();
+    }
+
+    setPIN(null);
+    secureChannel.wipeData();
+  }
+
+  /**
+   * Replaces the PIN to verify again on resume, zeroing the previous one. A copy is kept, so that the caller can wipe
+   * its own array.
+   *
+   * @param newPIN the PIN, or null to forget it
+   */
+  private void setPIN(byte[] newPIN) {
+    if (pin != null) {
+      Arrays.fill(pin, (byte) 0);
+    }
+
+    pin = newPIN != null ? newPIN.clone() : null;
+  }
+
+  /**
+   * Whether a command can be sent twice with the same outcome, so that it can be resent when its response was lost.
+   * Commands deriving a new current key from the current or parent one would derive twice and are therefore excluded.
+   *
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @return true if the command can be repeated
+   */
+  static boolean isIdempotent(int ins, int p1) {
+    boolean fromMaster = (p1 & 0xc0) == KeycardCommandSet.DERIVE_P1_SOURCE_MASTER;
+
+    switch ((byte) ins) {
+      case KeycardCommandSet.INS_GET_STATUS:
+      case KeycardCommandSet.INS_GET_DATA:
+      case KeycardCommandSet.INS_STORE_DATA:
+      case KeycardCommandSet.INS_SET_NDEF:
+      case KeycardCommandSet.INS_SET_PINLESS_PATH:
+      case KeycardCommandSet.INS_GENERATE_MNEMONIC:
+        return true;
+      case KeycardCommandSet.INS_SIGN:
+        return (p1 & 0x0f) != KeycardCommandSet.SIGN_P1_DERIVE_AND_MAKE_CURRENT || fromMaster;
+      case KeycardCommandSet.INS_EXPORT_KEY:
+        return (p1 & 0x0f) != KeycardCommandSet.EXPORT_KEY_P1_DERIVE_AND_MAKE_CURRENT || fromMaster;
+      case KeycardCommandSet.INS_DERIVE_KEY:
+        return fromMaster;
+      default:
+        return false;
+    }
+  }
+
+  private CardChannel awaitCard(long deadline) throws IOException {
+    synchronized (lock) {
+      while (card == null) {
+        long remaining = deadline - System.nanoTime();
+
+        if (closed) {
+          throw new IOException("Session closed");
+        } else if (remaining <= 0) {
+          throw new IOException("Card not connected");
+        }
+
+        try {
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the card", e);
+        }
+      }
+
+      return card;
+    }
+  }
+
+  private void release(CardChannel tag) {
+    synchronized (lock) {
+      if (card == tag) {
+        card = null;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private boolean isLost(CardChannel tag) {
+    synchronized (lock) {
+      return card != tag;
+    }
+  }
+
+  /**
+   * Forwards commands to the connected tag. A tag which fails a transmission and reports being disconnected is
+   * released, so that its onConnected callback returns and the next tag can be accepted.
+   */
+  private final class ResumableChannel implements CardChannel {
+    private CardChannel last;
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      CardChannel tag = awaitCard(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectTimeoutMS));
+      last = tag;
+
+      try {
+        return tag.send(cmd);
+      } catch (IOException e) {
+        if (!tag.isConnected()) {
+          release(tag);
+        }
+
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean isConnected() {
+      synchronized (lock) {
+        return card != null && card.isConnected();
+      }
+    }
+
+    @Override
+    public int getMaxCommandDataLength() {
+      synchronized (lock) {
+        return card != null ? card.getMaxCommandDataLength() : APDUCommand.MAX_SHORT_DATA_LENGTH;
+      }
+    }
+  }
+
+  /**
+   * Remembers the plaintext of the protected command being sent, so that it can be protected again with the keys of
+   * the resumed secure channel, and the PIN last verified, so that it can be verified again.
+   */
+  private final class ResumableSecureChannel extends SecureChannelSession {
+    private int cla;
+    private int ins;
+    private int p1;
+    private int p2;
+    private byte[] data;
+    private APDUCommand pending;
+    private boolean resuming;
+
+    @Override
+    public APDUCommand protectedCommand(int cla, int ins, int p1, int p2, byte[] data, int off, int len) {
+      APDUCommand cmd = super.protectedCommand(cla, ins, p1, p2, data, off, len);
+
+      if (!resuming && ins != INS_MUTUALLY_AUTHENTICATE) {
+        wipeData();
+
+        // the caller may reuse its buffer, and the plaintext can be a PIN
+        this.cla = cla;
+        this.ins = ins;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.data = Arrays.copyOfRange(data, off, off + len);
+        this.pending = cmd;
+      }
+
+      return cmd;
+    }
+
+    @Override
+    public void verifyMutuallyAuthenticateResponse(APDUResponse response) throws APDUException {
+      super.verifyMutuallyAuthenticateResponse(response);
+
+      if (!resuming) {
+        instanceUID = cmdSet.getApplicationInfo().getInstanceUID();
+        setPIN(null);
+      }
+    }
+
+    @Override
+    public APDUResponse transmit(CardChannel apduChannel, APDUCommand apdu) throws IOException {
+      if (resuming || apdu != pending) {
+        return super.transmit(apduChannel, apdu);
+      }
+
+      pending = null;
+
+      try {
+        APDUResponse response;
+
+        try {
+          response = super.transmit(apduChannel, apdu);
+        } catch (IOException e) {
+          if (!isLost(channel.last) || instanceUID == null) {
+            throw e;
+          }
+
+          if (ins == KeycardCommandSet.INS_CHANGE_PIN || ins == KeycardCommandSet.INS_UNBLOCK_PIN) {
+            // the new PIN may or may not have been set, verifying either one could waste a retry
+            setPIN(null);
+          }
+
+          resume();
+
+          if (!isIdempotent(ins, p1)) {
+            throw e;
+          }
+
+          response = super.transmit(apduChannel, super.protectedCommand(cla, ins, p1, p2, data, 0, data.length));
+        }
+
+        if (response.isOK()) {
+          if (ins == KeycardCommandSet.INS_VERIFY_PIN) {
+            setPIN(data);
+          } else if (ins == KeycardCommandSet.INS_CHANGE_PIN && p1 == KeycardCommandSet.CHANGE_PIN_P1_USER_PIN) {
+            setPIN(data);
+          }
+        }
+
+        return response;
+      } finally {
+        // once the command is over its plaintext is never resent, and it can be a PIN or PUK
+        wipeData();
+      }
+    }
+
+    /**
+     * Zeroes the recorded plaintext of the last protected command.
+     */
+    void wipeData() {
+      if (data != null) {
+        Arrays.fill(data, (byte) 0);
+        data = null;
+      }
+    }
+
+    /**
+     * Waits for the card to come back and restores the secure channel and the PIN verification. The PIN is wiped if the
+     * session cannot be resumed.
+     */
+    private void resume() throws IOException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectTimeoutMS);
+      prepareKeyPair();
+      resuming = true;
+      boolean resumed = false;
+
+      try {
+        while (true) {
+          CardChannel tag = awaitCard(deadline);
+
+          try {
+            APDUResponse response = cmdSet.select();
+
+            if (!response.isOK() || !Arrays.equals(cmdSet.getApplicationInfo().getInstanceUID(), instanceUID)) {
+              // not the card of this session, wait for the right one
+              release(tag);
+              prepareKeyPair();
+              continue;
+            }
+
+            autoOpenSecureChannel(channel);
+
+            if (pin != null) {
+              cmdSet.verifyPIN(pin).checkAuthOK();
+            }
+
+            synchronized (lock) {
+              resumeCount++;
+            }
+
+            resumed = true;
+            return;
+          } catch (IOException e) {
+            if (!isLost(tag)) {
+              throw e;
+            }
+
+            prepareKeyPair();
+          } catch (APDUException e) {
+            throw new IOException("Could not resume the session", e);
+          }
+        }
+      } finally {
+        resuming = false;
+
+        if (!resumed) {
+          setPIN(null);
+        }
+      }
+    }
+  }
+}
@@ -1,21 +1,16 @@
 package ism.ase.ro.keycardlocal.util.applet;
 
 import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
 import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.jce.ECNamedCurveTable;
-import org.bouncycastle.jce.interfaces.ECPublicKey;
-import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.jce.spec.ECPublicKeySpec;
-
-import javax.crypto.Cipher;
-import javax.crypto.KeyAgreement;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.Arrays;
 
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.crypto.EphemeralKey;
+import ism.ase.ro.keycardlocal.util.crypto.EphemeralKeyPool;
 import ism.ase.ro.keycardlocal.util.io.APDUCommand;
 import ism.ase.ro.keycardlocal.util.io.APDUException;
 import ism.ase.ro.keycardlocal.util.io.APDUResponse;
@@ -36,7 +31,7 @@ public class SecureChannelSession {
   public static final byte PAIR_P1_FIRST_STEP = 0x00;
   public static final byte PAIR_P1_LAST_STEP = 0x01;
   
-  public static final int PAYLOAD_MAX_SIZE = 223;
+  public static final int PAYLOAD_MAX_SIZE = 223; // bound by the single length byte in the MAC metadata, not by the APDU encoding
 
   static final byte PAIRING_MAX_CLIENT_COUNT = 5;
 
@@ -45,19 +40,51 @@ public class SecureChannelSession {
   private byte[] publicKey;
   private byte[] iv;
   private Pairing pairing;
-  private Cipher sessionCipher;
-  private CBCBlockCipherMac sessionMac;
-  private SecretKeySpec sessionEncKey;
-  private KeyParameter sessionMacKey;
   private SecureRandom random;
+  private final EphemeralKeyPool keyPool;
+  private EphemeralKey nextKey;
   private boolean open;
+  private final byte[] commandMeta = new byte[SC_BLOCK_SIZE];
+  private final byte[] responseMeta = new byte[SC_BLOCK_SIZE];
+  private final byte[] responseMAC = new byte[SC_BLOCK_SIZE];
+
+  // the key schedules are computed once per session, CBC and CBC-MAC are done on top of the raw block ciphers
+  private final AESEngine encEngine = new AESEngine();
+  private final AESEngine decEngine = new AESEngine();
+  private final AESEngine macEngine = new AESEngine();
 
   /**
    * Constructs a SecureChannel session on the client.
    */
   public SecureChannelSession() {
-      random = new SecureRandom();
-      open = false;
+    this(EphemeralKeyPool.getShared());
+  }
+
+  /**
+   * Constructs a SecureChannel session on the client, taking the ephemeral keys from the given pool.
+   *
+   * @param keyPool the pool of ephemeral keys
+   */
+  public SecureChannelSession(EphemeralKeyPool keyPool) {
+    this(new SecureRandom(), keyPool);
+  }
+
+  /**
+   * Constructs a SecureChannel session on the client, using the given source of randomness for the ephemeral keys,
+   * IVs and challenges. A deterministic source makes the sent commands reproducible, which is needed to replay a
+   * recorded trace. The ephemeral keys are then generated from this source when needed instead of being taken from a
+   * pool.
+   *
+   * @param random the source of randomness
+   */
+  public SecureChannelSession(SecureRandom random) {
+    this(random, null);
+  }
+
+  private SecureChannelSession(SecureRandom random, EphemeralKeyPool keyPool) {
+    this.random = random;
+    this.keyPool = keyPool;
+    this.open = false;
   }
 
   /**
@@ -67,27 +94,34 @@ public class SecureChannelSession {
    * @param keyData the public key returned by the applet as response to the SELECT command
    */
   public void generateSecret(byte[] keyData) {
-    try {
-      ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256k1");
-      KeyPairGenerator g = KeyPairGenerator.getInstance("ECDH", "BC");
-      g.initialize(ecSpec, random);
+    EphemeralKey key = (nextKey != null) ? nextKey : takeKey();
+    nextKey = null;
 
-      KeyPair keyPair = g.generateKeyPair();
-
-      publicKey = ((ECPublicKey) keyPair.getPublic()).getQ().getEncoded(false);
-      KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH", "BC");
-      keyAgreement.init(keyPair.getPrivate());
-
-      ECPublicKeySpec cardKeySpec = new ECPublicKeySpec(ecSpec.getCurve().decodePoint(keyData), ecSpec);
-      ECPublicKey cardKey = (ECPublicKey) KeyFactory.getInstance("ECDSA", "BC").generatePublic(cardKeySpec);
-
-      keyAgreement.doPhase(cardKey, true);
-      secret = keyAgreement.generateSecret();
+    try {
+      publicKey = key.getPublicKey();
+      secret = key.agree(keyData);
     } catch (Exception e) {
       throw new RuntimeException("Is BouncyCastle in the classpath?", e);
     }
   }
 
+  /**
+   * Takes the ephemeral key used by the next call to generateSecret. Calling this while waiting for the card, for
+   * example until a lost tag is tapped again, makes sure no key generation is left on the path to opening the secure
+   * channel once the card is back, even if the key pool is empty.
+   */
+  public void prepareKeyPair() {
+    if (nextKey != null) {
+      nextKey.destroy();
+    }
+
+    nextKey = takeKey();
+  }
+
+  private EphemeralKey takeKey() {
+    return (keyPool != null) ? keyPool.take() : EphemeralKey.generate(random);
+  }
+
   /**
    * Returns the public key
    * @return the public key
@@ -136,17 +170,14 @@ public class SecureChannelSession {
    */
   public void processOpenSecureChannelResponse(APDUResponse response) {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA512");
-      md.update(secret);
-      md.update(pairing.getPairingKey());
       byte[] data = response.getData();
-      byte[] keyData = md.digest(Arrays.copyOf(data, SC_SECRET_LENGTH));
+      byte[] keyData = CryptoBackend.get().sha512(secret, pairing.getPairingKey(), Arrays.copyOf(data, SC_SECRET_LENGTH));
       iv = Arrays.copyOfRange(data, SC_SECRET_LENGTH, data.length);
 
-      sessionEncKey = new SecretKeySpec(Arrays.copyOf(keyData, SC_SECRET_LENGTH), "AES");
-      sessionMacKey = new KeyParameter(keyData, SC_SECRET_LENGTH, SC_SECRET_LENGTH);
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionMac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+      KeyParameter encKey = new KeyParameter(keyData, 0, SC_SECRET_LENGTH);
+      encEngine.init(true, encKey);
+      decEngine.init(false, encKey);
+      macEngine.init(true, new KeyParameter(keyData, SC_SECRET_LENGTH, SC_SECRET_LENGTH));
       open = true;
     } catch(Exception e) {
       throw new RuntimeException("Is BouncyCastle in the classpath?", e);
@@ -181,28 +212,18 @@ public class SecureChannelSession {
     byte[] cardChallenge = Arrays.copyOfRange(respData, 32, respData.length);
     byte[] checkCryptogram;
 
-    MessageDigest md;
-
-    try {
-      md = MessageDigest.getInstance("SHA256", "BC");
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
-    }
-
-    md.update(sharedSecret);
-    checkCryptogram = md.digest(challenge);
+    CryptoBackend crypto = CryptoBackend.get();
+    checkCryptogram = crypto.sha256(sharedSecret, challenge);
 
     if (!Arrays.equals(checkCryptogram, cardCryptogram)) {
       throw new APDUException("Invalid card cryptogram");
     }
 
-    md.update(sharedSecret);
-    checkCryptogram = md.digest(cardChallenge);
+    checkCryptogram = crypto.sha256(sharedSecret, cardChallenge);
 
     resp = pair(apduChannel, PAIR_P1_LAST_STEP, checkCryptogram).checkOK("Pairing failed on step 2");
     respData = resp.getData();
-    md.update(sharedSecret);
-    pairing = new Pairing(md.digest(Arrays.copyOfRange(respData, 1, respData.length)), respData[0]);
+    pairing = new Pairing(crypto.sha256(sharedSecret, Arrays.copyOfRange(respData, 1, respData.length)), respData[0]);
   }
 
   /**
@@ -300,45 +321,91 @@ public class SecureChannelSession {
   }
 
   /**
-   * Encrypts the plaintext data using the session key. The maximum plaintext size is 223 bytes. The returned ciphertext
-   * already includes the IV and padding and can be sent as-is in the APDU payload. If the input is an empty byte array
-   * the returned data will still contain the IV and padding.
+   * Encrypts the plaintext data using the session key. The maximum plaintext size is 223 bytes. The ciphertext is
+   * padded, chained from the current IV and written directly in the output buffer.
    *
-   * @param data the plaintext data
-   * @return the encrypted data
+   * @param data the buffer holding the plaintext data
+   * @param dataOff the offset of the plaintext
+   * @param dataLen the length of the plaintext
+   * @param out the output buffer
+   * @param outOff the offset in the output buffer at which the ciphertext is written
+   * @return the length of the ciphertext
    */
-  private byte[] encryptAPDU(byte[] data) {
-    assert data.length <= PAYLOAD_MAX_SIZE;
+  private int encryptAPDU(byte[] data, int dataOff, int dataLen, byte[] out, int outOff) {
+    // ISO7816-4 padding: 0x80 followed by zeroes, always at least one byte
+    int encLength = ((dataLen / SC_BLOCK_SIZE) + 1) * SC_BLOCK_SIZE;
+    byte[] chain = iv;
+    int chainOff = 0;
+
+    for (int off = 0; off < encLength; off += SC_BLOCK_SIZE) {
+      int blockOff = outOff + off;
+
+      for (int i = 0; i < SC_BLOCK_SIZE; i++) {
+        int pos = off + i;
+        byte b = (pos < dataLen) ? data[dataOff + pos] : ((pos == dataLen) ? (byte) 0x80 : 0);
+        out[blockOff + i] = (byte) (b ^ chain[chainOff + i]);
+      }
 
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+      encEngine.processBlock(out, blockOff, out, blockOff);
+      chain = out;
+      chainOff = blockOff;
+    }
 
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    return encLength;
+  }
+
+  /**
+   * Decrypts the response from the card using the session key. The returned array holds the plaintext followed by the
+   * padding, which is not stripped.
+   *
+   * @param data the buffer holding the ciphetext
+   * @param off the offset of the ciphertext
+   * @param len the length of the ciphertext, a multiple of the block size
+   * @return the padded plaintext
+   */
+  private byte[] decryptAPDU(byte[] data, int off, int len) {
+    byte[] plain = new byte[len];
+    byte[] chain = iv;
+    int chainOff = 0;
+
+    for (int pos = 0; pos < len; pos += SC_BLOCK_SIZE) {
+      decEngine.processBlock(data, off + pos, plain, pos);
+
+      for (int i = 0; i < SC_BLOCK_SIZE; i++) {
+        plain[pos + i] ^= chain[chainOff + i];
+      }
+
+      chain = data;
+      chainOff = off + pos;
     }
+
+    return plain;
   }
 
   /**
-   * Decrypts the response from the card using the session key. The returned data is already stripped from IV and padding
-   * and can be potentially empty.
+   * Returns the length of the ISO7816-4 padded plaintext without its padding.
    *
-   * @param data the ciphetext
-   * @return the plaintext
+   * @param plain the padded plaintext
+   * @return the unpadded length
+   * @throws IOException if the padding is invalid
    */
-  private byte[] decryptAPDU(byte[] data) {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionCipher.init(Cipher.DECRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+  private static int unpaddedLength(byte[] plain) throws IOException {
+    int end = plain.length - 1;
+
+    while (end >= 0 && plain[end] == 0) {
+      end--;
+    }
+
+    if (end < 0 || plain[end] != (byte) 0x80) {
+      throw new IOException("Invalid padding");
     }
+
+    return end;
   }
 
   /**
-   * Returns a command APDU with MAC and encrypted data.
+   * Returns a command APDU with MAC and encrypted data. Subclasses intercepting protected commands override the slice
+   * variant, which this method calls.
    *
    * @param cla the CLA byte
    * @param ins the INS byte
@@ -346,19 +413,53 @@ public class SecureChannelSession {
    * @param p2 the P2 byte
    * @param data the data, can be an empty array but not null
    * @return the command APDU
+   * @throws IllegalArgumentException if the secure channel is open and the data is longer than PAYLOAD_MAX_SIZE
    */
-  public APDUCommand protectedCommand(int cla, int ins, int p1, int p2, byte[] data) {
+  public final APDUCommand protectedCommand(int cla, int ins, int p1, int p2, byte[] data) {
+    return protectedCommand(cla, ins, p1, p2, data, 0, data.length);
+  }
+
+  /**
+   * Returns a command APDU with MAC and encrypted data, taking the data from a slice of the given buffer. The buffer
+   * can be reused as soon as this method returns.
+   *
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param data the buffer holding the data
+   * @param off the offset of the data
+   * @param len the length of the data
+   * @return the command APDU
+   * @throws IllegalArgumentException if the secure channel is open and the data is longer than PAYLOAD_MAX_SIZE
+   */
+  public APDUCommand protectedCommand(int cla, int ins, int p1, int p2, byte[] data, int off, int len) {
     byte[] finalData;
 
     if (open) {
-      data = encryptAPDU(data);
-      byte[] meta = new byte[]{(byte) cla, (byte) ins, (byte) p1, (byte) p2, (byte) (data.length + SC_BLOCK_SIZE), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      updateIV(meta, data);
+      if (len > PAYLOAD_MAX_SIZE) {
+        throw new IllegalArgumentException("The data cannot be longer than " + PAYLOAD_MAX_SIZE + " bytes");
+      }
 
-      finalData = Arrays.copyOf(iv, iv.length + data.length);
-      System.arraycopy(data, 0, finalData, iv.length, data.length);
-    } else {
+      // ISO7816-4 padding always adds at least one byte, so the ciphertext length is known in advance
+      int encLength = ((len / SC_BLOCK_SIZE) + 1) * SC_BLOCK_SIZE;
+      finalData = new byte[SC_BLOCK_SIZE + encLength];
+      encryptAPDU(data, off, len, finalData, SC_BLOCK_SIZE);
+
+      byte[] meta = commandMeta;
+      Arrays.fill(meta, (byte) 0);
+      meta[0] = (byte) cla;
+      meta[1] = (byte) ins;
+      meta[2] = (byte) p1;
+      meta[3] = (byte) p2;
+      meta[4] = (byte) (encLength + SC_BLOCK_SIZE);
+      computeMAC(meta, finalData, SC_BLOCK_SIZE, encLength, iv);
+
+      System.arraycopy(iv, 0, finalData, 0, SC_BLOCK_SIZE);
+    } else if (off == 0 && len == data.length) {
       finalData = data;
+    } else {
+      finalData = Arrays.copyOfRange(data, off, off + len);
     }
 
     return new APDUCommand(cla, ins, p1, p2, finalData);
@@ -381,20 +482,37 @@ public class SecureChannelSession {
     }
 
     if (open) {
-      byte[] data = resp.getData();
-      byte[] meta = new byte[]{(byte) data.length, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      byte[] mac = Arrays.copyOf(data, iv.length);
-      data = Arrays.copyOfRange(data, iv.length, data.length);
+      // the raw response is laid out as MAC | ciphertext | SW, so it is processed in place
+      byte[] raw = resp.getBytes();
+      int dataLength = resp.getDataLength();
+
+      if (dataLength < (2 * SC_BLOCK_SIZE) || (dataLength % SC_BLOCK_SIZE) != 0) {
+        throw new IOException("Invalid MAC");
+      }
 
-      byte[] plainData = decryptAPDU(data);
+      int encLength = dataLength - SC_BLOCK_SIZE;
 
-      updateIV(meta, data);
+      byte[] meta = responseMeta;
+      Arrays.fill(meta, (byte) 0);
+      meta[0] = (byte) dataLength;
 
-      if (!Arrays.equals(iv, mac)) {
+      // the MAC is verified before decrypting, the ciphertext of unauthenticated responses is never processed
+      byte[] mac = responseMAC;
+      computeMAC(meta, raw, SC_BLOCK_SIZE, encLength, mac);
+
+      int diff = 0;
+      for (int i = 0; i < SC_BLOCK_SIZE; i++) {
+        diff |= mac[i] ^ raw[i];
+      }
+
+      if (diff != 0) {
         throw new IOException("Invalid MAC");
       }
 
-      return new APDUResponse(plainData);
+      byte[] plainData = decryptAPDU(raw, SC_BLOCK_SIZE, encLength);
+      System.arraycopy(mac, 0, iv, 0, SC_BLOCK_SIZE);
+
+      return APDUResponse.wrap(ByteBuffer.wrap(plainData), unpaddedLength(plainData));
     } else {
       return resp;
     }
@@ -417,11 +535,7 @@ public class SecureChannelSession {
     try {
       iv = new byte[SC_BLOCK_SIZE];
       random.nextBytes(iv);
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionEncKey = new SecretKeySpec(secret, "AES");
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      initData = sessionCipher.doFinal(initData);
+      initData = CryptoBackend.get().aesCBCEncrypt(secret, iv, initData);
       byte[] encrypted = new byte[1 + publicKey.length + iv.length + initData.length];
       encrypted[0] = (byte) publicKey.length;
       System.arraycopy(publicKey, 0, encrypted, 1, publicKey.length);
@@ -443,19 +557,24 @@ public class SecureChannelSession {
   }
 
   /**
-   * Calculates a CMAC from the metadata and data provided and sets it as the IV for the next message.
+   * Calculates the CBC-MAC of the metadata block followed by the data, with a zero IV. The data length must be a
+   * multiple of the block size, which is always the case since the MAC is computed over the ciphertext.
    *
    * @param meta metadata
-   * @param data data
+   * @param data buffer holding the data
+   * @param off offset of the data
+   * @param len length of the data
+   * @param out the buffer receiving the MAC
    */
-  private void updateIV(byte[] meta, byte[] data) {
-    try {
-      sessionMac.init(sessionMacKey);
-      sessionMac.update(meta, 0, meta.length);
-      sessionMac.update(data, 0, data.length);
-      sessionMac.doFinal(iv, 0);
-    } catch (Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+  private void computeMAC(byte[] meta, byte[] data, int off, int len, byte[] out) {
+    macEngine.processBlock(meta, 0, out, 0);
+
+    for (int pos = 0; pos < len; pos += SC_BLOCK_SIZE) {
+      for (int i = 0; i < SC_BLOCK_SIZE; i++) {
+        out[i] ^= data[off + pos + i];
+      }
+
+      macEngine.processBlock(out, 0, out, 0);
     }
   }
 }
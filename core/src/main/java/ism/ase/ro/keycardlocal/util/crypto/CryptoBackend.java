@@ -0,0 +1,135 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+/**
+ * The symmetric primitives used by the secure channels, the pairing and the key derivation. All the code of this
+ * library goes through the backend returned by get(), so that the implementation can be swapped in one place.
+ *
+ * The default backend, LightweightCryptoBackend, calls the BouncyCastle lightweight API directly. JCACryptoBackend goes
+ * through the JCA provider lookup on each call, like this library did before, and is mostly kept as a reference.
+ *
+ * Key and IV arguments are never modified. All methods are thread-safe.
+ */
+public abstract class CryptoBackend {
+  private static volatile CryptoBackend instance = new LightweightCryptoBackend();
+
+  /**
+   * Returns the backend in use.
+   *
+   * @return the backend
+   */
+  public static CryptoBackend get() {
+    return instance;
+  }
+
+  /**
+   * Sets the backend used from now on.
+   *
+   * @param backend the new backend
+   */
+  public static void set(CryptoBackend backend) {
+    if (backend == null) {
+      throw new IllegalArgumentException("The backend cannot be null");
+    }
+
+    instance = backend;
+  }
+
+  /**
+   * Computes the SHA-256 digest of the concatenation of the given arrays.
+   *
+   * @param data the data to hash
+   * @return the digest
+   */
+  public abstract byte[] sha256(byte[]... data);
+
+  /**
+   * Computes the SHA-512 digest of the concatenation of the given arrays.
+   *
+   * @param data the data to hash
+   * @return the digest
+   */
+  public abstract byte[] sha512(byte[]... data);
+
+  /**
+   * Computes the HMAC-SHA512 of the given data.
+   *
+   * @param key the key
+   * @param data the data
+   * @return the MAC
+   */
+  public abstract byte[] hmacSHA512(byte[] key, byte[] data);
+
+  /**
+   * Derives a key using PBKDF2 with HMAC-SHA256. The password is encoded in UTF-8.
+   *
+   * @param password the password
+   * @param salt the salt
+   * @param iterations the iteration count
+   * @param keyLength the length of the derived key in bytes
+   * @return the derived key
+   */
+  public abstract byte[] pbkdf2SHA256(char[] password, byte[] salt, int iterations, int keyLength);
+
+  /**
+   * Derives a key using PBKDF2 with HMAC-SHA512. The password is encoded in UTF-8.
+   *
+   * @param password the password
+   * @param salt the salt
+   * @param iterations the iteration count
+   * @param keyLength the length of the derived key in bytes
+   * @return the derived key
+   */
+  public abstract byte[] pbkdf2SHA512(char[] password, byte[] salt, int iterations, int keyLength);
+
+  /**
+   * Encrypts the data with AES in CBC mode and ISO7816-4 padding.
+   *
+   * @param key the key
+   * @param iv the IV
+   * @param data the plaintext
+   * @return the ciphertext
+   */
+  public abstract byte[] aesCBCEncrypt(byte[] key, byte[] iv, byte[] data);
+
+  /**
+   * Encrypts the data with single DES in CBC mode, without padding.
+   *
+   * @param key the 8 bytes key
+   * @param iv the IV
+   * @param data the buffer holding the plaintext
+   * @param off the offset of the plaintext
+   * @param len the length of the plaintext, a multiple of 8
+   * @return the ciphertext
+   */
+  public abstract byte[] desCBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len);
+
+  /**
+   * Encrypts the data with single DES in ECB mode, without padding.
+   *
+   * @param key the 8 bytes key
+   * @param data the plaintext, a multiple of 8 bytes long
+   * @return the ciphertext
+   */
+  public abstract byte[] desECBEncrypt(byte[] key, byte[] data);
+
+  /**
+   * Encrypts the data with triple DES in CBC mode, without padding.
+   *
+   * @param key the 24 bytes key
+   * @param iv the IV
+   * @param data the buffer holding the plaintext
+   * @param off the offset of the plaintext
+   * @param len the length of the plaintext, a multiple of 8
+   * @return the ciphertext
+   */
+  public abstract byte[] des3CBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len);
+
+  /**
+   * Encrypts the data with triple DES in ECB mode, without padding.
+   *
+   * @param key the 24 bytes key
+   * @param data the plaintext, a multiple of 8 bytes long
+   * @return the ciphertext
+   */
+  public abstract byte[] des3ECBEncrypt(byte[] key, byte[] data);
+}
@@ -0,0 +1,90 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A single-use secp256k1 key pair for the ECDH agreement opening a secure channel. The private key is kept as raw
+ * bytes and overwritten with zeroes as soon as the agreement is computed, or when the key is destroyed unused.
+ */
+public final class EphemeralKey {
+  private final byte[] privateKey;
+  private final byte[] publicKey;
+  private boolean used;
+
+  private EphemeralKey(byte[] privateKey, byte[] publicKey) {
+    this.privateKey = privateKey;
+    this.publicKey = publicKey;
+  }
+
+  /**
+   * Generates a new key pair.
+   *
+   * @param random the source of randomness
+   * @return the key pair
+   */
+  public static EphemeralKey generate(SecureRandom random) {
+    ECKeyPairGenerator generator = new ECKeyPairGenerator();
+    generator.init(new ECKeyGenerationParameters(Secp256k1.DOMAIN, random));
+    AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+
+    BigInteger d = ((ECPrivateKeyParameters) keyPair.getPrivate()).getD();
+    byte[] q = ((ECPublicKeyParameters) keyPair.getPublic()).getQ().getEncoded(false);
+
+    return new EphemeralKey(BigIntegers.asUnsignedByteArray(Secp256k1.KEY_LENGTH, d), q);
+  }
+
+  /**
+   * Returns the uncompressed public key.
+   *
+   * @return the public key
+   */
+  public byte[] getPublicKey() {
+    return publicKey.clone();
+  }
+
+  /**
+   * Computes the ECDH shared secret with the given public key, that is the X coordinate of the shared point, and
+   * destroys the private key.
+   *
+   * @param peerPublicKey the public key of the other party, compressed or uncompressed
+   * @return the shared secret
+   * @throws IllegalStateException if the key has already been used
+   */
+  public synchronized byte[] agree(byte[] peerPublicKey) {
+    if (used) {
+      throw new IllegalStateException("The ephemeral key has already been used");
+    }
+
+    try {
+      return Secp256k1.ecdh(privateKey, peerPublicKey);
+    } finally {
+      destroy();
+    }
+  }
+
+  /**
+   * Overwrites the private key. The key cannot be used afterwards.
+   */
+  public synchronized void destroy() {
+    Arrays.fill(privateKey, (byte) 0);
+    used = true;
+  }
+
+  /**
+   * Whether the key has been used or destroyed.
+   *
+   * @return true if the private key is gone
+   */
+  public synchronized boolean isDestroyed() {
+    return used;
+  }
+}
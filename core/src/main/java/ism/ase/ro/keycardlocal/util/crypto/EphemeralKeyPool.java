@@ -0,0 +1,129 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of ephemeral secp256k1 key pairs, refilled by a low priority background thread. Taking a key from the
+ * pool moves the key generation off the critical path of opening a secure channel, leaving only the ECDH agreement to
+ * be done while the card is in the field. When the pool is empty a key is generated on the calling thread instead.
+ *
+ * Each key is handed out once and is destroyed by its agreement. Keys still in the pool are destroyed when it is
+ * closed.
+ */
+public class EphemeralKeyPool implements AutoCloseable {
+  public static final int DEFAULT_CAPACITY = 4;
+
+  private static final class SharedHolder {
+    static final EphemeralKeyPool SHARED = new EphemeralKeyPool();
+  }
+
+  private final ArrayBlockingQueue<EphemeralKey> keys;
+  private final SecureRandom random;
+  private final Thread refiller;
+  private final LongAdder misses;
+  private volatile boolean closed;
+
+  /**
+   * Creates a pool holding DEFAULT_CAPACITY keys.
+   */
+  public EphemeralKeyPool() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a pool holding the given number of keys. The background thread starts filling it immediately.
+   *
+   * @param capacity the maximum number of keys kept ready
+   */
+  public EphemeralKeyPool(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be positive");
+    }
+
+    this.keys = new ArrayBlockingQueue<>(capacity);
+    this.random = new SecureRandom();
+    this.misses = new LongAdder();
+    this.refiller = new Thread(this::refill, "EphemeralKeyPool");
+    this.refiller.setDaemon(true);
+    this.refiller.setPriority(Thread.MIN_PRIORITY);
+    this.refiller.start();
+  }
+
+  /**
+   * Returns the pool shared by all secure channel sessions created without a source of randomness.
+   *
+   * @return the shared pool
+   */
+  public static EphemeralKeyPool getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  /**
+   * Takes a key from the pool, or generates one if the pool is empty or closed.
+   *
+   * @return an unused key
+   */
+  public EphemeralKey take() {
+    EphemeralKey key = keys.poll();
+
+    if (key == null) {
+      misses.increment();
+      key = EphemeralKey.generate(random);
+    }
+
+    return key;
+  }
+
+  /**
+   * Returns the number of keys ready to be taken.
+   *
+   * @return the number of available keys
+   */
+  public int getAvailable() {
+    return keys.size();
+  }
+
+  /**
+   * Returns the number of keys which had to be generated on the calling thread because the pool was empty.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Stops the background thread and destroys the keys in the pool. Later calls to take() generate keys on the calling
+   * thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    refiller.interrupt();
+
+    EphemeralKey key;
+
+    while ((key = keys.poll()) != null) {
+      key.destroy();
+    }
+  }
+
+  private void refill() {
+    while (!closed) {
+      EphemeralKey key = EphemeralKey.generate(random);
+
+      try {
+        keys.put(key);
+      } catch (InterruptedException e) {
+        key.destroy();
+        return;
+      }
+
+      if (closed) {
+        close();
+      }
+    }
+  }
+}
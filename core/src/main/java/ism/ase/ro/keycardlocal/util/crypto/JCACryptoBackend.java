@@ -0,0 +1,119 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Goes through the JCA, resolving each primitive from the BouncyCastle provider on every call. This is how the library
+ * worked before the lightweight backend was introduced. It requires the provider to be installed, see
+ * Crypto.addBouncyCastleProvider().
+ */
+public class JCACryptoBackend extends CryptoBackend {
+  @Override
+  public byte[] sha256(byte[]... data) {
+    return digest("SHA256", data);
+  }
+
+  @Override
+  public byte[] sha512(byte[]... data) {
+    return digest("SHA512", data);
+  }
+
+  @Override
+  public byte[] hmacSHA512(byte[] key, byte[] data) {
+    try {
+      Mac hmac = Mac.getInstance("HmacSHA512", "BC");
+      hmac.init(new SecretKeySpec(key, "HmacSHA512"));
+      return hmac.doFinal(data);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    }
+  }
+
+  @Override
+  public byte[] pbkdf2SHA256(char[] password, byte[] salt, int iterations, int keyLength) {
+    return pbkdf2("PBKDF2WithHmacSHA256", password, salt, iterations, keyLength);
+  }
+
+  @Override
+  public byte[] pbkdf2SHA512(char[] password, byte[] salt, int iterations, int keyLength) {
+    return pbkdf2("PBKDF2WithHmacSHA512", password, salt, iterations, keyLength);
+  }
+
+  @Override
+  public byte[] aesCBCEncrypt(byte[] key, byte[] iv, byte[] data) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      return cipher.doFinal(data);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    }
+  }
+
+  @Override
+  public byte[] desCBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len) {
+    return encrypt("DES/CBC/NoPadding", "DES", key, iv, data, off, len);
+  }
+
+  @Override
+  public byte[] desECBEncrypt(byte[] key, byte[] data) {
+    return encrypt("DES/ECB/NoPadding", "DES", key, null, data, 0, data.length);
+  }
+
+  @Override
+  public byte[] des3CBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len) {
+    return encrypt("DESede/CBC/NoPadding", "DESede", key, iv, data, off, len);
+  }
+
+  @Override
+  public byte[] des3ECBEncrypt(byte[] key, byte[] data) {
+    return encrypt("DESede/ECB/NoPadding", "DESede", key, null, data, 0, data.length);
+  }
+
+  private static byte[] digest(String algorithm, byte[]... data) {
+    try {
+      MessageDigest md = MessageDigest.getInstance(algorithm, "BC");
+
+      for (byte[] d : data) {
+        md.update(d);
+      }
+
+      return md.digest();
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    }
+  }
+
+  private static byte[] pbkdf2(String algorithm, char[] password, byte[] salt, int iterations, int keyLength) {
+    try {
+      SecretKeyFactory skf = SecretKeyFactory.getInstance(algorithm, "BC");
+      return skf.generateSecret(new PBEKeySpec(password, salt, iterations, keyLength * 8)).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    }
+  }
+
+  private static byte[] encrypt(String transformation, String keyAlgorithm, byte[] key, byte[] iv, byte[] data, int off, int len) {
+    try {
+      Cipher cipher = Cipher.getInstance(transformation, "BC");
+
+      if (iv != null) {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, keyAlgorithm), new IvParameterSpec(iv));
+      } else {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, keyAlgorithm));
+      }
+
+      return cipher.doFinal(data, off, len);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+
+/**
+ * Calls the BouncyCastle lightweight API directly, with no provider lookup. The digests, MACs and block ciphers are
+ * created once per thread and reused, so only the key schedule and the output are computed on each call. CBC is done
+ * on top of the raw block ciphers. The PBKDF2 generators are created on each call instead, since they keep a reference
+ * to the password, which is zeroed once the key is derived.
+ */
+public class LightweightCryptoBackend extends CryptoBackend {
+  private static final class Engines {
+    final SHA256Digest sha256 = new SHA256Digest();
+    final SHA512Digest sha512 = new SHA512Digest();
+    final HMac hmacSHA512 = new HMac(new SHA512Digest());
+    final AESEngine aes = new AESEngine();
+    final DESEngine des = new DESEngine();
+    final DESedeEngine des3 = new DESedeEngine();
+  }
+
+  private final ThreadLocal<Engines> engines = ThreadLocal.withInitial(Engines::new);
+
+  @Override
+  public byte[] sha256(byte[]... data) {
+    return digest(engines.get().sha256, data);
+  }
+
+  @Override
+  public byte[] sha512(byte[]... data) {
+    return digest(engines.get().sha512, data);
+  }
+
+  @Override
+  public byte[] hmacSHA512(byte[] key, byte[] data) {
+    HMac hmac = engines.get().hmacSHA512;
+
+    try {
+      hmac.init(new KeyParameter(key));
+      hmac.update(data, 0, data.length);
+
+      byte[] out = new byte[hmac.getMacSize()];
+      hmac.doFinal(out, 0);
+      return out;
+    } finally {
+      hmac.reset();
+    }
+  }
+
+  @Override
+  public byte[] pbkdf2SHA256(char[] password, byte[] salt, int iterations, int keyLength) {
+    return pbkdf2(new PKCS5S2ParametersGenerator(new SHA256Digest()), password, salt, iterations, keyLength);
+  }
+
+  @Override
+  public byte[] pbkdf2SHA512(char[] password, byte[] salt, int iterations, int keyLength) {
+    return pbkdf2(new PKCS5S2ParametersGenerator(new SHA512Digest()), password, salt, iterations, keyLength);
+  }
+
+  @Override
+  public byte[] aesCBCEncrypt(byte[] key, byte[] iv, byte[] data) {
+    AESEngine aes = engines.get().aes;
+    aes.init(true, new KeyParameter(key));
+
+    // ISO7816-4 padding: 0x80 followed by zeroes, always at least one byte
+    int blockSize = aes.getBlockSize();
+    byte[] padded = new byte[((data.length / blockSize) + 1) * blockSize];
+    System.arraycopy(data, 0, padded, 0, data.length);
+    padded[data.length] = (byte) 0x80;
+
+    cbcEncrypt(aes, iv, padded, 0, padded, 0, padded.length);
+    return padded;
+  }
+
+  @Override
+  public byte[] desCBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len) {
+    DESEngine des = engines.get().des;
+    des.init(true, new KeyParameter(key));
+
+    byte[] out = new byte[len];
+    cbcEncrypt(des, iv, data, off, out, 0, len);
+    return out;
+  }
+
+  @Override
+  public byte[] desECBEncrypt(byte[] key, byte[] data) {
+    DESEngine des = engines.get().des;
+    des.init(true, new KeyParameter(key));
+    return ecbEncrypt(des, data);
+  }
+
+  @Override
+  public byte[] des3CBCEncrypt(byte[] key, byte[] iv, byte[] data, int off, int len) {
+    DESedeEngine des3 = engines.get().des3;
+    des3.init(true, new KeyParameter(key));
+
+    byte[] out = new byte[len];
+    cbcEncrypt(des3, iv, data, off, out, 0, len);
+    return out;
+  }
+
+  @Override
+  public byte[] des3ECBEncrypt(byte[] key, byte[] data) {
+    DESedeEngine des3 = engines.get().des3;
+    des3.init(true, new KeyParameter(key));
+    return ecbEncrypt(des3, data);
+  }
+
+  private static byte[] digest(Digest digest, byte[]... data) {
+    // the digest is reused by the next call on this thread, so it must not keep the input of a call which failed
+    try {
+      for (byte[] d : data) {
+        digest.update(d, 0, d.length);
+      }
+
+      byte[] out = new byte[digest.getDigestSize()];
+      digest.doFinal(out, 0);
+      return out;
+    } finally {
+      digest.reset();
+    }
+  }
+
+  private static byte[] pbkdf2(PKCS5S2ParametersGenerator generator, char[] password, byte[] salt, int iterations, int keyLength) {
+    byte[] passwordBytes = PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(password);
+
+    try {
+      generator.init(passwordBytes, salt, iterations);
+      return ((KeyParameter) generator.generateDerivedParameters(keyLength * 8)).getKey();
+    } finally {
+      Arrays.fill(passwordBytes, (byte) 0);
+    }
+  }
+
+  private static void cbcEncrypt(BlockCipher cipher, byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    int blockSize = cipher.getBlockSize();
+
+    if ((len % blockSize) != 0) {
+      throw new IllegalArgumentException("The data length must be a multiple of the block size");
+    }
+
+    byte[] chain = iv;
+    int chainOff = 0;
+
+    for (int pos = 0; pos < len; pos += blockSize) {
+      for (int i = 0; i < blockSize; i++) {
+        out[outOff + pos + i] = (byte) (in[inOff + pos + i] ^ chain[chainOff + i]);
+      }
+
+      cipher.processBlock(out, outOff + pos, out, outOff + pos);
+      chain = out;
+      chainOff = outOff + pos;
+    }
+  }
+
+  private static byte[] ecbEncrypt(BlockCipher cipher, byte[] data) {
+    int blockSize = cipher.getBlockSize();
+
+    if ((data.length % blockSize) != 0) {
+      throw new IllegalArgumentException("The data length must be a multiple of the block size");
+    }
+
+    byte[] out = new byte[data.length];
+
+    for (int pos = 0; pos < data.length; pos += blockSize) {
+      cipher.processBlock(data, pos, out, pos);
+    }
+
+    return out;
+  }
+}
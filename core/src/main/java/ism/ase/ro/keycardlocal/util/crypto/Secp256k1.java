@@ -0,0 +1,158 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The secp256k1 operations done on the host: public key computation, ECDH, signature verification and public key
+ * recovery. All of them use the same curve instance, with the specialized SecP256K1Curve field arithmetic and the GLV
+ * endomorphism for the multiplication of arbitrary points. The multiples of G used by the comb multiplier are computed
+ * once, when this class is loaded.
+ *
+ * Decoding a compressed point requires a square root, so the last decoded points are cached. The same card key,
+ * certificate authority or peer key is typically decoded many times.
+ */
+public final class Secp256k1 {
+  private static final X9ECParameters PARAMS = CustomNamedCurves.getByName("secp256k1");
+
+  public static final ECDomainParameters DOMAIN;
+  public static final int KEY_LENGTH = 32;
+
+  private static final FixedPointCombMultiplier G_MULTIPLIER = new FixedPointCombMultiplier();
+  private static final int DECODED_POINT_CACHE_SIZE = 64;
+
+  private static final Map<ByteBuffer, ECPoint> decodedPoints = new LinkedHashMap<ByteBuffer, ECPoint>(DECODED_POINT_CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPoint> eldest) {
+      return size() > DECODED_POINT_CACHE_SIZE;
+    }
+  };
+
+  static {
+    FixedPointUtil.precompute(PARAMS.getG());
+    DOMAIN = new ECDomainParameters(PARAMS.getCurve(), PARAMS.getG(), PARAMS.getN(), PARAMS.getH());
+  }
+
+  private Secp256k1() {}
+
+  /**
+   * Decodes a point, compressed or not, and checks that it is on the curve. Since the cofactor is 1, any such point
+   * other than infinity is a valid public key.
+   *
+   * @param encoded the encoded point
+   * @return the point
+   * @throws IllegalArgumentException if the encoding is invalid or the point is not on the curve
+   */
+  public static ECPoint decodePoint(byte[] encoded) {
+    ByteBuffer key = ByteBuffer.wrap(encoded.clone());
+
+    synchronized (decodedPoints) {
+      ECPoint point = decodedPoints.get(key);
+
+      if (point != null) {
+        return point;
+      }
+    }
+
+    ECPoint point = DOMAIN.getCurve().decodePoint(encoded);
+
+    if (point.isInfinity()) {
+      throw new IllegalArgumentException("Invalid point");
+    }
+
+    synchronized (decodedPoints) {
+      decodedPoints.put(key, point);
+    }
+
+    return point;
+  }
+
+  /**
+   * Multiplies G by the given scalar using the precomputed comb tables.
+   *
+   * @param k the scalar
+   * @return the normalized point
+   */
+  public static ECPoint multiplyG(BigInteger k) {
+    return G_MULTIPLIER.multiply(DOMAIN.getG(), k).normalize();
+  }
+
+  /**
+   * Multiplies an arbitrary point by the given scalar, using the GLV endomorphism.
+   *
+   * @param p the point
+   * @param k the scalar
+   * @return the normalized point
+   */
+  public static ECPoint multiply(ECPoint p, BigInteger k) {
+    return p.multiply(k).normalize();
+  }
+
+  /**
+   * Computes a*G + b*P, as needed by signature verification and public key recovery.
+   *
+   * @param a the multiplier of G
+   * @param p the point
+   * @param b the multiplier of p
+   * @return the normalized point
+   */
+  public static ECPoint sumOfTwoMultiplies(BigInteger a, ECPoint p, BigInteger b) {
+    return ECAlgorithms.sumOfTwoMultiplies(DOMAIN.getG(), a, p, b).normalize();
+  }
+
+  /**
+   * Computes the public key of the given private key.
+   *
+   * @param privateKey the private key
+   * @param compressed whether to return the compressed encoding
+   * @return the encoded public key
+   */
+  public static byte[] publicKey(byte[] privateKey, boolean compressed) {
+    return multiplyG(new BigInteger(1, privateKey)).getEncoded(compressed);
+  }
+
+  /**
+   * Computes the ECDH shared secret, that is the X coordinate of the shared point.
+   *
+   * @param privateKey the private key
+   * @param peerPublicKey the public key of the other party, compressed or not
+   * @return the 32 bytes shared secret
+   * @throws IllegalArgumentException if the public key is invalid
+   */
+  public static byte[] ecdh(byte[] privateKey, byte[] peerPublicKey) {
+    ECPoint shared = multiply(decodePoint(peerPublicKey), new BigInteger(1, privateKey));
+
+    if (shared.isInfinity()) {
+      throw new IllegalArgumentException("Invalid shared point");
+    }
+
+    return shared.getAffineXCoord().getEncoded();
+  }
+
+  /**
+   * Verifies an ECDSA signature of a hash.
+   *
+   * @param hash the signed hash
+   * @param r the R component
+   * @param s the S component
+   * @param publicKey the public key, compressed or not
+   * @return true if the signature is valid
+   */
+  public static boolean verify(byte[] hash, BigInteger r, BigInteger s, byte[] publicKey) {
+    ECDSASigner verifier = new ECDSASigner();
+    verifier.init(false, new ECPublicKeyParameters(decodePoint(publicKey), DOMAIN));
+    return verifier.verifySignature(hash, r, s);
+  }
+}
@@ -5,12 +5,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import java.security.*;
 import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
 
 /**
  * Crypto utilities for Global Platform.
@@ -43,26 +38,13 @@ public class Crypto {
   public static byte[] deriveSCP02SessionKey(byte[] cardKey, byte[] seq, byte[] purposeData) {
     byte[] key24 = resizeKey24(cardKey);
 
-    try {
-      byte[] derivationData = new byte[16];
-      // 2 bytes constant
-      System.arraycopy(purposeData, 0, derivationData, 0, 2);
-      // 2 bytes sequence counter + 12 bytes 0x00
-      System.arraycopy(seq, 0, derivationData, 2, 2);
-
-      SecretKeySpec tmpKey = new SecretKeySpec(key24, "DESede");
-
-      Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding", "BC");
-      cipher.init(Cipher.ENCRYPT_MODE, tmpKey, new IvParameterSpec(NullBytes8));
-
-      return cipher.doFinal(derivationData);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new IllegalStateException("error generating session keys.", e);
-    } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
-      throw new RuntimeException("error generating session keys.", e);
-    } catch (NoSuchProviderException e) {
-      throw new RuntimeException("BouncyCastle not installed");
-    }
+    byte[] derivationData = new byte[16];
+    // 2 bytes constant
+    System.arraycopy(purposeData, 0, derivationData, 0, 2);
+    // 2 bytes sequence counter + 12 bytes 0x00
+    System.arraycopy(seq, 0, derivationData, 2, 2);
+
+    return CryptoBackend.get().des3CBCEncrypt(key24, NullBytes8, derivationData, 0, derivationData.length);
   }
 
   /**
@@ -108,28 +90,12 @@ public class Crypto {
    * @return the MAC
    */
   public static byte[] mac3des(byte[] keyData, byte[] data, byte[] iv) {
-    try {
-      SecretKeySpec key = new SecretKeySpec(resizeKey24(keyData), "DESede");
-      Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding", "BC");
-      cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-      byte[] result = cipher.doFinal(data, 0, 24);
-      byte[] tail = new byte[8];
-      System.arraycopy(result, 16, tail, 0, 8);
-      return tail;
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException("error calculating mac.", e);
-    }
+    byte[] result = CryptoBackend.get().des3CBCEncrypt(resizeKey24(keyData), iv, data, 0, 24);
+    return Arrays.copyOfRange(result, 16, 24);
   }
 
   public static byte[] ecb3des(byte[] key, byte[] data) {
-    try {
-      Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding", "BC");
-      SecretKeySpec keyDes = new SecretKeySpec(resizeKey24(key), "DES");
-      cipher.init(Cipher.ENCRYPT_MODE, keyDes);
-      return cipher.doFinal(data);
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException("Could not encrypt data", e);
-    }
+    return CryptoBackend.get().des3ECBEncrypt(resizeKey24(key), data);
   }
 
   public static byte[] kcv3des(byte[] key) {
@@ -145,28 +111,30 @@ public class Crypto {
    * @return the MAC
    */
   public static byte[] macFull3des(byte[] keyData, byte[] data, byte[] iv) {
-    try {
-      SecretKeySpec keyDes = new SecretKeySpec(resizeKey8(keyData), "DES");
-      Cipher cipherDes = Cipher.getInstance("DES/CBC/NoPadding", "BC");
-      cipherDes.init(Cipher.ENCRYPT_MODE, keyDes, new IvParameterSpec(iv));
-
-      SecretKeySpec keyDes3 = new SecretKeySpec(resizeKey24(keyData), "DESede");
-      Cipher cipherDes3 = Cipher.getInstance("DESede/CBC/NoPadding", "BC");
-      byte[] des3Iv = iv.clone();
-
-      if (data.length > 8) {
-        byte[] tmp = cipherDes.doFinal(data, 0, data.length - 8);
-        System.arraycopy(tmp, tmp.length - 8, des3Iv, 0, 8);
-      }
-
-      cipherDes3.init(Cipher.ENCRYPT_MODE, keyDes3, new IvParameterSpec(des3Iv));
-      byte[] result = cipherDes3.doFinal(data, data.length - 8, 8);
-      byte[] tail = new byte[8];
-      System.arraycopy(result, result.length - 8, tail, 0, 8);
-      return tail;
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException("error generating full triple DES MAC.", e);
+    return macFull3des(keyData, data, data.length, iv);
+  }
+
+  /**
+   * Generates a 3DES MAC for SCP02 communication over the first length bytes of the given buffer. The length must be
+   * a multiple of 8.
+   *
+   * @param keyData key
+   * @param data buffer containing the padded data to sign
+   * @param length the length of the padded data
+   * @param iv IV
+   * @return the MAC
+   */
+  public static byte[] macFull3des(byte[] keyData, byte[] data, int length, byte[] iv) {
+    CryptoBackend backend = CryptoBackend.get();
+    byte[] des3Iv = iv;
+
+    // single DES over all blocks but the last, triple DES over the last one
+    if (length > 8) {
+      byte[] tmp = backend.desCBCEncrypt(resizeKey8(keyData), iv, data, 0, length - 8);
+      des3Iv = Arrays.copyOfRange(tmp, tmp.length - 8, tmp.length);
     }
+
+    return backend.des3CBCEncrypt(resizeKey24(keyData), des3Iv, data, length - 8, 8);
   }
 
   /**
@@ -207,14 +175,7 @@ public class Crypto {
    * @return encrypted ICV
    */
   public static byte[] encryptICV(byte[] macKeyData, byte[] mac) {
-    try {
-      Cipher cipher = Cipher.getInstance("DES/ECB/NoPadding", "BC");
-      SecretKeySpec key = new SecretKeySpec(resizeKey8(macKeyData), "DES");
-      cipher.init(Cipher.ENCRYPT_MODE, key);
-      return cipher.doFinal(mac);
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException("error generating ICV.", e);
-    }
+    return CryptoBackend.get().desECBEncrypt(resizeKey8(macKeyData), mac);
   }
 
   /**
@@ -7,10 +7,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import ism.ase.ro.keycardlocal.util.io.APDUCommand;
 import ism.ase.ro.keycardlocal.util.io.APDUException;
 import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.AsyncCardChannel;
+import ism.ase.ro.keycardlocal.util.io.BatchPolicy;
+import ism.ase.ro.keycardlocal.util.io.BatchResult;
 import ism.ase.ro.keycardlocal.util.io.CardChannel;
 
 /**
@@ -37,6 +43,7 @@ public class GlobalPlatformCommandSet {
   private SecureChannel secureChannel;
   private SCP02Keys cardKeys;
   private Session session;
+  private final SecureRandom random;
 
   private final byte[] gpDefaultKey = Hex.decode("404142434445464748494a4b4c4d4e4f");
   private final SCP02Keys gpDefaultKeys = new SCP02Keys(gpDefaultKey, gpDefaultKey, gpDefaultKey);
@@ -49,7 +56,19 @@ public class GlobalPlatformCommandSet {
    * @param apduChannel the channel to the card
    */
   public GlobalPlatformCommandSet(CardChannel apduChannel) {
+    this(apduChannel, new SecureRandom());
+  }
+
+  /**
+   * Constructs a new command set with the given CardChannel, using the given source of randomness for the host
+   * challenge. A deterministic source makes the sent commands reproducible, which is needed to replay a recorded trace.
+   *
+   * @param apduChannel the channel to the card
+   * @param random the source of randomness
+   */
+  public GlobalPlatformCommandSet(CardChannel apduChannel, SecureRandom random) {
     this.apduChannel = apduChannel;
+    this.random = random;
     setCardKeys(developmentKey);
   }
 
@@ -153,7 +172,6 @@ public class GlobalPlatformCommandSet {
    * @throws IOException communication error
    */
   public void openSecureChannel(boolean autoUpgradeKeys) throws APDUException, IOException {
-    SecureRandom random = new SecureRandom();
     byte[] hostChallenge = new byte[8];
     random.nextBytes(hostChallenge);
     initializeUpdate(hostChallenge).checkOK();
@@ -281,6 +299,41 @@ public class GlobalPlatformCommandSet {
     delete(Identifiers.PACKAGE_AID, (byte) 0x80).checkSW(APDUResponse.SW_OK, APDUResponse.SW_REFERENCED_DATA_NOT_FOUND);
   }
 
+  /**
+   * Deletes all applet instances of the Keycard package, leaving the package itself. Instances which are not installed
+   * are ignored. All DELETE commands are sent as a single batch.
+   *
+   * @throws APDUException one of the DELETE commands failed
+   * @throws IOException communication error
+   */
+  public void deleteKeycardInstances() throws IOException, APDUException {
+    List<byte[]> aids = new ArrayList<>();
+    aids.add(Identifiers.getKeycardInstanceAID());
+    aids.add(Identifiers.CASH_INSTANCE_AID);
+    aids.add(Identifiers.NDEF_INSTANCE_AID);
+    aids.add(Identifiers.IDENT_INSTANCE_AID);
+
+    delete(aids, BatchPolicy.CONTINUE_ON_ERROR).checkSW(APDUResponse.SW_OK, APDUResponse.SW_REFERENCED_DATA_NOT_FOUND);
+  }
+
+  /**
+   * Sends a DELETE APDU for each of the given AIDs, as a single batch.
+   * @param aids the AIDs to delete
+   * @param policy whether to stop at the first failed DELETE or not
+   * @return the raw card responses
+   *
+   * @throws IOException communication error.
+   */
+  public BatchResult delete(List<byte[]> aids, BatchPolicy policy) throws IOException {
+    List<APDUCommand> cmds = new ArrayList<>(aids.size());
+
+    for (byte[] aid : aids) {
+      cmds.add(deleteCommand(aid, (byte) 0));
+    }
+
+    return this.secureChannel.sendBatch(cmds, policy);
+  }
+
   /**
    * Sends a DELETE APDU with the given AID
    * @param aid the AID to the delete
@@ -301,18 +354,22 @@ public class GlobalPlatformCommandSet {
    * @throws IOException communication error.
    */
   public APDUResponse delete(byte[] aid, byte p2) throws IOException {
+    return this.secureChannel.send(deleteCommand(aid, p2));
+  }
+
+  private APDUCommand deleteCommand(byte[] aid, byte p2) {
     byte[] data = new byte[aid.length + 2];
     data[0] = 0x4F;
     data[1] = (byte) aid.length;
     System.arraycopy(aid, 0, data, 2, aid.length);
 
-    APDUCommand cmd = new APDUCommand(0x80, INS_DELETE, 0, p2, data);
-
-    return this.secureChannel.send(cmd);
-  }  
+    return new APDUCommand(0x80, INS_DELETE, 0, p2, data);
+  }
 
   /**
-   * Loads the Keycard package.
+   * Loads the Keycard package using short LOAD commands, which every card supports. Cards known to support extended
+   * length APDUs can be loaded in fewer, larger blocks by passing Load.blockSizeFor(channel.getMaxCommandDataLength())
+   * as the block size.
    *
    * @param in the CAP file as an InputStream
    * @param cb the progress callback
@@ -321,15 +378,45 @@ public class GlobalPlatformCommandSet {
    * @throws APDUException one of the INSTALL [for Load] or LOAD commands failed
    */
   public void loadKeycardPackage(InputStream in, LoadCallback cb) throws IOException, APDUException {
+    loadKeycardPackage(in, cb, Load.BLOCK_SIZE);
+  }
+
+  /**
+   * Loads the Keycard package using the given block size. Blocks larger than 247 bytes require a channel and a card
+   * supporting extended length APDUs.
+   *
+   * @param in the CAP file as an InputStream
+   * @param cb the progress callback
+   * @param blockSize the size of the data sent with each LOAD command, excluding the MAC
+   *
+   * @throws IOException communication error
+   * @throws APDUException one of the INSTALL [for Load] or LOAD commands failed
+   */
+  public void loadKeycardPackage(InputStream in, LoadCallback cb, int blockSize) throws IOException, APDUException {
     installForLoad(Identifiers.PACKAGE_AID).checkOK();
 
-    Load load = new Load(in);
+    Load load = new Load(in, blockSize);
 
     byte[] block;
     int steps = load.blocksCount();
+    CompletableFuture<APDUResponse> pending = null;
 
+    // The next block is wrapped and queued before the response to the previous one is checked, so that the MAC
+    // computation overlaps with the card writing the previous block. A failed LOAD aborts the whole loading on the
+    // card, so the block already queued behind it is simply rejected.
     while((block = load.nextDataBlock()) != null) {
-      load(block, (load.getCount() - 1), load.hasMore()).checkOK();
+      CompletableFuture<APDUResponse> next = loadAsync(block, (load.getCount() - 1), load.hasMore());
+
+      if (pending != null) {
+        AsyncCardChannel.await(pending).checkOK();
+        cb.blockLoaded(load.getCount() - 1, steps);
+      }
+
+      pending = next;
+    }
+
+    if (pending != null) {
+      AsyncCardChannel.await(pending).checkOK();
       cb.blockLoaded(load.getCount(), steps);
     }
   }
@@ -387,6 +474,21 @@ public class GlobalPlatformCommandSet {
     return this.secureChannel.send(cmd);
   }
 
+  /**
+   * Queues a LOAD APDU without waiting for the response. The returned future completes once the card has processed
+   * the command. Use only if loading something other than the Keycard package.
+   *
+   * @param data the data of the block
+   * @param count the block number
+   * @param hasMoreBlocks whether there are more blocks coming or not
+   * @return a future completed with the card response
+   */
+  public CompletableFuture<APDUResponse> loadAsync(byte[] data, int count, boolean hasMoreBlocks) {
+    int p1 = hasMoreBlocks ? LOAD_P1_MORE_BLOCKS : LOAD_P1_LAST_BLOCK;
+    APDUCommand cmd = new APDUCommand(0x80, INS_LOAD, p1, count, data);
+    return this.secureChannel.sendAsync(cmd);
+  }
+
   /**
    * Sends an INSTALL [for Install & Make Selectable] command. Use only if not installing applets part of the Keycard
    * package
@@ -17,12 +17,14 @@ public class Load {
   static final byte INS = (byte) 0xE8;
 
   static final int BLOCK_SIZE = 247; // 255 - 8 bytes for MAC
+  static final int MAX_EXTENDED_BLOCK_SIZE = 2040; // 2048 - 8 bytes for MAC, conservative limit for the card buffer
 
   private static String[] fileNames = {"Header", "Directory", "Import", "Applet",
       "Class", "Method", "StaticField", "Export", "ConstantPool", "RefLocation"};
 
   private int offset;
   private int count;
+  private int blockSize;
   private byte[] fullData;
 
   /**
@@ -33,6 +35,24 @@ public class Load {
    * @throws IOException
    */
   public Load(InputStream in) throws FileNotFoundException, IOException {
+    this(in, BLOCK_SIZE);
+  }
+
+  /**
+   * Reads a CAP file from the given input stream, splitting it in blocks of the given size. Blocks larger than the
+   * default size require a channel supporting extended length APDUs.
+   *
+   * @param in the inpu stream
+   * @param blockSize the size of each block, excluding the MAC
+   * @throws FileNotFoundException
+   * @throws IOException
+   */
+  public Load(InputStream in, int blockSize) throws FileNotFoundException, IOException {
+    if (blockSize <= 0 || blockSize > MAX_EXTENDED_BLOCK_SIZE) {
+      throw new IllegalArgumentException("The block size must be between 1 and " + MAX_EXTENDED_BLOCK_SIZE);
+    }
+
+    this.blockSize = blockSize;
     this.offset = 0;
     this.count = 0;
     Map<String, byte[]> files = this.loadFiles(in);
@@ -77,13 +97,24 @@ public class Load {
     return parts[parts.length - 2];
   }
 
+  /**
+   * Returns the largest block size which can be sent over a channel with the given maximum command data length, keeping
+   * in account the overhead of SCP02 secure channel.
+   *
+   * @param maxCommandDataLength the maximum command data length of the channel
+   * @return the block size
+   */
+  public static int blockSizeFor(int maxCommandDataLength) {
+    return Math.max(BLOCK_SIZE, Math.min(maxCommandDataLength - 8, MAX_EXTENDED_BLOCK_SIZE));
+  }
+
   /**
    * Counts the number of blocks needed to load the entire file. Keeps in account the overhead of SCP02 secure channel
    *
    * @return the block count
    */
   public int blocksCount() {
-    return (int) Math.ceil(this.fullData.length / (float) BLOCK_SIZE);
+    return (int) Math.ceil(this.fullData.length / (float) this.blockSize);
   }
 
   /**
@@ -96,7 +127,7 @@ public class Load {
       return null;
     }
 
-    int rangeEnd = this.offset + BLOCK_SIZE;
+    int rangeEnd = this.offset + this.blockSize;
     if (rangeEnd >= this.fullData.length) {
       rangeEnd = this.fullData.length;
     }
@@ -0,0 +1,109 @@
+package ism.ase.ro.keycardlocal.util.globalplatform;
+
+import java.util.Arrays;
+
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.BufferPool;
+
+
+/**
+ * Adds a SCP02 MAC to APDUs.
+ */
+public class SCP02Wrapper {
+  private byte[] macKeyData;
+  private byte[] icv;
+  private byte[] macBuffer;
+
+  /**
+   * Constructs a new SCP02Wrapper.
+   *
+   * @param macKeyData the MAC key
+   */
+  public SCP02Wrapper(byte[] macKeyData) {
+    this.macKeyData = macKeyData;
+    this.icv = Crypto.NullBytes8.clone();
+    this.macBuffer = new byte[BufferPool.SHORT_APDU_BUFFER_SIZE + 8];
+  }
+
+  /**
+   * Wraps an APDU with SCP02 MAC
+   * @param cmd the APDU to wrap
+   * @return the wrapped APDU
+   */
+  public APDUCommand wrap(APDUCommand cmd) {
+    int cla = (cmd.getCla() | 0x04) & 0xff;
+    byte[] data = cmd.getData();
+    int wrappedLength = data.length + 8;
+    boolean extendedLength = cmd.isExtendedLength() || wrappedLength > APDUCommand.MAX_SHORT_DATA_LENGTH;
+
+    int macLength = macDataLength(data.length, extendedLength);
+
+    if (macBuffer.length < macLength) {
+      macBuffer = new byte[macLength];
+    }
+
+    int off = 0;
+    macBuffer[off++] = (byte) cla;
+    macBuffer[off++] = (byte) cmd.getIns();
+    macBuffer[off++] = (byte) cmd.getP1();
+    macBuffer[off++] = (byte) cmd.getP2();
+
+    if (extendedLength) {
+      macBuffer[off++] = 0;
+      macBuffer[off++] = (byte) (wrappedLength >> 8);
+    }
+
+    macBuffer[off++] = (byte) wrappedLength;
+    System.arraycopy(data, 0, macBuffer, off, data.length);
+    off += data.length;
+
+    // DES padding, in place
+    macBuffer[off++] = (byte) 0x80;
+    Arrays.fill(macBuffer, off, macLength, (byte) 0x00);
+
+    byte[] icv;
+    if (Arrays.equals(this.icv, Crypto.NullBytes8)) {
+      icv = this.icv;
+    } else {
+      icv = Crypto.encryptICV(this.macKeyData, this.icv);
+    }
+
+    byte[] mac = Crypto.macFull3des(this.macKeyData, macBuffer, macLength, icv);
+    byte[] newData = Arrays.copyOf(data, wrappedLength);
+    System.arraycopy(mac, 0, newData, data.length, mac.length);
+
+    APDUCommand wrapped = new APDUCommand(cla, cmd.getIns(), cmd.getP1(), cmd.getP2(), newData, cmd.getNeedsLE(), extendedLength);
+    this.icv = mac;
+
+    return wrapped;
+  }
+
+  /**
+   * Length of the padded data covered by the MAC: header, Lc and data, padded to a multiple of 8 bytes.
+   *
+   * @param dataLength the length of the unwrapped data
+   * @param extendedLength whether the Lc is encoded on 3 bytes
+   * @return the padded length
+   */
+  private static int macDataLength(int dataLength, boolean extendedLength) {
+    int length = 4 + (extendedLength ? 3 : 1) + dataLength;
+    return length + (8 - (length % 8));
+  }
+
+  /**
+   * Sets the ICV. Used to resynchronize with the card when commands which have already been wrapped are never sent.
+   *
+   * @param icv the MAC of the last command received by the card
+   */
+  void setICV(byte[] icv) {
+    this.icv = icv;
+  }
+
+  /**
+   * Returns the ICV
+   * @return the ICV
+   */
+  public byte[] getICV() {
+    return this.icv;
+  }
+}
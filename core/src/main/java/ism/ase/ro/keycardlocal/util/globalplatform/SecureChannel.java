@@ -1,10 +1,16 @@
 package ism.ase.ro.keycardlocal.util.globalplatform;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import ism.ase.ro.keycardlocal.util.io.APDUCommand;
 import ism.ase.ro.keycardlocal.util.io.APDUException;
 import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.BatchPolicy;
+import ism.ase.ro.keycardlocal.util.io.BatchResult;
 import ism.ase.ro.keycardlocal.util.io.CardChannel;
 
 /**
@@ -30,18 +36,60 @@ public class SecureChannel {
   }
 
   /**
-   * Protects the given command with SCP02 and forwards it to the underlying CardChannel.
+   * Protects the given command with SCP02 and forwards it to the underlying CardChannel. The lock is held until the
+   * response arrives, so that commands reach the card in the same order their MACs were chained.
    *
    * @param cmd the command to send
    * @return the response from the card
    *
    * @throws IOException communication error
    */
-  public APDUResponse send(APDUCommand cmd) throws IOException {
+  public synchronized APDUResponse send(APDUCommand cmd) throws IOException {
     APDUCommand wrappedCommand = this.wrapper.wrap(cmd);
     return this.channel.send(wrappedCommand);
   }
 
+  /**
+   * Protects the given command with SCP02 and queues it on the underlying CardChannel. The MAC only depends on the
+   * previously wrapped commands, so it is computed on the calling thread and can overlap with the card executing the
+   * previous command.
+   *
+   * @param cmd the command to send
+   * @return a future completed with the response from the card
+   */
+  public synchronized CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    APDUCommand wrappedCommand = this.wrapper.wrap(cmd);
+    return this.channel.sendAsync(wrappedCommand);
+  }
+
+  /**
+   * Protects all given commands with SCP02 and sends them as a single batch on the underlying CardChannel. Since each
+   * MAC only depends on the previous command, all commands are wrapped before the first one is sent. If the batch
+   * stops early, the ICV is reset to the MAC of the last command the card received.
+   *
+   * @param cmds the commands to send
+   * @param policy what to do when a command fails
+   * @return the responses from the card
+   *
+   * @throws IOException communication error
+   */
+  public synchronized BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    List<APDUCommand> wrapped = new ArrayList<>(cmds.size());
+
+    for (APDUCommand cmd : cmds) {
+      wrapped.add(this.wrapper.wrap(cmd));
+    }
+
+    BatchResult result = this.channel.sendBatch(wrapped, policy);
+
+    if (!result.isComplete() && !result.getResponses().isEmpty()) {
+      byte[] lastSent = wrapped.get(result.getResponses().size() - 1).getData();
+      this.wrapper.setICV(Arrays.copyOfRange(lastSent, lastSent.length - 8, lastSent.length));
+    }
+
+    return result;
+  }
+
   /**
    * Verifies the card challenge and builds an SCP02 session object.
    *
@@ -0,0 +1,245 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ISO7816-4 APDU. Commands with more than 255 bytes of data are automatically serialized using the extended length
+ * encoding (3-byte Lc, 2-byte Le).
+ */
+public class APDUCommand {
+  public static final int MAX_SHORT_DATA_LENGTH = 255;
+  public static final int MAX_EXTENDED_DATA_LENGTH = 65535;
+
+  protected int cla;
+  protected int ins;
+  protected int p1;
+  protected int p2;
+  protected int lc;
+  protected byte[] data;
+  protected boolean needsLE;
+  protected boolean extendedLength;
+  protected int le;
+
+  /**
+   * Constructs an APDU with no response data length field. The data field cannot be null, but can be a zero-length array.
+   *
+   * @param cla class byte
+   * @param ins instruction code
+   * @param p1 P1 parameter
+   * @param p2 P2 parameter
+   * @param data the APDU data
+   */
+  public APDUCommand(int cla, int ins, int p1, int p2, byte[] data) {
+    this(cla, ins, p1, p2, data, false);
+  }
+
+  /**
+   * Constructs an APDU with an optional data length field. The data field cannot be null, but can be a zero-length array.
+   * The LE byte, if sent, is set to 0.
+   *
+   * @param cla class byte
+   * @param ins instruction code
+   * @param p1 P1 parameter
+   * @param p2 P2 parameter
+   * @param data the APDU data
+   * @param needsLE whether the LE byte should be sent or not
+   */
+  public APDUCommand(int cla, int ins, int p1, int p2, byte[] data, boolean needsLE) {
+    this(cla, ins, p1, p2, data, needsLE, false);
+  }
+
+  /**
+   * Constructs an APDU with an optional data length field, optionally forcing the extended length encoding. Forcing
+   * the extended encoding is only needed to request responses longer than 256 bytes, since commands with more than
+   * 255 bytes of data always use it. The LE, if sent, is set to 0 (meaning 65536 bytes in extended length mode).
+   *
+   * @param cla class byte
+   * @param ins instruction code
+   * @param p1 P1 parameter
+   * @param p2 P2 parameter
+   * @param data the APDU data
+   * @param needsLE whether the LE byte should be sent or not
+   * @param extendedLength whether the extended length encoding must be used regardless of the data length
+   */
+  public APDUCommand(int cla, int ins, int p1, int p2, byte[] data, boolean needsLE, boolean extendedLength) {
+    if (data.length > MAX_EXTENDED_DATA_LENGTH) {
+      throw new IllegalArgumentException("APDU data cannot be longer than " + MAX_EXTENDED_DATA_LENGTH + " bytes");
+    }
+
+    this.cla = cla & 0xff;
+    this.ins = ins & 0xff;
+    this.p1 = p1 & 0xff;
+    this.p2 = p2 & 0xff;
+    this.data = data;
+    this.needsLE = needsLE;
+    this.extendedLength = extendedLength;
+    this.le = 0;
+  }
+
+  /**
+   * Constructs an APDU expecting a response of the given length. Lengths above 256 bytes are only possible using the
+   * extended length encoding, which is then used automatically.
+   *
+   * @param cla class byte
+   * @param ins instruction code
+   * @param p1 P1 parameter
+   * @param p2 P2 parameter
+   * @param data the APDU data
+   * @param le the expected response length, between 1 and 65536
+   */
+  public APDUCommand(int cla, int ins, int p1, int p2, byte[] data, int le) {
+    this(cla, ins, p1, p2, data, true, le > MAX_SHORT_DATA_LENGTH + 1);
+
+    if (le < 1 || le > MAX_EXTENDED_DATA_LENGTH + 1) {
+      throw new IllegalArgumentException("The expected response length must be between 1 and " + (MAX_EXTENDED_DATA_LENGTH + 1));
+    }
+
+    this.le = le;
+  }
+
+  /**
+   * Serializes the APDU in order to send it to the card.
+   *
+   * @return the byte array representation of the APDU
+   */
+  public byte[] serialize() throws IOException {
+    byte[] out = new byte[getSerializedLength()];
+    serializeInto(ByteBuffer.wrap(out));
+    return out;
+  }
+
+  /**
+   * Serializes the APDU into the given buffer, starting at its current position. The position is advanced by the
+   * number of bytes written. No intermediate buffer is allocated, which makes this the preferred method for channels
+   * reusing their transmit buffers.
+   *
+   * @param out the buffer to write to
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if the buffer has less than getSerializedLength() bytes remaining
+   */
+  public int serializeInto(ByteBuffer out) {
+    int start = out.position();
+
+    out.put((byte) this.cla);
+    out.put((byte) this.ins);
+    out.put((byte) this.p1);
+    out.put((byte) this.p2);
+
+    if (isExtendedLength()) {
+      out.put((byte) 0);
+
+      if (this.data.length > 0) {
+        out.put((byte) (this.data.length >> 8));
+        out.put((byte) this.data.length);
+        out.put(this.data);
+      }
+
+      if (this.needsLE) {
+        out.put((byte) (this.le >> 8)); // Response length
+        out.put((byte) this.le);
+      }
+    } else {
+      if (this.data.length > 0 || !this.needsLE) {
+        out.put((byte) this.data.length);
+        out.put(this.data);
+      }
+
+      if (this.needsLE) {
+        out.put((byte) this.le); // Response length
+      }
+    }
+
+    return out.position() - start;
+  }
+
+  /**
+   * Returns the length of the serialized APDU.
+   *
+   * @return the number of bytes written by serialize() and serializeInto()
+   */
+  public int getSerializedLength() {
+    int length = 4;
+
+    if (isExtendedLength()) {
+      length += 1 + (this.data.length > 0 ? (2 + this.data.length) : 0) + (this.needsLE ? 2 : 0);
+    } else {
+      length += ((this.data.length > 0 || !this.needsLE) ? (1 + this.data.length) : 0) + (this.needsLE ? 1 : 0);
+    }
+
+    return length;
+  }
+
+  /**
+   * Returns whether the APDU is serialized using the extended length encoding. This is the case if it has been
+   * explicitly requested or if the data is longer than 255 bytes.
+   *
+   * @return true if the APDU uses the extended length encoding
+   */
+  public boolean isExtendedLength() {
+    return (this.extendedLength && (this.needsLE || this.data.length > 0)) || this.data.length > MAX_SHORT_DATA_LENGTH;
+  }
+
+  /**
+   * Returns the CLA of the APDU
+   *
+   * @return the CLA of the APDU
+   */
+  public int getCla() {
+    return cla;
+  }
+
+  /**
+   * Returns the INS of the APDU
+   *
+   * @return the INS of the APDU
+   */
+  public int getIns() {
+    return ins;
+  }
+
+  /**
+   * Returns the P1 of the APDU
+   *
+   * @return the P1 of the APDU
+   */
+  public int getP1() {
+    return p1;
+  }
+
+  /**
+   * Returns the P2 of the APDU
+   *
+   * @return the P2 of the APDU
+   */
+  public int getP2() {
+    return p2;
+  }
+
+  /**
+   * Returns the data field of the APDU
+   *
+   * @return the data field of the APDU
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Returns whether LE is sent or not.
+   *
+   * @return whether LE is sent or not
+   */
+  public boolean getNeedsLE() {
+    return this.needsLE;
+  }
+
+  /**
+   * Returns the expected response length. Zero means the maximum length allowed by the encoding (256 or 65536 bytes).
+   *
+   * @return the expected response length
+   */
+  public int getLe() {
+    return this.le;
+  }
+}
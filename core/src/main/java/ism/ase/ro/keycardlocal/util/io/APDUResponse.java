@@ -1,7 +1,10 @@
 package ism.ase.ro.keycardlocal.util.io;
 
+import java.nio.ByteBuffer;
+
 /**
- * ISO7816-4 APDU response.
+ * ISO7816-4 APDU response. The data field can have any length, including the up to 65536 bytes allowed by extended
+ * length APDUs.
  */
 public class APDUResponse {
   public static final int SW_OK = 0x9000;
@@ -11,38 +14,69 @@ public class APDUResponse {
   public static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
   public static final int SW_CONDITIONS_OF_USE_NOT_SATISFIED = 0x6985; // applet may be already installed
   public static final int SW_WRONG_PIN_MASK = 0x63C0;
+  public static final int SW_WRONG_LENGTH = 0x6700;
 
   private byte[] apdu;
+  private int offset;
+  private int length;
   private byte[] data;
   private int sw;
   private int sw1;
   private int sw2;
 
   /**
-   * Creates an APDU object by parsing the raw response from the card.
+   * Creates an APDU object by parsing the raw response from the card. The array is not copied and must not be
+   * modified afterwards.
    *
    * @param apdu the raw response from the card.
    */
   public APDUResponse(byte[] apdu)  {
-    if (apdu.length < 2) {
+    this(apdu, 0, apdu.length);
+  }
+
+  private APDUResponse(byte[] apdu, int offset, int length) {
+    if (length < 2) {
       throw new IllegalArgumentException("APDU response must be at least 2 bytes");
     }
     this.apdu = apdu;
+    this.offset = offset;
+    this.length = length;
     this.parse();
   }
 
   /**
-   * Parses the APDU response, separating the response data from SW.
+   * Creates an APDU object from the given number of bytes, starting at the current position of the buffer. If the
+   * buffer is backed by an accessible array, no copy is made: ownership of that region passes to the returned object
+   * and it must not be modified afterwards. The position of the buffer is advanced past the response.
+   *
+   * @param buffer the buffer containing the raw response
+   * @param length the length of the raw response
+   * @return the response
+   */
+  public static APDUResponse wrap(ByteBuffer buffer, int length) {
+    APDUResponse response;
+
+    if (buffer.hasArray()) {
+      response = new APDUResponse(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] apdu = new byte[length];
+      buffer.get(apdu);
+      response = new APDUResponse(apdu);
+    }
+
+    return response;
+  }
+
+  /**
+   * Parses the APDU response, separating the response data from SW. The data field itself is only copied on demand.
    */
   private void parse() {
-    int length = this.apdu.length;
+    int end = this.offset + this.length;
 
-    this.sw1 = this.apdu[length - 2] & 0xff;
-    this.sw2 = this.apdu[length - 1] & 0xff;
+    this.sw1 = this.apdu[end - 2] & 0xff;
+    this.sw2 = this.apdu[end - 1] & 0xff;
     this.sw = (this.sw1 << 8) | this.sw2;
-
-    this.data = new byte[length - 2];
-    System.arraycopy(this.apdu, 0, this.data, 0, length - 2);
   }
 
   /**
@@ -83,6 +117,8 @@ public class APDUResponse {
         throw new APDUException(this.sw, "security condition not satisfied");
       case SW_AUTHENTICATION_METHOD_BLOCKED:
         throw new APDUException(this.sw, "authentication method blocked");
+      case SW_WRONG_LENGTH:
+        throw new APDUException(this.sw, "wrong length");
       default:
         throw new APDUException(this.sw,  "Unexpected error SW");
     }
@@ -137,9 +173,32 @@ public class APDUResponse {
    * @return the data field of this APDU
    */
   public byte[] getData() {
+    if (this.data == null) {
+      this.data = new byte[this.length - 2];
+      System.arraycopy(this.apdu, this.offset, this.data, 0, this.length - 2);
+    }
+
     return this.data;
   }
 
+  /**
+   * Returns a read-only view of the data field of this APDU. Unlike getData(), this never copies the data.
+   *
+   * @return a read-only view of the data field
+   */
+  public ByteBuffer getDataBuffer() {
+    return ByteBuffer.wrap(this.apdu, this.offset, this.length - 2).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the length of the data field of this APDU.
+   *
+   * @return the length of the data field
+   */
+  public int getDataLength() {
+    return this.length - 2;
+  }
+
   /**
    * Returns the Status Word.
    *
@@ -171,6 +230,13 @@ public class APDUResponse {
    * @return raw APDU data
    */
   public byte[] getBytes() {
+    if (this.offset != 0 || this.length != this.apdu.length) {
+      byte[] raw = new byte[this.length];
+      System.arraycopy(this.apdu, this.offset, raw, 0, this.length);
+      this.apdu = raw;
+      this.offset = 0;
+    }
+
     return this.apdu;
   }
 }
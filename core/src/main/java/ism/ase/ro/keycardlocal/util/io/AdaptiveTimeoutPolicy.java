@@ -0,0 +1,192 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes a transceive deadline for each command from the latencies observed so far for the same CLA/INS/P1. Until
+ * enough samples are collected a static default is used, generous for the instructions known to keep the card busy
+ * (key generation, INIT, applet loading and installation) and shorter for everything else. Once learned, the timeout is
+ * a multiple of the 99th percentile latency, clamped between a minimum and a maximum. The cost of some instructions
+ * depends on more than their P1, such as the depth of the derivation path, so their learned timeout never drops below
+ * the default.
+ *
+ * A timeout doubles the deadline of the command which caused it, up to the maximum, so that a command legitimately
+ * slower than what was learned gets a longer deadline when it is retried, provided the channel survives the timeout.
+ * The first successful response resets the back-off.
+ *
+ * A single policy is meant to be shared by the channels of successive connections, so that what was learned survives
+ * reconnections.
+ */
+public class AdaptiveTimeoutPolicy {
+  public static final int DEFAULT_MIN_TIMEOUT_MS = 200;
+  public static final int DEFAULT_MAX_TIMEOUT_MS = 120000;
+  public static final int DEFAULT_TIMEOUT_MS = 5000;
+  public static final int SLOW_COMMAND_TIMEOUT_MS = 30000;
+  public static final double DEFAULT_MULTIPLIER = 4.0;
+
+  static final int MIN_SAMPLES = 8;
+  static final int RECOMPUTE_INTERVAL = 16;
+
+  private static final int[] SLOW_INS = new int[]{
+      0xFE, // INIT
+      0xFD, // FACTORY RESET
+      0xD0, // LOAD KEY
+      0xD2, // GENERATE MNEMONIC
+      0xD4, // GENERATE KEY
+      0xE4, // DELETE
+      0xE6, // INSTALL
+      0xE8, // LOAD
+  };
+
+  private static final int[] VARIABLE_COST_INS = new int[]{
+      0xC0, // SIGN
+      0xC2, // EXPORT KEY
+      0xD1, // DERIVE KEY
+      0x12, // PAIR
+      0x21, // CHANGE PIN
+  };
+
+  private static final int MAX_BACKOFF = 16;
+
+  private final int minTimeoutMS;
+  private final int maxTimeoutMS;
+  private final double multiplier;
+  private final ConcurrentHashMap<Integer, Entry> entries;
+
+  private static final class Entry {
+    final LatencyHistogram latency = new LatencyHistogram();
+    volatile int learnedTimeoutMS;
+    volatile int backoff;
+  }
+
+  /**
+   * Creates a policy with the default bounds and multiplier.
+   */
+  public AdaptiveTimeoutPolicy() {
+    this(DEFAULT_MIN_TIMEOUT_MS, DEFAULT_MAX_TIMEOUT_MS, DEFAULT_MULTIPLIER);
+  }
+
+  /**
+   * Creates a policy with the given bounds and multiplier.
+   *
+   * @param minTimeoutMS the shortest timeout ever returned
+   * @param maxTimeoutMS the longest timeout ever returned
+   * @param multiplier the factor applied to the 99th percentile latency
+   */
+  public AdaptiveTimeoutPolicy(int minTimeoutMS, int maxTimeoutMS, double multiplier) {
+    if (minTimeoutMS <= 0 || maxTimeoutMS < minTimeoutMS || multiplier < 1.0) {
+      throw new IllegalArgumentException("Invalid timeout bounds or multiplier");
+    }
+
+    this.minTimeoutMS = minTimeoutMS;
+    this.maxTimeoutMS = maxTimeoutMS;
+    this.multiplier = multiplier;
+    this.entries = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the timeout to use for the given command.
+   *
+   * @param cmd the command about to be sent
+   * @return the timeout in milliseconds
+   */
+  public int getTimeoutMillis(APDUCommand cmd) {
+    Entry entry = entries.get(key(cmd));
+    int timeout = (entry == null || entry.learnedTimeoutMS == 0) ? defaultTimeoutMillis(cmd.getIns()) : entry.learnedTimeoutMS;
+
+    if (entry != null && entry.backoff > 0) {
+      timeout = (int) Math.min((long) timeout << entry.backoff, maxTimeoutMS);
+    }
+
+    return timeout;
+  }
+
+  /**
+   * Records the latency of a command which received a response.
+   *
+   * @param cmd the command
+   * @param elapsedNanos the time between sending the command and receiving the response
+   */
+  public void recordLatency(APDUCommand cmd, long elapsedNanos) {
+    Entry entry = entries.computeIfAbsent(key(cmd), k -> new Entry());
+    entry.latency.record(elapsedNanos);
+    entry.backoff = 0;
+
+    long count = entry.latency.getCount();
+
+    if (count == MIN_SAMPLES || (count > MIN_SAMPLES && (count % RECOMPUTE_INTERVAL) == 0)) {
+      long p99 = TimeUnit.NANOSECONDS.toMillis(entry.latency.snapshot().getValueAtPercentile(99));
+      long learned = Math.max(minTimeoutMS, Math.min(maxTimeoutMS, (long) Math.ceil(p99 * multiplier)));
+
+      if (contains(VARIABLE_COST_INS, cmd.getIns())) {
+        learned = Math.max(learned, defaultTimeoutMillis(cmd.getIns()));
+      }
+
+      entry.learnedTimeoutMS = (int) learned;
+    }
+  }
+
+  /**
+   * Records that a command did not receive a response in time. The next deadline for the same command is doubled.
+   *
+   * @param cmd the command
+   */
+  public void recordTimeout(APDUCommand cmd) {
+    Entry entry = entries.computeIfAbsent(key(cmd), k -> new Entry());
+
+    if (entry.backoff < MAX_BACKOFF) {
+      entry.backoff++;
+    }
+  }
+
+  /**
+   * Forgets all learned latencies.
+   */
+  public void reset() {
+    entries.clear();
+  }
+
+  /**
+   * The timeout used for commands with no or too few samples.
+   *
+   * @param ins the instruction byte
+   * @return the timeout in milliseconds
+   */
+  public int defaultTimeoutMillis(int ins) {
+    if (contains(SLOW_INS, ins)) {
+      return Math.min(SLOW_COMMAND_TIMEOUT_MS, maxTimeoutMS);
+    }
+
+    return Math.max(minTimeoutMS, Math.min(DEFAULT_TIMEOUT_MS, maxTimeoutMS));
+  }
+
+  private static boolean contains(int[] instructions, int ins) {
+    for (int i : instructions) {
+      if (i == (ins & 0xff)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The statistics are kept per CLA/INS/P1, since P1 often selects a different operation of the same instruction.
+   *
+   * @param cmd the command
+   * @return the key, (ChannelMetrics.commandKey(cmd) << 8) | P1
+   */
+  static int key(APDUCommand cmd) {
+    return (ChannelMetrics.commandKey(cmd) << 8) | (cmd.getP1() & 0xff);
+  }
+
+  /**
+   * The longest timeout this policy returns, to be used when the command is not known in advance.
+   *
+   * @return the maximum timeout in milliseconds
+   */
+  public int getMaxTimeoutMillis() {
+    return maxTimeoutMS;
+  }
+}
@@ -0,0 +1,141 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A CardChannel decorator which serializes all commands to a physical card through a single command thread. Commands
+ * are queued by sendAsync() and transmitted one at a time, in submission order, so the caller is free to perform
+ * host-side work such as computing the MAC of the next command while the card executes the current one. The blocking
+ * send() method goes through the same queue and therefore never overtakes pending asynchronous commands.
+ *
+ * The channel must be closed when the card is disconnected to release the command thread.
+ */
+public class AsyncCardChannel implements CardChannel {
+  private final CardChannel channel;
+  private final ExecutorService executor;
+  private volatile Thread commandThread;
+
+  /**
+   * Wraps the given channel.
+   *
+   * @param channel the channel to wrap
+   */
+  public AsyncCardChannel(CardChannel channel) {
+    this.channel = channel;
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "CardChannel-commands");
+      t.setDaemon(true);
+      commandThread = t;
+      return t;
+    });
+  }
+
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    return submit(() -> channel.send(cmd));
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    if (Thread.currentThread() == commandThread) {
+      // called from a completion stage running on the command thread, waiting on the queue would deadlock
+      return channel.send(cmd);
+    }
+
+    return await(sendAsync(cmd));
+  }
+
+  /**
+   * Queues the whole batch as a single task, so that no other command can be interleaved with it.
+   *
+   * @param cmds the commands to send
+   * @param policy what to do when a command fails
+   * @return a future completed with the responses and timing of the batch
+   */
+  public CompletableFuture<BatchResult> sendBatchAsync(List<APDUCommand> cmds, BatchPolicy policy) {
+    return submit(() -> channel.sendBatch(cmds, policy));
+  }
+
+  @Override
+  public BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    if (Thread.currentThread() == commandThread) {
+      return channel.sendBatch(cmds, policy);
+    }
+
+    return await(sendBatchAsync(cmds, policy));
+  }
+
+  private <T> CompletableFuture<T> submit(Callable<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(task.call());
+        } catch (Exception e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(new IOException("Channel closed", e));
+    }
+
+    return future;
+  }
+
+  /**
+   * Waits for the given future, unwrapping the communication error if it completed exceptionally.
+   *
+   * @param future the future returned by sendAsync() or sendBatchAsync()
+   * @return the card response
+   * @throws IOException communication error, or the wait was interrupted
+   */
+  public static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the card response");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  /**
+   * Stops the command thread. Commands already queued are still transmitted, later ones fail with an IOException.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return channel.getMaxCommandDataLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+}
@@ -0,0 +1,17 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+/**
+ * Determines how a batch of commands reacts to a response with a SW other than 0x9000. Communication errors always
+ * abort the batch, since the state of the card is unknown after them.
+ */
+public enum BatchPolicy {
+  /**
+   * The batch stops after the first response with a SW other than 0x9000. The remaining commands are not sent.
+   */
+  STOP_ON_ERROR,
+
+  /**
+   * All commands are sent regardless of the SW of the previous responses.
+   */
+  CONTINUE_ON_ERROR
+}
@@ -0,0 +1,124 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a batch of commands sent with CardChannel.sendBatch(). Holds the responses in command order and a
+ * single timing record for the whole batch. If the batch was stopped early, there are fewer responses than commands.
+ */
+public class BatchResult {
+  private final List<APDUResponse> responses;
+  private final int commandCount;
+  private final long elapsedNanos;
+  private final int errorCount;
+
+  /**
+   * Creates a batch result.
+   *
+   * @param responses the responses, in command order
+   * @param commandCount the number of commands in the batch
+   * @param elapsedNanos the time spent sending the batch, in nanoseconds
+   */
+  public BatchResult(List<APDUResponse> responses, int commandCount, long elapsedNanos) {
+    this.responses = Collections.unmodifiableList(responses);
+    this.commandCount = commandCount;
+    this.elapsedNanos = elapsedNanos;
+
+    int errors = 0;
+
+    for (APDUResponse response : responses) {
+      if (!response.isOK()) {
+        errors++;
+      }
+    }
+
+    this.errorCount = errors;
+  }
+
+  /**
+   * Returns the responses, in command order.
+   *
+   * @return the responses
+   */
+  public List<APDUResponse> getResponses() {
+    return responses;
+  }
+
+  /**
+   * Returns the response to the command at the given index.
+   *
+   * @param index the index of the command in the batch
+   * @return the response
+   * @throws IndexOutOfBoundsException if the command was not sent because the batch stopped early
+   */
+  public APDUResponse get(int index) {
+    return responses.get(index);
+  }
+
+  /**
+   * Returns the number of commands in the batch.
+   *
+   * @return the number of commands
+   */
+  public int getCommandCount() {
+    return commandCount;
+  }
+
+  /**
+   * Returns true if all commands of the batch have been sent.
+   *
+   * @return true if all commands have been sent
+   */
+  public boolean isComplete() {
+    return responses.size() == commandCount;
+  }
+
+  /**
+   * Returns the number of responses with a SW other than 0x9000.
+   *
+   * @return the number of error responses
+   */
+  public int getErrorCount() {
+    return errorCount;
+  }
+
+  /**
+   * Returns the time spent sending the whole batch.
+   *
+   * @return the elapsed time in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Asserts that all commands have been sent and all SWs are 0x9000. Throws an exception if they aren't.
+   *
+   * @return this object, to simplify chaining
+   * @throws APDUException if a SW is not 0x9000 or the batch did not complete
+   */
+  public BatchResult checkOK() throws APDUException {
+    return checkSW(APDUResponse.SW_OK);
+  }
+
+  /**
+   * Asserts that all commands have been sent and all SWs are contained in the given list. Throws an exception if they
+   * aren't.
+   *
+   * @param codes the list of SWs to match.
+   * @return this object, to simplify chaining
+   * @throws APDUException if a SW is not in the list or the batch did not complete
+   */
+  public BatchResult checkSW(int... codes) throws APDUException {
+    for (APDUResponse response : responses) {
+      response.checkSW(codes);
+    }
+
+    if (!isComplete()) {
+      throw new APDUException("Batch stopped after " + responses.size() + " of " + commandCount + " commands");
+    }
+
+    return this;
+  }
+}
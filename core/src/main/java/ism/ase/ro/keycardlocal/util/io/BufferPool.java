@@ -0,0 +1,102 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of reusable byte buffers of fixed capacity. Channels and secure channel wrappers use it to serialize
+ * APDUs without allocating a new buffer for each command. Buffers larger than the pooled capacity can still be
+ * requested, but they are allocated on demand and never retained.
+ */
+public class BufferPool {
+  /**
+   * Capacity large enough for any short APDU: header, Lc, 255 bytes of data and Le.
+   */
+  public static final int SHORT_APDU_BUFFER_SIZE = 4 + 1 + APDUCommand.MAX_SHORT_DATA_LENGTH + 1;
+
+  private static final int DEFAULT_MAX_POOLED = 4;
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final ArrayDeque<ByteBuffer> free;
+
+  /**
+   * Creates a pool of buffers large enough for any short APDU.
+   */
+  public BufferPool() {
+    this(SHORT_APDU_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+  }
+
+  /**
+   * Creates a pool of buffers with the given capacity.
+   *
+   * @param bufferSize the capacity of the pooled buffers
+   * @param maxPooled the maximum number of idle buffers kept by the pool
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.free = new ArrayDeque<>(maxPooled);
+  }
+
+  /**
+   * Returns a cleared buffer with at least the pooled capacity.
+   *
+   * @return the buffer
+   */
+  public ByteBuffer acquire() {
+    return acquire(bufferSize);
+  }
+
+  /**
+   * Returns a cleared buffer with at least the given capacity. Requests above the pooled capacity are served by a
+   * newly allocated buffer.
+   *
+   * @param capacity the minimum capacity
+   * @return the buffer
+   */
+  public ByteBuffer acquire(int capacity) {
+    if (capacity > bufferSize) {
+      return ByteBuffer.allocate(capacity);
+    }
+
+    ByteBuffer buffer;
+
+    synchronized (free) {
+      buffer = free.pollFirst();
+    }
+
+    if (buffer == null) {
+      return ByteBuffer.allocate(bufferSize);
+    }
+
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers not allocated by this pool are ignored.
+   *
+   * @param buffer the buffer to release
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize) {
+      return;
+    }
+
+    synchronized (free) {
+      if (free.size() < maxPooled) {
+        free.offerFirst(buffer);
+      }
+    }
+  }
+
+  /**
+   * The capacity of the pooled buffers.
+   *
+   * @return the capacity of the pooled buffers
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
@@ -0,0 +1,107 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A channel to transcieve ISO7816-4 APDUs.
+ */
+public interface CardChannel {
+  /**
+   * Sends the given C-APDU and returns an R-APDU.
+   *
+   * @param cmd the command to send
+   * @return the card response
+   * @throws IOException communication error
+   */
+  APDUResponse send(APDUCommand cmd) throws IOException;
+
+  /**
+   * Sends the given C-APDU without waiting for the R-APDU. Commands sent through this method reach the card in the
+   * order in which this method was called. The default implementation sends the command synchronously and returns an
+   * already completed future. Channels backed by a command executor, such as AsyncCardChannel, return immediately so
+   * that the caller can prepare the next command while the card executes the current one.
+   *
+   * @param cmd the command to send
+   * @return a future completed with the card response, or exceptionally with the communication error
+   */
+  default CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    CompletableFuture<APDUResponse> future = new CompletableFuture<>();
+
+    try {
+      future.complete(send(cmd));
+    } catch (IOException | RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  /**
+   * Sends the given commands in order, stopping at the first response with a SW other than 0x9000.
+   *
+   * @param cmds the commands to send
+   * @return the responses and timing of the batch
+   * @throws IOException communication error
+   */
+  default BatchResult sendBatch(List<APDUCommand> cmds) throws IOException {
+    return sendBatch(cmds, BatchPolicy.STOP_ON_ERROR);
+  }
+
+  /**
+   * Sends the given commands in order. The policy determines whether the batch stops at the first response with a SW
+   * other than 0x9000. The default implementation calls send() for each command; channels which can reduce the
+   * per-command overhead of a fixed sequence override it.
+   *
+   * @param cmds the commands to send
+   * @param policy what to do when a command fails
+   * @return the responses and timing of the batch
+   * @throws IOException communication error
+   */
+  default BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    long start = System.nanoTime();
+    List<APDUResponse> responses = new ArrayList<>(cmds.size());
+
+    for (APDUCommand cmd : cmds) {
+      APDUResponse response = send(cmd);
+      responses.add(response);
+
+      if (!response.isOK() && policy == BatchPolicy.STOP_ON_ERROR) {
+        break;
+      }
+    }
+
+    return new BatchResult(responses, cmds.size(), System.nanoTime() - start);
+  }
+
+  /**
+   * True if connected, false otherwise
+   * @return true if connected, false otherwise
+   */
+  boolean isConnected();
+
+  /**
+   * Returns the maximum length of the data field of a command APDU which can be sent over this channel. Channels
+   * returning more than 255 bytes must support the extended length encoding, on both the reader and the card side.
+   * Command sets use this value to send bulk data in fewer, larger APDUs.
+   *
+   * @return the maximum command data length
+   */
+  default int getMaxCommandDataLength() {
+    return APDUCommand.MAX_SHORT_DATA_LENGTH;
+  }
+
+  /**
+   * Returns the iteration count for deriving the pairing key from the pairing password. The default is 50000 and is
+   * should only be changed for devices where the PBKDF2 is calculated on-board and the resource do not permit a
+   * high iteration count. If a lower count is used other security mechanism should be used to prevent brute force
+   * attacks.
+   *
+   * @return the iteration count
+   */
+  default int pairingPasswordPBKDF2IterationCount() {
+    return 50000;
+  }
+}
@@ -0,0 +1,311 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics collected by one or more MetricsCardChannel instances. Latencies are kept in one histogram per CLA/INS pair,
+ * alongside byte counters, a SW distribution and the number of communication errors. A single instance can be shared
+ * by the channels of successive card connections to accumulate metrics over the lifetime of the application.
+ *
+ * The histograms are indexed directly by the CLA nibble and INS, and the SW counters live in a small open addressing
+ * table, so recording never boxes a key. Only SWs beyond the capacity of the table, which a card hardly ever returns,
+ * go to an overflow map.
+ */
+public class ChannelMetrics {
+  private static final int SW_TABLE_SIZE = 64; // power of two
+  private static final int SW_EMPTY = 0;
+
+  private final AtomicReferenceArray<LatencyHistogram> latencies;
+  private final AtomicIntegerArray swKeys;
+  private final AtomicLongArray swCounts;
+  private final ConcurrentHashMap<Integer, LongAdder> swOverflow;
+  private final LatencyHistogram batchLatency;
+  private final LongAdder commandCount;
+  private final LongAdder errorCount;
+  private final LongAdder bytesOut;
+  private final LongAdder bytesIn;
+
+  /**
+   * Creates an empty metrics holder.
+   */
+  public ChannelMetrics() {
+    this.latencies = new AtomicReferenceArray<>(16 * 256);
+    this.swKeys = new AtomicIntegerArray(SW_TABLE_SIZE);
+    this.swCounts = new AtomicLongArray(SW_TABLE_SIZE);
+    this.swOverflow = new ConcurrentHashMap<>();
+    this.batchLatency = new LatencyHistogram();
+    this.commandCount = new LongAdder();
+    this.errorCount = new LongAdder();
+    this.bytesOut = new LongAdder();
+    this.bytesIn = new LongAdder();
+  }
+
+  /**
+   * Records a completed command.
+   *
+   * @param cmd the command
+   * @param response the response
+   * @param elapsedNanos the time between sending the command and receiving the response
+   */
+  public void recordCommand(APDUCommand cmd, APDUResponse response, long elapsedNanos) {
+    histogram(commandKey(cmd)).record(elapsedNanos);
+    recordResponse(cmd, response);
+  }
+
+  /**
+   * Records a completed batch. The batch duration is recorded separately from the per-command latencies, since the
+   * time spent on each command of a batch is not measured.
+   *
+   * @param cmds the commands of the batch
+   * @param result the result of the batch
+   */
+  public void recordBatch(List<APDUCommand> cmds, BatchResult result) {
+    batchLatency.record(result.getElapsedNanos());
+
+    for (int i = 0; i < result.getResponses().size(); i++) {
+      recordResponse(cmds.get(i), result.get(i));
+    }
+  }
+
+  /**
+   * Records a communication error.
+   */
+  public void recordError() {
+    errorCount.increment();
+  }
+
+  private void recordResponse(APDUCommand cmd, APDUResponse response) {
+    commandCount.increment();
+    bytesOut.add(cmd.getSerializedLength());
+    bytesIn.add(response.getDataLength() + 2);
+
+    countStatusWord(response.getSw());
+  }
+
+  private void countStatusWord(int sw) {
+    // keys are stored as SW + 1 so that 0 marks an empty slot
+    int key = sw + 1;
+    int slot = (sw ^ (sw >>> 8)) & (SW_TABLE_SIZE - 1);
+
+    for (int i = 0; i < SW_TABLE_SIZE; i++) {
+      int current = swKeys.get(slot);
+
+      if (current == key || (current == SW_EMPTY && (swKeys.compareAndSet(slot, SW_EMPTY, key) || swKeys.get(slot) == key))) {
+        swCounts.incrementAndGet(slot);
+        return;
+      }
+
+      slot = (slot + 1) & (SW_TABLE_SIZE - 1);
+    }
+
+    swOverflow.computeIfAbsent(sw, k -> new LongAdder()).increment();
+  }
+
+  private LatencyHistogram histogram(int key) {
+    int index = ((key >> 12) << 8) | (key & 0xff);
+    LatencyHistogram histogram = latencies.get(index);
+
+    if (histogram == null) {
+      latencies.compareAndSet(index, null, new LatencyHistogram());
+      histogram = latencies.get(index);
+    }
+
+    return histogram;
+  }
+
+  /**
+   * Clears all metrics.
+   */
+  public void reset() {
+    for (int i = 0; i < latencies.length(); i++) {
+      latencies.set(i, null);
+    }
+
+    for (int i = 0; i < SW_TABLE_SIZE; i++) {
+      swKeys.set(i, SW_EMPTY);
+      swCounts.set(i, 0);
+    }
+
+    swOverflow.clear();
+    batchLatency.reset();
+    commandCount.reset();
+    errorCount.reset();
+    bytesOut.reset();
+    bytesIn.reset();
+  }
+
+  /**
+   * Returns a copy of the current metrics.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    Map<Integer, LatencyHistogram.Snapshot> latencyCopy = new TreeMap<>();
+
+    for (int i = 0; i < latencies.length(); i++) {
+      LatencyHistogram histogram = latencies.get(i);
+
+      if (histogram != null) {
+        latencyCopy.put(((i >> 8) << 12) | (i & 0xff), histogram.snapshot());
+      }
+    }
+
+    Map<Integer, Long> swCopy = new TreeMap<>();
+
+    for (int i = 0; i < SW_TABLE_SIZE; i++) {
+      int key = swKeys.get(i);
+
+      if (key != SW_EMPTY) {
+        swCopy.put(key - 1, swCounts.get(i));
+      }
+    }
+
+    for (Map.Entry<Integer, LongAdder> e : swOverflow.entrySet()) {
+      swCopy.put(e.getKey(), e.getValue().sum());
+    }
+
+    return new Snapshot(latencyCopy, swCopy, batchLatency.snapshot(), commandCount.sum(), errorCount.sum(), bytesOut.sum(), bytesIn.sum());
+  }
+
+  /**
+   * Returns the key under which the latency of the given command is recorded. The logical channel and secure messaging
+   * bits of the CLA are ignored, so that a command is accounted the same way regardless of how it is transmitted.
+   *
+   * @param cmd the command
+   * @return the key, (CLA << 8) | INS
+   */
+  public static int commandKey(APDUCommand cmd) {
+    return ((cmd.getCla() & 0xF0) << 8) | cmd.getIns();
+  }
+
+  /**
+   * An immutable copy of the metrics.
+   */
+  public static class Snapshot {
+    private final Map<Integer, LatencyHistogram.Snapshot> latencies;
+    private final Map<Integer, Long> statusWords;
+    private final LatencyHistogram.Snapshot batchLatency;
+    private final long commandCount;
+    private final long errorCount;
+    private final long bytesOut;
+    private final long bytesIn;
+
+    Snapshot(Map<Integer, LatencyHistogram.Snapshot> latencies, Map<Integer, Long> statusWords, LatencyHistogram.Snapshot batchLatency, long commandCount, long errorCount, long bytesOut, long bytesIn) {
+      this.latencies = Collections.unmodifiableMap(latencies);
+      this.statusWords = Collections.unmodifiableMap(statusWords);
+      this.batchLatency = batchLatency;
+      this.commandCount = commandCount;
+      this.errorCount = errorCount;
+      this.bytesOut = bytesOut;
+      this.bytesIn = bytesIn;
+    }
+
+    /**
+     * Returns the latency histograms in nanoseconds, keyed by (CLA << 8) | INS.
+     *
+     * @return the latency histograms
+     */
+    public Map<Integer, LatencyHistogram.Snapshot> getLatencies() {
+      return latencies;
+    }
+
+    /**
+     * Returns the latency histogram of the given command, or null if it has never been sent.
+     *
+     * @param cla the CLA
+     * @param ins the INS
+     * @return the latency histogram
+     */
+    public LatencyHistogram.Snapshot getLatency(int cla, int ins) {
+      return latencies.get(((cla & 0xF0) << 8) | (ins & 0xff));
+    }
+
+    /**
+     * Returns the number of responses received for each SW.
+     *
+     * @return the SW distribution
+     */
+    public Map<Integer, Long> getStatusWords() {
+      return statusWords;
+    }
+
+    /**
+     * Returns the histogram of the durations of entire batches.
+     *
+     * @return the batch latency histogram
+     */
+    public LatencyHistogram.Snapshot getBatchLatency() {
+      return batchLatency;
+    }
+
+    /**
+     * Returns the number of commands which received a response.
+     *
+     * @return the number of commands
+     */
+    public long getCommandCount() {
+      return commandCount;
+    }
+
+    /**
+     * Returns the number of commands which failed with a communication error.
+     *
+     * @return the number of communication errors
+     */
+    public long getErrorCount() {
+      return errorCount;
+    }
+
+    /**
+     * Returns the number of bytes sent to the card.
+     *
+     * @return the number of bytes sent
+     */
+    public long getBytesOut() {
+      return bytesOut;
+    }
+
+    /**
+     * Returns the number of bytes received from the card.
+     *
+     * @return the number of bytes received
+     */
+    public long getBytesIn() {
+      return bytesIn;
+    }
+
+    /**
+     * Formats the metrics as a human readable table, suitable for logging. Latencies are in microseconds.
+     *
+     * @return the formatted metrics
+     */
+    public String dump() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("COMMANDS: %d, ERRORS: %d, OUT: %d B, IN: %d B%n", commandCount, errorCount, bytesOut, bytesIn));
+      sb.append(String.format("%-9s %8s %10s %10s %10s %10s%n", "CLA/INS", "COUNT", "MEAN us", "P50 us", "P99 us", "MAX us"));
+
+      for (Map.Entry<Integer, LatencyHistogram.Snapshot> e : latencies.entrySet()) {
+        LatencyHistogram.Snapshot h = e.getValue();
+        sb.append(String.format("%02X %02X     %8d %10d %10d %10d %10d%n", e.getKey() >> 8, e.getKey() & 0xff, h.getCount(), (long) h.getMean() / 1000, h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(99) / 1000, h.getMax() / 1000));
+      }
+
+      if (batchLatency.getCount() > 0) {
+        sb.append(String.format("BATCH     %8d %10d %10d %10d %10d%n", batchLatency.getCount(), (long) batchLatency.getMean() / 1000, batchLatency.getValueAtPercentile(50) / 1000, batchLatency.getValueAtPercentile(99) / 1000, batchLatency.getMax() / 1000));
+      }
+
+      for (Map.Entry<Integer, Long> e : statusWords.entrySet()) {
+        sb.append(String.format("SW %04X: %d%n", e.getKey(), e.getValue()));
+      }
+
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets. Each power of two is split into 16 linear sub-buckets, so any
+ * recorded value is known with a relative error below 1/16 (about 6%), regardless of its magnitude. Recording is a
+ * handful of atomic increments and never allocates, so it can be done on the APDU path from any thread.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong min;
+  private final AtomicLong max;
+
+  /**
+   * Creates an empty histogram.
+   */
+  public LatencyHistogram() {
+    this.counts = new AtomicLongArray(BUCKET_COUNT);
+    this.count = new AtomicLong();
+    this.sum = new AtomicLong();
+    this.min = new AtomicLong(Long.MAX_VALUE);
+    this.max = new AtomicLong(0);
+  }
+
+  /**
+   * Records a value. Negative values are recorded as 0.
+   *
+   * @param value the value, usually a latency in nanoseconds
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+
+    counts.incrementAndGet(bucketIndex(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current;
+
+    while (value < (current = min.get()) && !min.compareAndSet(current, value));
+    while (value > (current = max.get()) && !max.compareAndSet(current, value));
+  }
+
+  /**
+   * Clears all recorded values. Values recorded concurrently with the reset may be partially kept.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+
+    count.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(0);
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return the number of recorded values
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns a consistent copy of the histogram which can be queried without affecting recording.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long total = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      total += copy[i];
+    }
+
+    return new Snapshot(copy, total, sum.get(), total == 0 ? 0 : min.get(), max.get());
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+
+    return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    int magnitude = index >>> SUB_BUCKET_BITS;
+    long subBucket = index & (SUB_BUCKET_COUNT - 1);
+
+    if (magnitude == 0) {
+      return subBucket;
+    }
+
+    int shift = magnitude - 1;
+    return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * An immutable copy of a LatencyHistogram.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long min, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the smallest recorded value, or 0 if empty.
+     *
+     * @return the smallest recorded value
+     */
+    public long getMin() {
+      return min;
+    }
+
+    /**
+     * Returns the largest recorded value, or 0 if empty.
+     *
+     * @return the largest recorded value
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return the sum of all recorded values
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Returns the mean of the recorded values, or 0 if empty.
+     *
+     * @return the mean
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall. The result is the upper bound of the
+     * bucket holding that value, capped to the largest recorded value.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at the given percentile, or 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil((Math.min(Math.max(percentile, 0.0), 100.0) / 100.0) * count);
+      rank = Math.max(rank, 1);
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), max);
+        }
+      }
+
+      return max;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class LedgerUtil {
+  private static final int LEDGER_DEFAULT_CHANNEL = 1;
+  private static final int TAG_APDU = 0x05;
+
+  private LedgerUtil() {}
+
+  public interface Callback {
+    void write(byte[] chunk) throws IOException;
+    void read(byte[] chunk) throws IOException;
+  }
+
+  public static APDUResponse send(APDUCommand cmd, int segmentSize, boolean channelInfo, Callback cb) throws IOException {
+    return send(cmd, segmentSize, channelInfo, cb, null);
+  }
+
+  /**
+   * Sends the command, serializing it into a buffer taken from the given pool instead of a newly allocated one.
+   *
+   * @param cmd the command to send
+   * @param segmentSize the size of each chunk
+   * @param channelInfo whether the frames carry the channel id
+   * @param cb the transport callback
+   * @param pool the pool of transmit buffers, can be null
+   * @return the response
+   * @throws IOException communication error
+   */
+  public static APDUResponse send(APDUCommand cmd, int segmentSize, boolean channelInfo, Callback cb, BufferPool pool) throws IOException {
+    int apduLength = cmd.getSerializedLength();
+    ByteBuffer apdu = (pool != null) ? pool.acquire(apduLength) : ByteBuffer.allocate(apduLength);
+    byte[] chunk = new byte[segmentSize];
+
+    try {
+      cmd.serializeInto(apdu);
+      FrameEncoder encoder = new FrameEncoder(apdu.array(), apduLength, segmentSize, channelInfo);
+
+      while (encoder.hasNext()) {
+        encoder.next(chunk);
+        cb.write(chunk);
+      }
+    } finally {
+      if (pool != null) {
+        pool.release(apdu);
+      }
+    }
+
+    FrameDecoder decoder = new FrameDecoder(segmentSize, channelInfo);
+
+    do {
+      cb.read(chunk);
+    } while (!decoder.update(chunk));
+
+    return new APDUResponse(decoder.getResponse());
+  }
+
+  /**
+   * Splits a serialized APDU into frames, writing each one directly into the chunk sent to the device. The first frame
+   * carries the APDU length, the last one is padded with zeroes to the segment size.
+   */
+  public static final class FrameEncoder {
+    private final byte[] apdu;
+    private final int apduLength;
+    private final int segmentSize;
+    private final boolean channelInfo;
+    private int offset;
+    private int sequenceIdx;
+
+    /**
+     * Creates an encoder for the given APDU.
+     *
+     * @param apdu the buffer holding the serialized APDU
+     * @param apduLength the length of the APDU in the buffer
+     * @param segmentSize the size of each frame
+     * @param channelInfo whether the frames carry the channel id
+     */
+    public FrameEncoder(byte[] apdu, int apduLength, int segmentSize, boolean channelInfo) {
+      this.apdu = apdu;
+      this.apduLength = apduLength;
+      this.segmentSize = segmentSize;
+      this.channelInfo = channelInfo;
+    }
+
+    /**
+     * Whether frames remain to be sent.
+     *
+     * @return true if next() must be called again
+     */
+    public boolean hasNext() {
+      return sequenceIdx == 0 || offset != apduLength;
+    }
+
+    /**
+     * Writes the next frame.
+     *
+     * @param chunk the buffer to fill, at least segmentSize bytes long
+     */
+    public void next(byte[] chunk) {
+      int pos = writeCommandHeader(chunk, sequenceIdx, channelInfo);
+
+      if (sequenceIdx == 0) {
+        chunk[pos++] = (byte) (apduLength >> 8);
+        chunk[pos++] = (byte) apduLength;
+      }
+
+      int blockSize = Math.min(apduLength - offset, segmentSize - pos);
+      System.arraycopy(apdu, offset, chunk, pos, blockSize);
+      offset += blockSize;
+      pos += blockSize;
+
+      Arrays.fill(chunk, pos, segmentSize, (byte) 0);
+      sequenceIdx++;
+    }
+  }
+
+  /**
+   * Reassembles a response one frame at a time. Headers and sequence numbers are checked as the frames arrive and the
+   * payload is copied once, into an array sized from the length announced by the first frame.
+   */
+  public static final class FrameDecoder {
+    private final int segmentSize;
+    private final boolean channelInfo;
+    private int sequenceIdx;
+    private byte[] response;
+    private int received;
+
+    /**
+     * Creates a decoder for one response.
+     *
+     * @param segmentSize the size of each frame
+     * @param channelInfo whether the frames carry the channel id
+     */
+    public FrameDecoder(int segmentSize, boolean channelInfo) {
+      this.segmentSize = segmentSize;
+      this.channelInfo = channelInfo;
+    }
+
+    /**
+     * Consumes the next frame.
+     *
+     * @param chunk the frame, at least segmentSize bytes long
+     * @return true if the response is complete
+     * @throws IOException if the frame has an invalid header or sequence number
+     */
+    public boolean update(byte[] chunk) throws IOException {
+      if (isComplete()) {
+        throw new IOException("Unexpected frame");
+      }
+
+      int offset = checkResponseHeader(chunk, 0, sequenceIdx, channelInfo);
+
+      if (sequenceIdx == 0) {
+        int responseLength = ((chunk[offset] & 0xff) << 8) | (chunk[offset + 1] & 0xff);
+        offset += 2;
+        response = new byte[responseLength];
+      }
+
+      int blockSize = Math.min(response.length - received, segmentSize - offset);
+      System.arraycopy(chunk, offset, response, received, blockSize);
+      received += blockSize;
+      sequenceIdx++;
+
+      return isComplete();
+    }
+
+    /**
+     * Whether all the frames of the response have been received.
+     *
+     * @return true if the response is complete
+     */
+    public boolean isComplete() {
+      return response != null && received == response.length;
+    }
+
+    /**
+     * Returns the reassembled response.
+     *
+     * @return the response, or null if not complete yet
+     */
+    public byte[] getResponse() {
+      return isComplete() ? response : null;
+    }
+  }
+
+  private static int checkResponseHeader(byte[] data, int offset, int sequenceIdx, boolean channelInfo) throws IOException {
+    if (channelInfo) {
+      if (data[offset++] != (LEDGER_DEFAULT_CHANNEL >> 8)) {
+        throw new IOException("Invalid channel");
+      }
+
+      if (data[offset++] != (LEDGER_DEFAULT_CHANNEL & 0xff)) {
+        throw new IOException("Invalid channel");
+      }
+    }
+
+    if (data[offset++] != TAG_APDU) {
+      throw new IOException("Invalid tag");
+    }
+
+    if (data[offset++] != (sequenceIdx >> 8)) {
+      throw new IOException("Invalid sequence");
+    }
+
+    if (data[offset++] != (sequenceIdx & 0xff)) {
+      throw new IOException("Invalid sequence");
+    }
+    return offset;
+  }
+
+  private static int writeCommandHeader(byte[] chunk, int sequenceIdx, boolean channelInfo) {
+    int offset = 0;
+
+    if (channelInfo) {
+      chunk[offset++] = (byte) (LEDGER_DEFAULT_CHANNEL >> 8);
+      chunk[offset++] = (byte) LEDGER_DEFAULT_CHANNEL;
+    }
+
+    chunk[offset++] = TAG_APDU;
+    chunk[offset++] = (byte) (sequenceIdx >> 8);
+    chunk[offset++] = (byte) sequenceIdx;
+    return offset;
+  }
+}
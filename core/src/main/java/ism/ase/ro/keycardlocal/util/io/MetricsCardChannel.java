@@ -0,0 +1,98 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A CardChannel decorator recording the latency, size and outcome of every command into a ChannelMetrics instance.
+ * Recording is lock-free and allocation-free once each CLA/INS pair has been seen, so the decorator can stay enabled
+ * in production builds.
+ */
+public class MetricsCardChannel implements CardChannel {
+  private final CardChannel channel;
+  private final ChannelMetrics metrics;
+
+  /**
+   * Wraps the given channel, recording into a new ChannelMetrics instance.
+   *
+   * @param channel the channel to wrap
+   */
+  public MetricsCardChannel(CardChannel channel) {
+    this(channel, new ChannelMetrics());
+  }
+
+  /**
+   * Wraps the given channel, recording into the given ChannelMetrics instance.
+   *
+   * @param channel the channel to wrap
+   * @param metrics where to record the metrics
+   */
+  public MetricsCardChannel(CardChannel channel, ChannelMetrics metrics) {
+    this.channel = channel;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      APDUResponse response = channel.send(cmd);
+      metrics.recordCommand(cmd, response, System.nanoTime() - start);
+      return response;
+    } catch (IOException e) {
+      metrics.recordError();
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    long start = System.nanoTime();
+
+    return channel.sendAsync(cmd).whenComplete((response, e) -> {
+      if (e == null) {
+        metrics.recordCommand(cmd, response, System.nanoTime() - start);
+      } else {
+        metrics.recordError();
+      }
+    });
+  }
+
+  @Override
+  public BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    try {
+      BatchResult result = channel.sendBatch(cmds, policy);
+      metrics.recordBatch(cmds, result);
+      return result;
+    } catch (IOException e) {
+      metrics.recordError();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the metrics recorded by this channel.
+   *
+   * @return the metrics
+   */
+  public ChannelMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return channel.getMaxCommandDataLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+}
@@ -0,0 +1,116 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A CardChannel decorator which records every exchange with the card to a compact binary trace. The trace can be
+ * served back by a ReplayCardChannel to run command set flows without a card.
+ *
+ * The trace starts with the 4 byte magic "KCTR", a version byte and the properties of the recorded channel which
+ * influence the commands sent by the command sets: the maximum command data length and the pairing password PBKDF2
+ * iteration count, 4 bytes each. Each record then consists of a type byte, the
+ * time spent by the card in nanoseconds (8 bytes), the serialized command (4 byte length followed by the bytes) and,
+ * for successful exchanges, the raw response (same encoding) or, for communication errors, the error message (UTF-8,
+ * 2 byte length). All numbers are big-endian.
+ */
+public class RecordingCardChannel implements CardChannel {
+  static final byte[] MAGIC = new byte[]{'K', 'C', 'T', 'R'};
+  static final int VERSION = 2;
+  static final int VERSION_WITHOUT_CHANNEL_PROPERTIES = 1;
+
+  static final int RECORD_EXCHANGE = 0x01;
+  static final int RECORD_ERROR = 0x02;
+
+  private final CardChannel channel;
+  private final DataOutputStream out;
+
+  /**
+   * Wraps the given channel, writing the trace to the given stream. The header is written immediately.
+   *
+   * @param channel the channel to wrap
+   * @param out where to write the trace
+   * @throws IOException error writing the header
+   */
+  public RecordingCardChannel(CardChannel channel, OutputStream out) throws IOException {
+    this.channel = channel;
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.write(MAGIC);
+    this.out.writeByte(VERSION);
+    this.out.writeInt(channel.getMaxCommandDataLength());
+    this.out.writeInt(channel.pairingPasswordPBKDF2IterationCount());
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    long start = System.nanoTime();
+    APDUResponse response;
+
+    try {
+      response = channel.send(cmd);
+    } catch (IOException e) {
+      writeError(cmd, System.nanoTime() - start, e);
+      throw e;
+    }
+
+    writeExchange(cmd, response, System.nanoTime() - start);
+    return response;
+  }
+
+  private synchronized void writeExchange(APDUCommand cmd, APDUResponse response, long elapsedNanos) throws IOException {
+    out.writeByte(RECORD_EXCHANGE);
+    out.writeLong(elapsedNanos);
+    writeCommand(cmd);
+    byte[] raw = response.getBytes();
+    out.writeInt(raw.length);
+    out.write(raw);
+  }
+
+  private synchronized void writeError(APDUCommand cmd, long elapsedNanos, IOException e) throws IOException {
+    out.writeByte(RECORD_ERROR);
+    out.writeLong(elapsedNanos);
+    writeCommand(cmd);
+    out.writeUTF(e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+  }
+
+  private void writeCommand(APDUCommand cmd) throws IOException {
+    byte[] raw = cmd.serialize();
+    out.writeInt(raw.length);
+    out.write(raw);
+  }
+
+  /**
+   * Writes buffered records to the underlying stream.
+   *
+   * @throws IOException write error
+   */
+  public synchronized void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Flushes and closes the trace. The wrapped channel is not affected.
+   *
+   * @throws IOException write error
+   */
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return channel.getMaxCommandDataLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+}
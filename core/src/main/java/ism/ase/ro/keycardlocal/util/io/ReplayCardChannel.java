@@ -0,0 +1,259 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A CardChannel serving the responses of a trace written by RecordingCardChannel, in order. No card is needed, which
+ * allows running command set flows on a plain JVM and measuring the host-side overhead in isolation. Flows using
+ * random values, such as the secure channel, must be given the same deterministic SecureRandom as during the
+ * recording, otherwise the commands will not match in strict mode.
+ *
+ * The channel reports the maximum command data length and pairing password iteration count of the recorded channel,
+ * so that command sets build the same commands as during the recording. Traces of the first version, which do not
+ * carry them, get the CardChannel defaults.
+ */
+public class ReplayCardChannel implements CardChannel {
+  /**
+   * How the card latency is simulated.
+   */
+  public enum Latency {
+    /**
+     * Responses are returned immediately.
+     */
+    NONE,
+
+    /**
+     * Each response is delayed by the time it took during the recording.
+     */
+    RECORDED,
+
+    /**
+     * Each response is delayed by the time it took during the recording multiplied by the scale factor.
+     */
+    SCALED
+  }
+
+  private final List<Record> records;
+  private final int maxCommandDataLength;
+  private final int pbkdf2IterationCount;
+  private final boolean strict;
+  private final Latency latency;
+  private final double scale;
+  private int position;
+
+  /**
+   * Loads the trace from the given stream. Commands must match the recording exactly and responses are returned
+   * without delay.
+   *
+   * @param in the trace
+   * @throws IOException the trace cannot be read or is malformed
+   */
+  public ReplayCardChannel(InputStream in) throws IOException {
+    this(in, true, Latency.NONE, 1.0);
+  }
+
+  /**
+   * Loads the trace from the given stream.
+   *
+   * @param in the trace
+   * @param strict if true, the whole command must match the recording. Otherwise only the CLA, INS, P1 and P2 are
+   *               compared, which allows replaying flows sending random data
+   * @param latency how the card latency is simulated
+   * @param scale the factor applied to the recorded latency in SCALED mode
+   * @throws IOException the trace cannot be read or is malformed
+   */
+  public ReplayCardChannel(InputStream in, boolean strict, Latency latency, double scale) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    int version = readHeader(data);
+
+    if (version == RecordingCardChannel.VERSION_WITHOUT_CHANNEL_PROPERTIES) {
+      this.maxCommandDataLength = APDUCommand.MAX_SHORT_DATA_LENGTH;
+      this.pbkdf2IterationCount = CardChannel.super.pairingPasswordPBKDF2IterationCount();
+    } else {
+      this.maxCommandDataLength = data.readInt();
+      this.pbkdf2IterationCount = data.readInt();
+    }
+
+    this.records = readRecords(data);
+    this.strict = strict;
+    this.latency = latency;
+    this.scale = scale;
+    this.position = 0;
+  }
+
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd) throws IOException {
+    if (position >= records.size()) {
+      throw new IOException("End of trace reached");
+    }
+
+    Record record = records.get(position);
+    byte[] serialized = cmd.serialize();
+
+    if (!matches(record.command, serialized)) {
+      throw new IOException("Command " + (position + 1) + " does not match the trace");
+    }
+
+    position++;
+    delay(record.elapsedNanos);
+
+    if (record.error != null) {
+      throw new IOException(record.error);
+    }
+
+    return new APDUResponse(record.response.clone());
+  }
+
+  private boolean matches(byte[] recorded, byte[] command) {
+    if (strict) {
+      return Arrays.equals(recorded, command);
+    }
+
+    if (recorded.length < 4 || command.length < 4) {
+      return false;
+    }
+
+    for (int i = 0; i < 4; i++) {
+      if (recorded[i] != command[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void delay(long recordedNanos) {
+    long nanos;
+
+    switch (latency) {
+      case RECORDED:
+        nanos = recordedNanos;
+        break;
+      case SCALED:
+        nanos = (long) (recordedNanos * scale);
+        break;
+      default:
+        return;
+    }
+
+    long deadline = System.nanoTime() + nanos;
+
+    while ((nanos = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(nanos);
+    }
+  }
+
+  /**
+   * Returns the number of exchanges not replayed yet.
+   *
+   * @return the number of remaining exchanges
+   */
+  public synchronized int remaining() {
+    return records.size() - position;
+  }
+
+  /**
+   * Restarts the replay from the first exchange of the trace.
+   */
+  public synchronized void rewind() {
+    position = 0;
+  }
+
+  /**
+   * True while there are exchanges left in the trace.
+   *
+   * @return true if there are exchanges left
+   */
+  @Override
+  public synchronized boolean isConnected() {
+    return position < records.size();
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return maxCommandDataLength;
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return pbkdf2IterationCount;
+  }
+
+  private static int readHeader(DataInputStream in) throws IOException {
+    byte[] magic = new byte[RecordingCardChannel.MAGIC.length];
+    in.readFully(magic);
+
+    if (!Arrays.equals(magic, RecordingCardChannel.MAGIC)) {
+      throw new IOException("Not an APDU trace");
+    }
+
+    int version = in.readUnsignedByte();
+
+    if (version != RecordingCardChannel.VERSION && version != RecordingCardChannel.VERSION_WITHOUT_CHANNEL_PROPERTIES) {
+      throw new IOException("Unsupported trace version " + version);
+    }
+
+    return version;
+  }
+
+  private static List<Record> readRecords(DataInputStream in) throws IOException {
+    List<Record> records = new ArrayList<>();
+    int type;
+
+    while ((type = in.read()) != -1) {
+      try {
+        long elapsedNanos = in.readLong();
+        byte[] command = readBytes(in);
+
+        switch (type) {
+          case RecordingCardChannel.RECORD_EXCHANGE:
+            records.add(new Record(elapsedNanos, command, readBytes(in), null));
+            break;
+          case RecordingCardChannel.RECORD_ERROR:
+            records.add(new Record(elapsedNanos, command, null, in.readUTF()));
+            break;
+          default:
+            throw new IOException("Unknown trace record type " + type);
+        }
+      } catch (EOFException e) {
+        throw new IOException("Truncated trace", e);
+      }
+    }
+
+    return records;
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0 || length > (APDUCommand.MAX_EXTENDED_DATA_LENGTH + 16)) {
+      throw new IOException("Invalid trace record length " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static class Record {
+    final long elapsedNanos;
+    final byte[] command;
+    final byte[] response;
+    final String error;
+
+    Record(long elapsedNanos, byte[] command, byte[] response, String error) {
+      this.elapsedNanos = elapsedNanos;
+      this.command = command;
+      this.response = response;
+      this.error = error;
+    }
+  }
+}
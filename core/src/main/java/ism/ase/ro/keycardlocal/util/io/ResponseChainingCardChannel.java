@@ -0,0 +1,194 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A CardChannel decorator which transparently handles ISO7816-4 response chaining. A 61xx status word is followed by
+ * GET RESPONSE commands until the card has returned all data, and a 6Cxx status word causes the command to be sent
+ * again with the Le indicated by the card. The caller only ever sees the final, complete response.
+ *
+ * Sending a command again is only safe when it is not protected by secure messaging, since a wrapped command carries a
+ * MAC and IV which the card has already consumed. The command is therefore only re-issued for interindustry CLAs
+ * without secure messaging indication. For proprietary CLAs, used by GlobalPlatform SCP02 and the Keycard secure
+ * channel, this decorator cannot tell whether the command is wrapped and returns the 6Cxx response unchanged.
+ */
+public class ResponseChainingCardChannel implements CardChannel {
+  static final int INS_GET_RESPONSE = 0xC0;
+  static final int SW1_RESPONSE_BYTES_AVAILABLE = 0x61;
+  static final int SW1_WRONG_LE = 0x6C;
+
+  private static final int MAX_CHAINED_RESPONSES = 256;
+
+  private final CardChannel channel;
+  private final AtomicLong getResponseCount;
+  private final AtomicLong reissueCount;
+
+  /**
+   * Wraps the given channel.
+   *
+   * @param channel the channel to wrap
+   */
+  public ResponseChainingCardChannel(CardChannel channel) {
+    this.channel = channel;
+    this.getResponseCount = new AtomicLong();
+    this.reissueCount = new AtomicLong();
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return complete(cmd, channel.send(cmd));
+  }
+
+  /**
+   * Sends the batch to the wrapped channel, which stops at every response requiring chaining. The response is then
+   * completed here and the rest of the batch is forwarded again, since GET RESPONSE must immediately follow the command
+   * it refers to.
+   *
+   * @param cmds the commands to send
+   * @param policy what to do when a command fails
+   * @return the responses and timing of the batch
+   * @throws IOException communication error
+   */
+  @Override
+  public BatchResult sendBatch(List<APDUCommand> cmds, BatchPolicy policy) throws IOException {
+    long start = System.nanoTime();
+    List<APDUResponse> responses = new ArrayList<>(cmds.size());
+
+    while (responses.size() < cmds.size()) {
+      List<APDUResponse> partial = channel.sendBatch(cmds.subList(responses.size(), cmds.size()), BatchPolicy.STOP_ON_ERROR).getResponses();
+      responses.addAll(partial);
+
+      if (partial.isEmpty()) {
+        break;
+      }
+
+      int last = responses.size() - 1;
+      APDUResponse response = complete(cmds.get(last), responses.get(last));
+      responses.set(last, response);
+
+      if (!response.isOK() && policy == BatchPolicy.STOP_ON_ERROR) {
+        break;
+      }
+    }
+
+    return new BatchResult(responses, cmds.size(), System.nanoTime() - start);
+  }
+
+  /**
+   * Handles the 61xx and 6Cxx status words of a response to the given command.
+   *
+   * @param cmd the command
+   * @param response the response of the wrapped channel to the command
+   * @return the complete response
+   * @throws IOException communication error
+   */
+  private APDUResponse complete(APDUCommand cmd, APDUResponse response) throws IOException {
+    if (response.getSw1() == SW1_WRONG_LE && canReissue(cmd.getCla())) {
+      reissueCount.incrementAndGet();
+      APDUCommand reissued = new APDUCommand(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData(), availableBytes(response.getSw2()));
+      response = channel.send(reissued);
+    }
+
+    if (response.getSw1() != SW1_RESPONSE_BYTES_AVAILABLE) {
+      return response;
+    }
+
+    byte[] data = response.getData();
+    byte[] buffer = new byte[data.length + availableBytes(response.getSw2()) + 2];
+    System.arraycopy(data, 0, buffer, 0, data.length);
+    int length = data.length;
+    int chained = 0;
+
+    while (response.getSw1() == SW1_RESPONSE_BYTES_AVAILABLE) {
+      if (++chained > MAX_CHAINED_RESPONSES) {
+        throw new IOException("Too many chained responses");
+      }
+
+      APDUCommand getResponse = new APDUCommand(cmd.getCla() & 0x03, INS_GET_RESPONSE, 0, 0, new byte[0], availableBytes(response.getSw2()));
+      getResponseCount.incrementAndGet();
+      response = channel.send(getResponse);
+      data = response.getData();
+
+      if (buffer.length < length + data.length + 2) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + data.length + 2));
+      }
+
+      System.arraycopy(data, 0, buffer, length, data.length);
+      length += data.length;
+    }
+
+    buffer[length++] = (byte) response.getSw1();
+    buffer[length++] = (byte) response.getSw2();
+
+    return new APDUResponse(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+  }
+
+  /**
+   * Whether a command with the given CLA can be sent again with another Le: an interindustry class (b8 = 0) with no
+   * secure messaging (b4 b3 = 00).
+   *
+   * @param cla the CLA byte
+   * @return true if the command is not protected by secure messaging
+   */
+  static boolean canReissue(int cla) {
+    return (cla & 0x80) == 0 && (cla & 0x0C) == 0;
+  }
+
+  /**
+   * Converts the SW2 of a 61xx or 6Cxx response to a number of bytes. 0x00 means 256 bytes.
+   *
+   * @param sw2 the SW2 byte
+   * @return the number of bytes
+   */
+  private static int availableBytes(int sw2) {
+    return sw2 == 0 ? (APDUCommand.MAX_SHORT_DATA_LENGTH + 1) : sw2;
+  }
+
+  /**
+   * Returns the number of GET RESPONSE commands sent so far. Each one is a round trip that the caller would otherwise
+   * have had to make itself.
+   *
+   * @return the number of GET RESPONSE commands
+   */
+  public long getResponseCount() {
+    return getResponseCount.get();
+  }
+
+  /**
+   * Returns the number of commands which had to be sent again because of a wrong Le. Each one is a round trip spent
+   * because the original command did not request the right response length.
+   *
+   * @return the number of re-issued commands
+   */
+  public long getReissueCount() {
+    return reissueCount.get();
+  }
+
+  /**
+   * Returns the total number of round trips made by this channel on top of the commands it was asked to send.
+   *
+   * @return the number of extra round trips
+   */
+  public long getExtraRoundTrips() {
+    return getResponseCount.get() + reissueCount.get();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return channel.getMaxCommandDataLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+}
@@ -0,0 +1,278 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A preallocated, lock-free ring buffer of APDU trace events. Recording an event writes a few longs into the buffer and
+ * never allocates or formats anything, so tracing can stay enabled in production. Formatting only happens when the
+ * buffer is dumped, typically after a failure.
+ *
+ * Any number of threads can record concurrently. Each slot is protected by its sequence number, which readers check
+ * before and after copying the slot: events overwritten while being read are skipped instead of being returned torn.
+ * When the buffer is full the oldest events are overwritten.
+ */
+public class TraceBuffer {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * The SW recorded for commands which failed with an IOException instead of a response.
+   */
+  public static final int SW_NONE = 0x0000;
+
+  private static final int SLOT_LONGS = 5;
+  private static final int SEQ = 0;
+  private static final int TIMESTAMP = 1;
+  private static final int HEADER = 2;
+  private static final int DURATION = 3;
+  private static final int RESPONSE_LENGTH = 4;
+  private static final long WRITING = -1;
+
+  private final int mask;
+  private final AtomicLongArray slots;
+  private final AtomicLong cursor;
+
+  /**
+   * Creates a buffer holding the last DEFAULT_CAPACITY events.
+   */
+  public TraceBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a buffer holding the given number of events, rounded up to a power of two.
+   *
+   * @param capacity the number of events kept
+   */
+  public TraceBuffer(int capacity) {
+    if (capacity < 1 || capacity > (1 << 24)) {
+      throw new IllegalArgumentException("The capacity must be between 1 and " + (1 << 24));
+    }
+
+    int size = Integer.highestOneBit(capacity);
+    size = size < capacity ? size << 1 : size;
+
+    this.mask = size - 1;
+    this.slots = new AtomicLongArray(size * SLOT_LONGS);
+    this.cursor = new AtomicLong();
+
+    for (int i = 0; i < size; i++) {
+      slots.set(i * SLOT_LONGS + SEQ, WRITING);
+    }
+  }
+
+  /**
+   * Records a command and its response.
+   *
+   * @param cmd the command
+   * @param response the response
+   * @param startNanos the System.nanoTime() at which the command was sent
+   * @param durationNanos the time until the response was received
+   */
+  public void record(APDUCommand cmd, APDUResponse response, long startNanos, long durationNanos) {
+    record(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData().length, response.getSw(), response.getDataLength(), startNanos, durationNanos);
+  }
+
+  /**
+   * Records a command which failed without a response. Its SW is recorded as SW_NONE.
+   *
+   * @param cmd the command
+   * @param startNanos the System.nanoTime() at which the command was sent
+   * @param durationNanos the time until the failure
+   */
+  public void recordFailure(APDUCommand cmd, long startNanos, long durationNanos) {
+    record(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData().length, SW_NONE, 0, startNanos, durationNanos);
+  }
+
+  /**
+   * Records an event from its individual fields.
+   *
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param lc the length of the command data
+   * @param sw the status word of the response, or SW_NONE
+   * @param responseLength the length of the response data
+   * @param startNanos the System.nanoTime() at which the command was sent
+   * @param durationNanos the time until the response was received
+   */
+  public void record(int cla, int ins, int p1, int p2, int lc, int sw, int responseLength, long startNanos, long durationNanos) {
+    long seq = cursor.getAndIncrement();
+    int base = ((int) seq & mask) * SLOT_LONGS;
+
+    // the atomic swap keeps the data writes below from becoming visible before the slot is marked
+    slots.getAndSet(base + SEQ, WRITING);
+    slots.lazySet(base + TIMESTAMP, startNanos);
+    slots.lazySet(base + HEADER, header(cla, ins, p1, p2, lc, sw));
+    slots.lazySet(base + DURATION, durationNanos);
+    slots.lazySet(base + RESPONSE_LENGTH, responseLength);
+    slots.set(base + SEQ, seq);
+  }
+
+  private static long header(int cla, int ins, int p1, int p2, int lc, int sw) {
+    return ((long) (cla & 0xff) << 56) | ((long) (ins & 0xff) << 48) | ((long) (p1 & 0xff) << 40) | ((long) (p2 & 0xff) << 32) | ((long) (lc & 0xffff) << 16) | (sw & 0xffff);
+  }
+
+  /**
+   * Returns the total number of events recorded, including those already overwritten.
+   *
+   * @return the number of recorded events
+   */
+  public long getRecordedCount() {
+    return cursor.get();
+  }
+
+  /**
+   * Returns the number of events the buffer can hold.
+   *
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Discards all recorded events. Not meant to be called while other threads are recording.
+   */
+  public void clear() {
+    for (int i = 0; i <= mask; i++) {
+      slots.set(i * SLOT_LONGS + SEQ, WRITING);
+    }
+  }
+
+  /**
+   * Copies the events currently in the buffer, oldest first. Events being written during the copy are skipped.
+   *
+   * @return the events
+   */
+  public List<Event> snapshot() {
+    long end = cursor.get();
+    long start = Math.max(0, end - (mask + 1));
+    List<Event> events = new ArrayList<>((int) (end - start));
+
+    for (long seq = start; seq < end; seq++) {
+      int base = ((int) seq & mask) * SLOT_LONGS;
+
+      if (slots.get(base + SEQ) != seq) {
+        continue;
+      }
+
+      long timestamp = slots.get(base + TIMESTAMP);
+      long header = slots.get(base + HEADER);
+      long duration = slots.get(base + DURATION);
+      long responseLength = slots.get(base + RESPONSE_LENGTH);
+
+      if (slots.get(base + SEQ) == seq) {
+        events.add(new Event(seq, timestamp, header, duration, (int) responseLength));
+      }
+    }
+
+    return events;
+  }
+
+  /**
+   * Formats the events currently in the buffer, one per line, oldest first. Timestamps are relative to the first
+   * event.
+   *
+   * @return the formatted trace
+   */
+  public String dump() {
+    List<Event> events = snapshot();
+    StringBuilder sb = new StringBuilder();
+    long origin = events.isEmpty() ? 0 : events.get(0).getTimestampNanos();
+
+    for (Event e : events) {
+      sb.append(String.format("%8d us  ", (e.getTimestampNanos() - origin) / 1000));
+      sb.append(e);
+      sb.append(String.format("%n"));
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * A recorded command and response.
+   */
+  public static final class Event {
+    private final long sequence;
+    private final long timestampNanos;
+    private final long header;
+    private final long durationNanos;
+    private final int responseLength;
+
+    Event(long sequence, long timestampNanos, long header, long durationNanos, int responseLength) {
+      this.sequence = sequence;
+      this.timestampNanos = timestampNanos;
+      this.header = header;
+      this.durationNanos = durationNanos;
+      this.responseLength = responseLength;
+    }
+
+    /**
+     * The position of the event among all events recorded by the buffer.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * The System.nanoTime() at which the command was sent.
+     *
+     * @return the timestamp
+     */
+    public long getTimestampNanos() {
+      return timestampNanos;
+    }
+
+    public int getCla() {
+      return (int) (header >>> 56) & 0xff;
+    }
+
+    public int getIns() {
+      return (int) (header >>> 48) & 0xff;
+    }
+
+    public int getP1() {
+      return (int) (header >>> 40) & 0xff;
+    }
+
+    public int getP2() {
+      return (int) (header >>> 32) & 0xff;
+    }
+
+    public int getLc() {
+      return (int) (header >>> 16) & 0xffff;
+    }
+
+    /**
+     * The status word of the response, or SW_NONE if the command failed without a response.
+     *
+     * @return the status word
+     */
+    public int getSw() {
+      return (int) header & 0xffff;
+    }
+
+    public int getResponseLength() {
+      return responseLength;
+    }
+
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+      if (getSw() == SW_NONE) {
+        return String.format("CLA: %02X INS: %02X P1: %02X P2: %02X LC: %02X FAILED TIME: %d us", getCla(), getIns(), getP1(), getP2(), getLc(), durationNanos / 1000);
+      }
+
+      return String.format("CLA: %02X INS: %02X P1: %02X P2: %02X LC: %02X LEN: %02X SW: %04X TIME: %d us", getCla(), getIns(), getP1(), getP2(), getLc(), responseLength, getSw(), durationNanos / 1000);
+    }
+  }
+}
@@ -0,0 +1,418 @@
+package ism.ase.ro.keycardlocal.util.pool;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import ism.ase.ro.keycardlocal.util.applet.ApplicationInfo;
+import ism.ase.ro.keycardlocal.util.applet.KeycardCommandSet;
+import ism.ase.ro.keycardlocal.util.io.APDUException;
+import ism.ase.ro.keycardlocal.util.io.CardChannel;
+import ism.ase.ro.keycardlocal.util.io.ChannelMetrics;
+import ism.ase.ro.keycardlocal.util.io.MetricsCardChannel;
+
+/**
+ * Runs jobs on many cards at once, for example on a provisioning station with several readers. Each card added to the
+ * pool gets its own worker thread, so the cards work in parallel and throughput grows with the number of readers.
+ *
+ * Jobs can be submitted either to a specific card or to the pool, in which case they are run by the first idle card.
+ * Pool jobs are taken in submission order. A card with jobs of its own alternates between its queue and the pool
+ * queue, so neither kind of job can starve the other.
+ *
+ * A job failing with an IOException is taken as a sign that the card or its reader is gone: the card is removed from
+ * the pool, as if remove() had been called, and a pool job is put back at the head of the pool queue to be run by
+ * another card, up to MAX_POOL_JOB_ATTEMPTS times. A dead card therefore fails at most one pool job attempt instead of
+ * draining the whole queue.
+ */
+public class CardPool implements AutoCloseable {
+  public static final int MAX_POOL_JOB_ATTEMPTS = 3;
+
+  /**
+   * A unit of work run on a single card.
+   *
+   * @param <T> the result type
+   */
+  public interface Job<T> {
+    T run(Card card) throws IOException, APDUException;
+  }
+
+  /**
+   * A card in the pool.
+   */
+  public static final class Card {
+    private final String id;
+    private final CardChannel channel;
+    private final ChannelMetrics metrics;
+    private final ArrayDeque<Task<?>> queue;
+    private final LongAdder completedJobs;
+    private final LongAdder failedJobs;
+    private boolean preferPool;
+    private boolean removed;
+
+    Card(String id, CardChannel channel) {
+      this.id = id;
+      this.metrics = new ChannelMetrics();
+      this.channel = new MetricsCardChannel(channel, metrics);
+      this.queue = new ArrayDeque<>();
+      this.completedJobs = new LongAdder();
+      this.failedJobs = new LongAdder();
+    }
+
+    /**
+     * The key of the card in the pool.
+     *
+     * @return the card id
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * The channel to the card. Only to be used by the jobs running on the card.
+     *
+     * @return the channel
+     */
+    public CardChannel getChannel() {
+      return channel;
+    }
+
+    /**
+     * The metrics of the commands sent to this card.
+     *
+     * @return the channel metrics
+     */
+    public ChannelMetrics getMetrics() {
+      return metrics;
+    }
+
+    /**
+     * The number of jobs which completed successfully on this card.
+     *
+     * @return the number of completed jobs
+     */
+    public long getCompletedJobs() {
+      return completedJobs.sum();
+    }
+
+    /**
+     * The number of jobs which failed on this card.
+     *
+     * @return the number of failed jobs
+     */
+    public long getFailedJobs() {
+      return failedJobs.sum();
+    }
+  }
+
+  private static final class Task<T> {
+    private final Job<T> job;
+    private final CompletableFuture<T> future;
+    private final boolean pooled;
+    private int attempts;
+
+    Task(Job<T> job, boolean pooled) {
+      this.job = job;
+      this.future = new CompletableFuture<>();
+      this.pooled = pooled;
+    }
+
+    /**
+     * Runs the job. A pool job failing with an IOException is left incomplete if it can be attempted again.
+     *
+     * @param card the card running the job
+     * @return the IOException thrown by the job, or null
+     */
+    IOException run(Card card) {
+      if (future.isDone()) {
+        return null;
+      }
+
+      attempts++;
+
+      try {
+        // the counters are updated before the future completes, so that a caller woken by it sees them
+        T result = job.run(card);
+        card.completedJobs.increment();
+        future.complete(result);
+        return null;
+      } catch (IOException e) {
+        card.failedJobs.increment();
+
+        if (!pooled || attempts >= MAX_POOL_JOB_ATTEMPTS) {
+          future.completeExceptionally(e);
+        }
+
+        return e;
+      } catch (Exception e) {
+        card.failedJobs.increment();
+        future.completeExceptionally(e);
+        return null;
+      }
+    }
+
+    void fail(String message) {
+      future.completeExceptionally(new IOException(message));
+    }
+  }
+
+  private final Object lock;
+  private final Map<String, Card> cards;
+  private final ArrayDeque<Task<?>> pending;
+  private boolean closed;
+
+  /**
+   * Creates an empty pool.
+   */
+  public CardPool() {
+    this.lock = new Object();
+    this.cards = new LinkedHashMap<>();
+    this.pending = new ArrayDeque<>();
+  }
+
+  /**
+   * Adds a card, keyed by its Keycard instance UID in hexadecimal. The applet is selected to read the UID, so the
+   * card must be initialized.
+   *
+   * @param channel the channel to the card
+   * @return the card
+   * @throws IOException communication error
+   * @throws APDUException the applet could not be selected
+   */
+  public Card add(CardChannel channel) throws IOException, APDUException {
+    ApplicationInfo info = new ApplicationInfo(new KeycardCommandSet(channel).select().checkOK().getData());
+
+    if (!info.isInitializedCard()) {
+      throw new IllegalArgumentException("The card is not initialized and has no instance UID, use add(String, CardChannel)");
+    }
+
+    return add(Hex.toHexString(info.getInstanceUID()), channel);
+  }
+
+  /**
+   * Adds a card under the given key, for example the name of its reader. Needed for cards which are not initialized
+   * yet and therefore do not report an instance UID.
+   *
+   * @param id the key of the card
+   * @param channel the channel to the card
+   * @return the card
+   */
+  public Card add(String id, CardChannel channel) {
+    Card card = new Card(id, channel);
+
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("The pool is closed");
+      }
+
+      if (cards.containsKey(id)) {
+        throw new IllegalArgumentException("A card with id " + id + " is already in the pool");
+      }
+
+      cards.put(id, card);
+    }
+
+    Thread worker = new Thread(() -> work(card), "CardPool-" + id);
+    worker.setDaemon(true);
+    worker.start();
+
+    return card;
+  }
+
+  /**
+   * Removes a card from the pool, typically because it has been taken out of its reader. The job running on it, if
+   * any, is allowed to finish. Jobs submitted to this card and not yet started fail with an IOException. Cards whose
+   * jobs fail with an IOException are removed automatically.
+   *
+   * @param id the key of the card
+   */
+  public void remove(String id) {
+    synchronized (lock) {
+      Card card = cards.get(id);
+
+      if (card != null) {
+        remove(card, "Card removed");
+      }
+    }
+  }
+
+  private void remove(Card card, String message) {
+    if (cards.get(card.id) == card) {
+      cards.remove(card.id);
+    }
+
+    card.removed = true;
+    failAll(card.queue, message);
+    lock.notifyAll();
+  }
+
+  /**
+   * Returns the card with the given key.
+   *
+   * @param id the key of the card
+   * @return the card, or null if not in the pool
+   */
+  public Card get(String id) {
+    synchronized (lock) {
+      return cards.get(id);
+    }
+  }
+
+  /**
+   * Returns the cards currently in the pool.
+   *
+   * @return the cards
+   */
+  public Collection<Card> getCards() {
+    synchronized (lock) {
+      return Collections.unmodifiableList(new ArrayList<>(cards.values()));
+    }
+  }
+
+  /**
+   * Submits a job to be run by the first idle card.
+   *
+   * @param job the job
+   * @param <T> the result type
+   * @return a future completed with the result of the job
+   */
+  public <T> CompletableFuture<T> submit(Job<T> job) {
+    Task<T> task = new Task<>(job, true);
+
+    synchronized (lock) {
+      if (closed) {
+        task.fail("The pool is closed");
+      } else {
+        pending.addLast(task);
+        lock.notifyAll();
+      }
+    }
+
+    return task.future;
+  }
+
+  /**
+   * Submits a job to be run by the given card.
+   *
+   * @param id the key of the card
+   * @param job the job
+   * @param <T> the result type
+   * @return a future completed with the result of the job
+   */
+  public <T> CompletableFuture<T> submit(String id, Job<T> job) {
+    Task<T> task = new Task<>(job, false);
+
+    synchronized (lock) {
+      Card card = cards.get(id);
+
+      if (closed) {
+        task.fail("The pool is closed");
+      } else if (card == null) {
+        task.fail("No card with id " + id);
+      } else {
+        card.queue.addLast(task);
+        lock.notifyAll();
+      }
+    }
+
+    return task.future;
+  }
+
+  /**
+   * Returns the number of pool jobs not yet taken by a card.
+   *
+   * @return the number of pending jobs
+   */
+  public int getPendingJobs() {
+    synchronized (lock) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Stops all workers once their current job is over. Jobs not yet started fail with an IOException.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      failAll(pending, "The pool is closed");
+
+      for (Card card : cards.values()) {
+        card.removed = true;
+        failAll(card.queue, "The pool is closed");
+      }
+
+      cards.clear();
+      lock.notifyAll();
+    }
+  }
+
+  private void work(Card card) {
+    while (true) {
+      Task<?> task;
+
+      synchronized (lock) {
+        while ((task = next(card)) == null) {
+          if (card.removed) {
+            return;
+          }
+
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+
+      if (task.run(card) != null) {
+        synchronized (lock) {
+          if (!task.future.isDone()) {
+            if (closed) {
+              task.fail("The pool is closed");
+            } else {
+              pending.addFirst(task);
+            }
+          }
+
+          remove(card, "Card removed after a communication error");
+        }
+      }
+    }
+  }
+
+  private Task<?> next(Card card) {
+    if (card.removed) {
+      return null;
+    }
+
+    Task<?> task;
+
+    if (card.preferPool) {
+      task = pending.pollFirst();
+      task = task != null ? task : card.queue.pollFirst();
+    } else {
+      task = card.queue.pollFirst();
+      task = task != null ? task : pending.pollFirst();
+    }
+
+    card.preferPool = !card.preferPool;
+    return task;
+  }
+
+  private static void failAll(ArrayDeque<Task<?>> tasks, String message) {
+    Task<?> task;
+
+    while ((task = tasks.pollFirst()) != null) {
+      task.fail(message);
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package ism.ase.ro.keycardlocal.util.simulator;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.util.BigIntegers;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The card side of the Keycard secure channel: pairing, session establishment and APDU protection. This is the
+ * counterpart of SecureChannelSession and follows the same SECURE_CHANNEL.md specification.
+ */
+class CardSecureChannel {
+  static final int PAIRING_MAX_CLIENT_COUNT = 5;
+  static final int SECRET_LENGTH = 32;
+  static final int BLOCK_SIZE = 16;
+
+  private final SecureRandom random;
+  private final AsymmetricCipherKeyPair keyPair;
+  private final byte[][] pairingKeys;
+  private byte[] pairingSecret;
+  private byte[] pairingChallenge;
+
+  private byte[] encKey;
+  private byte[] macKey;
+  private byte[] iv;
+  private int pairingIndex;
+  private boolean open;
+
+  /**
+   * Creates the secure channel, generating the static key pair of the card.
+   *
+   * @param random the source of randomness
+   */
+  CardSecureChannel(SecureRandom random) {
+    this.random = random;
+    this.pairingKeys = new byte[PAIRING_MAX_CLIENT_COUNT][];
+
+    ECKeyPairGenerator generator = new ECKeyPairGenerator();
+    generator.init(new ECKeyGenerationParameters(Secp256k1Keys.DOMAIN, random));
+    this.keyPair = generator.generateKeyPair();
+  }
+
+  byte[] getPublicKey() {
+    return ((ECPublicKeyParameters) keyPair.getPublic()).getQ().getEncoded(false);
+  }
+
+  void setPairingSecret(byte[] pairingSecret) {
+    this.pairingSecret = pairingSecret;
+  }
+
+  int freePairingSlots() {
+    int count = 0;
+
+    for (byte[] key : pairingKeys) {
+      if (key == null) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  void reset() {
+    Arrays.fill(pairingKeys, null);
+    pairingSecret = null;
+    pairingChallenge = null;
+    close();
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  int getPairingIndex() {
+    return pairingIndex;
+  }
+
+  void close() {
+    open = false;
+    encKey = null;
+    macKey = null;
+    iv = null;
+  }
+
+  /**
+   * Computes the ECDH secret between the static card key and the given public key.
+   *
+   * @param publicKey the uncompressed public key of the client
+   * @return the x coordinate of the shared point
+   */
+  byte[] sharedSecret(byte[] publicKey) {
+    ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+    agreement.init(keyPair.getPrivate());
+    ECPublicKeyParameters clientKey = new ECPublicKeyParameters(Secp256k1Keys.DOMAIN.getCurve().decodePoint(publicKey), Secp256k1Keys.DOMAIN);
+    return BigIntegers.asUnsignedByteArray(SECRET_LENGTH, agreement.calculateAgreement(clientKey));
+  }
+
+  /**
+   * Decrypts the payload of the INIT command, which is encrypted with the ECDH secret directly.
+   *
+   * @param data the INIT payload
+   * @return the plaintext, or null if it cannot be decrypted
+   */
+  byte[] oneShotDecrypt(byte[] data) {
+    int keyLength = data[0] & 0xff;
+
+    if (data.length < 1 + keyLength + BLOCK_SIZE) {
+      return null;
+    }
+
+    byte[] secret = sharedSecret(Arrays.copyOfRange(data, 1, 1 + keyLength));
+    int off = 1 + keyLength;
+    return crypt(false, secret, Arrays.copyOfRange(data, off, off + BLOCK_SIZE), data, off + BLOCK_SIZE, data.length - off - BLOCK_SIZE);
+  }
+
+  /**
+   * Processes a PAIR command.
+   *
+   * @param p1 the pairing step
+   * @param data the client challenge or cryptogram
+   * @return the response data, or null if the pairing failed
+   */
+  byte[] pair(int p1, byte[] data) {
+    if (data.length != SECRET_LENGTH) {
+      return null;
+    }
+
+    if (p1 == 0) {
+      pairingChallenge = new byte[SECRET_LENGTH];
+      random.nextBytes(pairingChallenge);
+      byte[] cryptogram = sha256(pairingSecret, data);
+      byte[] response = Arrays.copyOf(cryptogram, SECRET_LENGTH * 2);
+      System.arraycopy(pairingChallenge, 0, response, SECRET_LENGTH, SECRET_LENGTH);
+      return response;
+    }
+
+    if (pairingChallenge == null) {
+      return null;
+    }
+
+    byte[] expected = sha256(pairingSecret, pairingChallenge);
+    pairingChallenge = null;
+
+    if (!Arrays.equals(expected, data)) {
+      return null;
+    }
+
+    for (int i = 0; i < PAIRING_MAX_CLIENT_COUNT; i++) {
+      if (pairingKeys[i] == null) {
+        byte[] salt = new byte[SECRET_LENGTH];
+        random.nextBytes(salt);
+        pairingKeys[i] = sha256(pairingSecret, salt);
+
+        byte[] response = new byte[1 + SECRET_LENGTH];
+        response[0] = (byte) i;
+        System.arraycopy(salt, 0, response, 1, SECRET_LENGTH);
+        return response;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Removes the pairing at the given index.
+   *
+   * @param index the pairing index
+   * @return false if the index is invalid
+   */
+  boolean unpair(int index) {
+    if (index < 0 || index >= PAIRING_MAX_CLIENT_COUNT) {
+      return false;
+    }
+
+    pairingKeys[index] = null;
+    return true;
+  }
+
+  boolean isPaired(int index) {
+    return index >= 0 && index < PAIRING_MAX_CLIENT_COUNT && pairingKeys[index] != null;
+  }
+
+  /**
+   * Processes an OPEN SECURE CHANNEL command, deriving the session keys.
+   *
+   * @param index the pairing index
+   * @param clientPublicKey the ephemeral public key of the client
+   * @return the salt and IV sent back to the client
+   */
+  byte[] open(int index, byte[] clientPublicKey) {
+    byte[] secret = sharedSecret(clientPublicKey);
+    byte[] response = new byte[SECRET_LENGTH + BLOCK_SIZE];
+    random.nextBytes(response);
+
+    SHA512Digest sha512 = new SHA512Digest();
+    sha512.update(secret, 0, secret.length);
+    sha512.update(pairingKeys[index], 0, SECRET_LENGTH);
+    sha512.update(response, 0, SECRET_LENGTH);
+    byte[] keys = new byte[64];
+    sha512.doFinal(keys, 0);
+
+    encKey = Arrays.copyOf(keys, SECRET_LENGTH);
+    macKey = Arrays.copyOfRange(keys, SECRET_LENGTH, 64);
+    iv = Arrays.copyOfRange(response, SECRET_LENGTH, response.length);
+    pairingIndex = index;
+    open = true;
+
+    return response;
+  }
+
+  /**
+   * Verifies the MAC of a protected command and decrypts it.
+   *
+   * @param cla the CLA
+   * @param ins the INS
+   * @param p1 the P1
+   * @param p2 the P2
+   * @param data the MAC followed by the ciphertext
+   * @return the plaintext, or null if the MAC is invalid
+   */
+  byte[] unwrap(int cla, int ins, int p1, int p2, byte[] data) {
+    if (data.length < (BLOCK_SIZE * 2) || (data.length % BLOCK_SIZE) != 0) {
+      return null;
+    }
+
+    byte[] meta = new byte[BLOCK_SIZE];
+    meta[0] = (byte) cla;
+    meta[1] = (byte) ins;
+    meta[2] = (byte) p1;
+    meta[3] = (byte) p2;
+    meta[4] = (byte) data.length;
+
+    byte[] mac = mac(meta, data, BLOCK_SIZE, data.length - BLOCK_SIZE);
+
+    if (!Arrays.equals(mac, Arrays.copyOf(data, BLOCK_SIZE))) {
+      return null;
+    }
+
+    byte[] plain = crypt(false, encKey, iv, data, BLOCK_SIZE, data.length - BLOCK_SIZE);
+    iv = mac;
+    return plain;
+  }
+
+  /**
+   * Encrypts the response data and status word and prepends the MAC.
+   *
+   * @param data the response data
+   * @param sw the status word
+   * @return the protected response data
+   */
+  byte[] wrap(byte[] data, int sw) {
+    byte[] plain = Arrays.copyOf(data, data.length + 2);
+    plain[data.length] = (byte) (sw >> 8);
+    plain[data.length + 1] = (byte) sw;
+
+    byte[] encrypted = crypt(true, encKey, iv, plain, 0, plain.length);
+    byte[] meta = new byte[BLOCK_SIZE];
+    meta[0] = (byte) (encrypted.length + BLOCK_SIZE);
+
+    iv = mac(meta, encrypted, 0, encrypted.length);
+
+    byte[] response = Arrays.copyOf(iv, BLOCK_SIZE + encrypted.length);
+    System.arraycopy(encrypted, 0, response, BLOCK_SIZE, encrypted.length);
+    return response;
+  }
+
+  private byte[] mac(byte[] meta, byte[] data, int off, int len) {
+    CBCBlockCipherMac cbcMac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+    cbcMac.init(new KeyParameter(macKey));
+    cbcMac.update(meta, 0, meta.length);
+    cbcMac.update(data, off, len);
+    byte[] out = new byte[BLOCK_SIZE];
+    cbcMac.doFinal(out, 0);
+    return out;
+  }
+
+  private static byte[] crypt(boolean encrypt, byte[] key, byte[] iv, byte[] data, int off, int len) {
+    BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new ISO7816d4Padding());
+    cipher.init(encrypt, new ParametersWithIV(new KeyParameter(key), iv));
+    byte[] out = new byte[cipher.getOutputSize(len)];
+
+    try {
+      int outLen = cipher.processBytes(data, off, len, out, 0);
+      outLen += cipher.doFinal(out, outLen);
+      return outLen == out.length ? out : Arrays.copyOf(out, outLen);
+    } catch (InvalidCipherTextException e) {
+      return null;
+    }
+  }
+
+  static byte[] sha256(byte[] a, byte[] b) {
+    SHA256Digest sha256 = new SHA256Digest();
+    sha256.update(a, 0, a.length);
+    sha256.update(b, 0, b.length);
+    byte[] out = new byte[32];
+    sha256.doFinal(out, 0);
+    return out;
+  }
+}
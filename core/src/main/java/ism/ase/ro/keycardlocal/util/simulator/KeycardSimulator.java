@@ -0,0 +1,1023 @@
+package ism.ase.ro.keycardlocal.util.simulator;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import ism.ase.ro.keycardlocal.util.applet.BIP32KeyPair;
+import ism.ase.ro.keycardlocal.util.applet.BLS;
+import ism.ase.ro.keycardlocal.util.applet.Identifiers;
+import ism.ase.ro.keycardlocal.util.applet.RecoverableSignature;
+import ism.ase.ro.keycardlocal.util.applet.TinyBERTLV;
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.CardChannel;
+
+/**
+ * An in-process simulation of a card with the Keycard and Keycard Cash applets installed, exposed as a CardChannel. It
+ * implements the commands of the APPLICATION.md and SECURE_CHANNEL.md specifications closely enough to run the
+ * KeycardCommandSet and CashCommandSet flows unmodified: selection, initialization, pairing, the secure channel, PIN
+ * management, key loading, generation and derivation, export, signing (ECDSA and, through the Cash applet, BLS) and
+ * data storage. All cryptography is done with the BouncyCastle lightweight API.
+ *
+ * The simulator is meant as a baseline target for benchmarks and load generators running without a card. It does not
+ * attempt to reproduce the timing of a real card and it is not constant time.
+ */
+public class KeycardSimulator implements CardChannel {
+  public static final short APP_VERSION = 0x0301;
+
+  static final int SW_OK = 0x9000;
+  static final int SW_WRONG_PIN_MASK = 0x63C0;
+  static final int SW_WRONG_LENGTH = 0x6700;
+  static final int SW_SECURITY_CONDITION_NOT_SATISFIED = 0x6982;
+  static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+  static final int SW_WRONG_DATA = 0x6A80;
+  static final int SW_FILE_NOT_FOUND = 0x6A82;
+  static final int SW_NOT_ENOUGH_MEMORY = 0x6A84;
+  static final int SW_INCORRECT_P1P2 = 0x6A86;
+  static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+  static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+  static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+  static final int INS_SELECT = 0xA4;
+  static final int INS_INIT = 0xFE;
+  static final int INS_FACTORY_RESET = 0xFD;
+  static final int INS_GET_STATUS = 0xF2;
+  static final int INS_SET_NDEF = 0xF3;
+  static final int INS_OPEN_SECURE_CHANNEL = 0x10;
+  static final int INS_MUTUALLY_AUTHENTICATE = 0x11;
+  static final int INS_PAIR = 0x12;
+  static final int INS_UNPAIR = 0x13;
+  static final int INS_VERIFY_PIN = 0x20;
+  static final int INS_CHANGE_PIN = 0x21;
+  static final int INS_UNBLOCK_PIN = 0x22;
+  static final int INS_LOAD_KEY = 0xD0;
+  static final int INS_DERIVE_KEY = 0xD1;
+  static final int INS_GENERATE_MNEMONIC = 0xD2;
+  static final int INS_REMOVE_KEY = 0xD3;
+  static final int INS_GENERATE_KEY = 0xD4;
+  static final int INS_SIGN = 0xC0;
+  static final int INS_SET_PINLESS_PATH = 0xC1;
+  static final int INS_EXPORT_KEY = 0xC2;
+  static final int INS_GET_DATA = 0xCA;
+  static final int INS_STORE_DATA = 0xE2;
+
+  static final int PIN_LENGTH = 6;
+  static final int PUK_LENGTH = 12;
+  static final int DEFAULT_PIN_RETRIES = 3;
+  static final int DEFAULT_PUK_RETRIES = 5;
+  static final int MAX_PATH_LENGTH = 40;
+
+  static final byte TLV_SIGNATURE_TEMPLATE = (byte) 0xA0;
+  static final byte TLV_KEY_TEMPLATE = (byte) 0xA1;
+  static final byte TLV_APPLICATION_STATUS_TEMPLATE = (byte) 0xA3;
+  static final byte TLV_APPLICATION_INFO_TEMPLATE = (byte) 0xA4;
+  static final byte TLV_PUB_KEY = (byte) 0x80;
+  static final byte TLV_PRIV_KEY = (byte) 0x81;
+  static final byte TLV_CHAIN_CODE = (byte) 0x82;
+  static final byte TLV_PUB_DATA = (byte) 0x82;
+  static final byte TLV_CAPABILITIES = (byte) 0x8D;
+  static final byte TLV_KEY_UID = (byte) 0x8E;
+  static final byte TLV_UID = (byte) 0x8F;
+  static final byte TLV_ECDSA_TEMPLATE = (byte) 0x30;
+
+  static final byte CAPABILITIES_ALL = (byte) 0x1F;
+
+  private static final byte[] EIP1581_PREFIX = new byte[]{
+      (byte) 0x80, 0x00, 0x00, 0x2B, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x06, 0x2D
+  };
+
+  private enum Applet {
+    NONE,
+    KEYCARD,
+    CASH
+  }
+
+  private final SecureRandom random;
+  private final CardSecureChannel secureChannel;
+  private final byte[] instanceUID;
+  private final byte[] cashKey;
+  private final byte[][] storedData;
+
+  private Applet selected;
+  private boolean connected;
+  private boolean initialized;
+  private boolean authenticated;
+  private boolean pinVerified;
+  private byte[] pin;
+  private byte[] puk;
+  private int pinRetries;
+  private int pukRetries;
+  private int maxPinRetries;
+  private int maxPukRetries;
+
+  private byte[] masterKey;
+  private byte[] masterChainCode;
+  private byte[] masterPublicKey;
+  private byte[] keyUID;
+  private byte[] currentPath;
+  private byte[] pinlessPath;
+
+  private byte[] derivedPath;
+  private byte[] derivedKey;
+
+  /**
+   * Creates a simulated card in its factory state: applets installed but not initialized.
+   */
+  public KeycardSimulator() {
+    this(new SecureRandom());
+  }
+
+  /**
+   * Creates a simulated card in its factory state, using the given source of randomness for all card-generated
+   * values. A deterministic source, together with a deterministic SecureChannelSession, makes entire sessions
+   * reproducible.
+   *
+   * @param random the source of randomness
+   */
+  public KeycardSimulator(SecureRandom random) {
+    this.random = random;
+    this.secureChannel = new CardSecureChannel(random);
+    this.instanceUID = new byte[16];
+    random.nextBytes(this.instanceUID);
+    this.cashKey = new byte[Secp256k1Keys.KEY_LENGTH];
+    random.nextBytes(this.cashKey);
+    this.cashKey[0] &= 0x7f;
+    this.storedData = new byte[3][];
+    this.selected = Applet.NONE;
+    this.connected = true;
+    resetApplet();
+  }
+
+  /**
+   * Initializes the Keycard applet directly, as if the INIT command had been sent. Useful to prepare a card for
+   * benchmarks without paying for the PBKDF2 derivation of the pairing password.
+   *
+   * @param pin the PIN
+   * @param puk the PUK
+   * @param pairingSecret the 32-byte pairing secret
+   */
+  public synchronized void initialize(String pin, String puk, byte[] pairingSecret) {
+    this.pin = pin.getBytes();
+    this.puk = puk.getBytes();
+    this.maxPinRetries = DEFAULT_PIN_RETRIES;
+    this.maxPukRetries = DEFAULT_PUK_RETRIES;
+    this.pinRetries = maxPinRetries;
+    this.pukRetries = maxPukRetries;
+    this.secureChannel.setPairingSecret(pairingSecret.clone());
+    this.initialized = true;
+  }
+
+  /**
+   * Simulates the card leaving or entering the field. While disconnected, send() fails with an IOException and all
+   * volatile state (selection, secure channel and PIN verification) is lost.
+   *
+   * @param connected the new connection state
+   */
+  public synchronized void setConnected(boolean connected) {
+    if (!connected) {
+      selected = Applet.NONE;
+      secureChannel.close();
+      pinVerified = false;
+    }
+
+    this.connected = connected;
+  }
+
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd) throws IOException {
+    if (!connected) {
+      throw new IOException("Tag disconnected");
+    }
+
+    return new APDUResponse(process(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData()));
+  }
+
+  @Override
+  public synchronized boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public int getMaxCommandDataLength() {
+    return APDUCommand.MAX_EXTENDED_DATA_LENGTH;
+  }
+
+  private byte[] process(int cla, int ins, int p1, int p2, byte[] data) {
+    if (cla == 0x00 && ins == INS_SELECT) {
+      return select(p1, data);
+    }
+
+    switch (selected) {
+      case KEYCARD:
+        return processKeycard(cla, ins, p1, p2, data);
+      case CASH:
+        return processCash(cla, ins, p1, p2, data);
+      default:
+        return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+  }
+
+  private byte[] select(int p1, byte[] aid) {
+    secureChannel.close();
+    authenticated = false;
+    pinVerified = false;
+
+    if (p1 != 0x04) {
+      selected = Applet.NONE;
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    if (startsWith(aid, Identifiers.KEYCARD_AID) && aid.length <= Identifiers.KEYCARD_AID.length + 1) {
+      selected = Applet.KEYCARD;
+      return respond(keycardApplicationInfo(), SW_OK);
+    } else if (Arrays.equals(aid, Identifiers.CASH_INSTANCE_AID)) {
+      selected = Applet.CASH;
+      return respond(cashApplicationInfo(), SW_OK);
+    }
+
+    selected = Applet.NONE;
+    return sw(SW_FILE_NOT_FOUND);
+  }
+
+  private byte[] keycardApplicationInfo() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    if (!initialized) {
+      writeTLV(out, TLV_PUB_KEY, secureChannel.getPublicKey());
+      return out.toByteArray();
+    }
+
+    ByteArrayOutputStream info = new ByteArrayOutputStream();
+    writeTLV(info, TLV_UID, instanceUID);
+    writeTLV(info, TLV_PUB_KEY, secureChannel.getPublicKey());
+    writeTLV(info, TinyBERTLV.TLV_INT, new byte[]{(byte) (APP_VERSION >> 8), (byte) APP_VERSION});
+    writeTLV(info, TinyBERTLV.TLV_INT, new byte[]{(byte) secureChannel.freePairingSlots()});
+    writeTLV(info, TLV_KEY_UID, keyUID == null ? new byte[0] : keyUID);
+    writeTLV(info, TLV_CAPABILITIES, new byte[]{CAPABILITIES_ALL});
+    writeTLV(out, TLV_APPLICATION_INFO_TEMPLATE, info.toByteArray());
+
+    return out.toByteArray();
+  }
+
+  private byte[] cashApplicationInfo() {
+    ByteArrayOutputStream info = new ByteArrayOutputStream();
+    writeTLV(info, TLV_PUB_KEY, Secp256k1Keys.publicKey(cashKey, false));
+    writeTLV(info, TinyBERTLV.TLV_INT, new byte[]{(byte) (APP_VERSION >> 8), (byte) APP_VERSION});
+    writeTLV(info, TLV_PUB_DATA, storedData[2] == null ? new byte[0] : storedData[2]);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTLV(out, TLV_APPLICATION_INFO_TEMPLATE, info.toByteArray());
+    return out.toByteArray();
+  }
+
+  private byte[] processKeycard(int cla, int ins, int p1, int p2, byte[] data) {
+    if (cla != 0x80) {
+      return sw(SW_CLA_NOT_SUPPORTED);
+    }
+
+    if (ins == INS_INIT) {
+      return initialized ? sw(SW_INS_NOT_SUPPORTED) : init(data);
+    }
+
+    if (!initialized) {
+      return sw(SW_INS_NOT_SUPPORTED);
+    }
+
+    switch (ins) {
+      case INS_FACTORY_RESET:
+        return factoryReset(p1, p2);
+      case INS_OPEN_SECURE_CHANNEL:
+        return openSecureChannel(p1, data);
+      case INS_PAIR:
+        if (!secureChannel.isOpen()) {
+          return pair(p1, data);
+        }
+        break;
+      case INS_SIGN:
+        if (!secureChannel.isOpen() && (p1 & 0x03) == 0x03) {
+          return sign(p1, p2, data);
+        }
+        break;
+      default:
+        break;
+    }
+
+    if (!secureChannel.isOpen()) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    byte[] plain = secureChannel.unwrap(cla, ins, p1, p2, data);
+
+    if (plain == null) {
+      secureChannel.close();
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    byte[] response;
+
+    if (ins == INS_MUTUALLY_AUTHENTICATE) {
+      response = mutuallyAuthenticate(plain);
+    } else if (!authenticated) {
+      response = sw(SW_CONDITIONS_NOT_SATISFIED);
+    } else {
+      response = processProtected(ins, p1, p2, plain);
+    }
+
+    int sw = ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+    return respond(secureChannel.wrap(Arrays.copyOf(response, response.length - 2), sw), SW_OK);
+  }
+
+  private byte[] processProtected(int ins, int p1, int p2, byte[] data) {
+    switch (ins) {
+      case INS_PAIR:
+        return pair(p1, data);
+      case INS_UNPAIR:
+        return unpair(p1);
+      case INS_GET_STATUS:
+        return getStatus(p1);
+      case INS_VERIFY_PIN:
+        return verifyPIN(data);
+      case INS_CHANGE_PIN:
+        return changePIN(p1, data);
+      case INS_UNBLOCK_PIN:
+        return unblockPIN(data);
+      case INS_LOAD_KEY:
+        return loadKey(p1, data);
+      case INS_GENERATE_KEY:
+        return generateKey();
+      case INS_REMOVE_KEY:
+        return removeKey();
+      case INS_GENERATE_MNEMONIC:
+        return generateMnemonic(p1);
+      case INS_DERIVE_KEY:
+        return deriveKey(p1, data);
+      case INS_SIGN:
+        return sign(p1, p2, data);
+      case INS_SET_PINLESS_PATH:
+        return setPinlessPath(data);
+      case INS_EXPORT_KEY:
+        return exportKey(p1, p2, data);
+      case INS_GET_DATA:
+        return getData(p1);
+      case INS_STORE_DATA:
+        return storeData(p1, data);
+      case INS_SET_NDEF:
+        return storeData(1, data);
+      default:
+        return sw(SW_INS_NOT_SUPPORTED);
+    }
+  }
+
+  private byte[] init(byte[] data) {
+    byte[] plain = secureChannel.oneShotDecrypt(data);
+    int baseLength = PIN_LENGTH + PUK_LENGTH + CardSecureChannel.SECRET_LENGTH;
+
+    if (plain == null || (plain.length != baseLength && plain.length != (baseLength + 2) && plain.length != (baseLength + 2 + PIN_LENGTH))) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    pin = Arrays.copyOf(plain, PIN_LENGTH);
+    puk = Arrays.copyOfRange(plain, PIN_LENGTH, PIN_LENGTH + PUK_LENGTH);
+    secureChannel.setPairingSecret(Arrays.copyOfRange(plain, PIN_LENGTH + PUK_LENGTH, baseLength));
+
+    boolean customRetries = plain.length > baseLength && plain[baseLength] != 0 && plain[baseLength + 1] != 0;
+    maxPinRetries = customRetries ? plain[baseLength] : DEFAULT_PIN_RETRIES;
+    maxPukRetries = customRetries ? plain[baseLength + 1] : DEFAULT_PUK_RETRIES;
+    pinRetries = maxPinRetries;
+    pukRetries = maxPukRetries;
+    initialized = true;
+
+    return sw(SW_OK);
+  }
+
+  private byte[] factoryReset(int p1, int p2) {
+    if (p1 != 0xAA || p2 != 0x55) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    resetApplet();
+    return sw(SW_OK);
+  }
+
+  private void resetApplet() {
+    secureChannel.reset();
+    initialized = false;
+    authenticated = false;
+    pinVerified = false;
+    pin = null;
+    puk = null;
+    clearKeys();
+    Arrays.fill(storedData, null);
+  }
+
+  private byte[] openSecureChannel(int p1, byte[] data) {
+    if (!secureChannel.isPaired(p1)) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    if (data.length != 65) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    authenticated = false;
+    pinVerified = false;
+    return respond(secureChannel.open(p1, data), SW_OK);
+  }
+
+  private byte[] mutuallyAuthenticate(byte[] data) {
+    if (data.length != CardSecureChannel.SECRET_LENGTH) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    byte[] challenge = new byte[CardSecureChannel.SECRET_LENGTH];
+    random.nextBytes(challenge);
+    authenticated = true;
+    return respond(challenge, SW_OK);
+  }
+
+  private byte[] pair(int p1, byte[] data) {
+    if (p1 > 1) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    if (secureChannel.freePairingSlots() == 0) {
+      return sw(SW_NOT_ENOUGH_MEMORY);
+    }
+
+    byte[] response = secureChannel.pair(p1, data);
+    return response == null ? sw(SW_SECURITY_CONDITION_NOT_SATISFIED) : respond(response, SW_OK);
+  }
+
+  private byte[] unpair(int p1) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    return secureChannel.unpair(p1) ? sw(SW_OK) : sw(SW_INCORRECT_P1P2);
+  }
+
+  private byte[] getStatus(int p1) {
+    if (p1 == 0x01) {
+      return respond(currentPath, SW_OK);
+    } else if (p1 != 0x00) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    ByteArrayOutputStream status = new ByteArrayOutputStream();
+    writeTLV(status, TinyBERTLV.TLV_INT, new byte[]{(byte) pinRetries});
+    writeTLV(status, TinyBERTLV.TLV_INT, new byte[]{(byte) pukRetries});
+    writeTLV(status, TinyBERTLV.TLV_BOOL, new byte[]{(byte) (masterKey != null ? 0xFF : 0x00)});
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTLV(out, TLV_APPLICATION_STATUS_TEMPLATE, status.toByteArray());
+    return respond(out.toByteArray(), SW_OK);
+  }
+
+  private byte[] verifyPIN(byte[] data) {
+    if (pinRetries == 0) {
+      return sw(SW_WRONG_PIN_MASK);
+    }
+
+    if (Arrays.equals(pin, data)) {
+      pinRetries = maxPinRetries;
+      pinVerified = true;
+      return sw(SW_OK);
+    }
+
+    pinRetries--;
+    pinVerified = false;
+    return sw(SW_WRONG_PIN_MASK | pinRetries);
+  }
+
+  private byte[] changePIN(int p1, byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    switch (p1) {
+      case 0x00:
+        if (!isDigits(data, PIN_LENGTH)) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        pin = data;
+        return sw(SW_OK);
+      case 0x01:
+        if (!isDigits(data, PUK_LENGTH)) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        puk = data;
+        return sw(SW_OK);
+      case 0x02:
+        if (data.length != CardSecureChannel.SECRET_LENGTH) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        secureChannel.setPairingSecret(data);
+        return sw(SW_OK);
+      default:
+        return sw(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] unblockPIN(byte[] data) {
+    if (pinRetries != 0) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    if (data.length != PUK_LENGTH + PIN_LENGTH) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (pukRetries == 0) {
+      return sw(SW_WRONG_PIN_MASK);
+    }
+
+    if (!Arrays.equals(puk, Arrays.copyOf(data, PUK_LENGTH))) {
+      pukRetries--;
+      return sw(SW_WRONG_PIN_MASK | pukRetries);
+    }
+
+    pin = Arrays.copyOfRange(data, PUK_LENGTH, data.length);
+    pinRetries = maxPinRetries;
+    pukRetries = maxPukRetries;
+    pinVerified = true;
+    return sw(SW_OK);
+  }
+
+  private byte[] loadKey(int p1, byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    switch (p1) {
+      case 0x01:
+      case 0x02:
+        BIP32KeyPair keyPair;
+
+        try {
+          keyPair = BIP32KeyPair.fromTLV(data);
+        } catch (RuntimeException e) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        if (keyPair.isPublicOnly() || (p1 == 0x02) != keyPair.isExtended()) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        setMasterKey(keyPair.getPrivateKey(), keyPair.getChainCode());
+        break;
+      case 0x03:
+        if (data.length != 64) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        byte[] master = Secp256k1Keys.masterFromSeed(data);
+        setMasterKey(Arrays.copyOf(master, 32), Arrays.copyOfRange(master, 32, 64));
+        break;
+      default:
+        return sw(SW_INCORRECT_P1P2);
+    }
+
+    return respond(keyUID, SW_OK);
+  }
+
+  private byte[] generateKey() {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    byte[] seed = new byte[64];
+    random.nextBytes(seed);
+    byte[] master = Secp256k1Keys.masterFromSeed(seed);
+    setMasterKey(Arrays.copyOf(master, 32), Arrays.copyOfRange(master, 32, 64));
+
+    return respond(keyUID, SW_OK);
+  }
+
+  private byte[] removeKey() {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    clearKeys();
+    return sw(SW_OK);
+  }
+
+  private void setMasterKey(byte[] privateKey, byte[] chainCode) {
+    BigInteger d = new BigInteger(1, privateKey);
+    masterKey = toKeyBytes(d);
+    masterChainCode = chainCode;
+    masterPublicKey = Secp256k1Keys.publicKey(masterKey, false);
+    keyUID = sha256(masterPublicKey);
+    currentPath = new byte[0];
+    derivedPath = null;
+    derivedKey = null;
+  }
+
+  private void clearKeys() {
+    masterKey = null;
+    masterChainCode = null;
+    masterPublicKey = null;
+    keyUID = null;
+    currentPath = new byte[0];
+    pinlessPath = null;
+    derivedPath = null;
+    derivedKey = null;
+  }
+
+  private byte[] generateMnemonic(int p1) {
+    if (p1 < 4 || p1 > 8) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    int entropyLength = p1 * 4;
+    byte[] entropy = new byte[entropyLength + 1];
+    random.nextBytes(entropy);
+    entropy[entropyLength] = sha256(Arrays.copyOf(entropy, entropyLength))[0];
+
+    int wordCount = p1 * 3;
+    byte[] indexes = new byte[wordCount * 2];
+
+    for (int i = 0; i < wordCount; i++) {
+      int index = 0;
+
+      for (int bit = i * 11; bit < (i + 1) * 11; bit++) {
+        index = (index << 1) | ((entropy[bit / 8] >> (7 - (bit % 8))) & 1);
+      }
+
+      indexes[i * 2] = (byte) (index >> 8);
+      indexes[(i * 2) + 1] = (byte) index;
+    }
+
+    return respond(indexes, SW_OK);
+  }
+
+  private byte[] deriveKey(int p1, byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    byte[] path = resolvePath(p1 & 0xC0, data);
+
+    if (path == null) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (masterKey == null || (path.length > 0 && masterChainCode == null)) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    if (privateKeyAt(path) == null) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    currentPath = path;
+    return sw(SW_OK);
+  }
+
+  private byte[] sign(int p1, int p2, byte[] data) {
+    int option = p1 & 0x03;
+    byte[] path;
+
+    if (option == 0x03) {
+      if (pinlessPath == null) {
+        return sw(SW_REFERENCED_DATA_NOT_FOUND);
+      }
+
+      path = pinlessPath;
+    } else if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    } else if (option == 0x00) {
+      path = currentPath;
+    } else {
+      path = resolvePath(p1 & 0xC0, Arrays.copyOfRange(data, Math.min(32, data.length), data.length));
+    }
+
+    if (data.length < 32 || path == null || (option != 0x01 && option != 0x02 && data.length != 32)) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (masterKey == null) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    byte[] privateKey = privateKeyAt(path);
+
+    if (privateKey == null) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (option == 0x02) {
+      currentPath = path;
+    }
+
+    byte[] hash = Arrays.copyOf(data, 32);
+
+    switch (p2) {
+      case 0x00:
+        return respond(legacySignature(privateKey, hash), SW_OK);
+      case 0x01:
+        return respond(rawSignature(privateKey, hash), SW_OK);
+      default:
+        return sw(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] setPinlessPath(byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    if ((data.length % 4) != 0 || data.length > MAX_PATH_LENGTH) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    pinlessPath = data.length == 0 ? null : data;
+    return sw(SW_OK);
+  }
+
+  private byte[] exportKey(int p1, int p2, byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    int option = p1 & 0x03;
+    byte[] path;
+
+    if (option == 0x00) {
+      path = currentPath;
+    } else if (option == 0x03) {
+      return sw(SW_INCORRECT_P1P2);
+    } else {
+      path = resolvePath(p1 & 0xC0, data);
+    }
+
+    if (path == null) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (masterKey == null) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    if (p2 == 0x00 && !startsWith(path, EIP1581_PREFIX)) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    if (p2 == 0x02 && masterChainCode == null) {
+      return sw(SW_CONDITIONS_NOT_SATISFIED);
+    }
+
+    if (p2 > 0x02) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    byte[] derived = derivedKeyAt(path);
+
+    if (derived == null) {
+      return sw(SW_WRONG_DATA);
+    }
+
+    if (option == 0x02) {
+      currentPath = path;
+    }
+
+    byte[] privateKey = Arrays.copyOf(derived, 32);
+    ByteArrayOutputStream key = new ByteArrayOutputStream();
+    writeTLV(key, TLV_PUB_KEY, Secp256k1Keys.publicKey(privateKey, false));
+
+    if (p2 == 0x00) {
+      writeTLV(key, TLV_PRIV_KEY, privateKey);
+    } else if (p2 == 0x02) {
+      writeTLV(key, TLV_CHAIN_CODE, Arrays.copyOfRange(derived, 32, 64));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTLV(out, TLV_KEY_TEMPLATE, key.toByteArray());
+    return respond(out.toByteArray(), SW_OK);
+  }
+
+  private byte[] getData(int p1) {
+    if (p1 >= storedData.length) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    return respond(storedData[p1] == null ? new byte[0] : storedData[p1], SW_OK);
+  }
+
+  private byte[] storeData(int p1, byte[] data) {
+    if (!pinVerified) {
+      return sw(SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    if (p1 >= storedData.length) {
+      return sw(SW_INCORRECT_P1P2);
+    }
+
+    storedData[p1] = data.clone();
+    return sw(SW_OK);
+  }
+
+  private byte[] processCash(int cla, int ins, int p1, int p2, byte[] data) {
+    if (cla != 0x80) {
+      return sw(SW_CLA_NOT_SUPPORTED);
+    }
+
+    if (ins != INS_SIGN) {
+      return sw(SW_INS_NOT_SUPPORTED);
+    }
+
+    switch (p2) {
+      case 0x00:
+        if (data.length != 32) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        return respond(legacySignature(cashKey, data), SW_OK);
+      case 0x01:
+        if (data.length != 192) {
+          return sw(SW_WRONG_DATA);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTLV(out, TLV_PUB_KEY, BLS.sign(cashKey, data));
+        return respond(out.toByteArray(), SW_OK);
+      default:
+        return sw(SW_INCORRECT_P1P2);
+    }
+  }
+
+  /**
+   * Resolves the path sent with DERIVE KEY, SIGN or EXPORT KEY to an absolute path.
+   *
+   * @param source the derivation source, from P1
+   * @param data the path sent by the client
+   * @return the absolute path, or null if invalid
+   */
+  private byte[] resolvePath(int source, byte[] data) {
+    if ((data.length % 4) != 0) {
+      return null;
+    }
+
+    byte[] base;
+
+    switch (source) {
+      case 0x00:
+        base = new byte[0];
+        break;
+      case 0x40:
+        if (currentPath.length == 0) {
+          return null;
+        }
+
+        base = Arrays.copyOf(currentPath, currentPath.length - 4);
+        break;
+      case 0x80:
+        base = currentPath;
+        break;
+      default:
+        return null;
+    }
+
+    if (base.length + data.length > MAX_PATH_LENGTH) {
+      return null;
+    }
+
+    byte[] path = Arrays.copyOf(base, base.length + data.length);
+    System.arraycopy(data, 0, path, base.length, data.length);
+    return path;
+  }
+
+  private byte[] privateKeyAt(byte[] path) {
+    byte[] derived = derivedKeyAt(path);
+    return derived == null ? null : Arrays.copyOf(derived, 32);
+  }
+
+  private byte[] derivedKeyAt(byte[] path) {
+    if (path.length == 0) {
+      byte[] key = Arrays.copyOf(masterKey, 64);
+
+      if (masterChainCode != null) {
+        System.arraycopy(masterChainCode, 0, key, 32, 32);
+      }
+
+      return key;
+    }
+
+    if (masterChainCode == null) {
+      return null;
+    }
+
+    if (!Arrays.equals(path, derivedPath)) {
+      derivedKey = Secp256k1Keys.derive(masterKey, masterChainCode, path);
+      derivedPath = path;
+    }
+
+    return derivedKey;
+  }
+
+  private byte[] legacySignature(byte[] privateKey, byte[] hash) {
+    BigInteger[] rs = Secp256k1Keys.sign(privateKey, hash);
+
+    ByteArrayOutputStream ecdsa = new ByteArrayOutputStream();
+    writeTLV(ecdsa, TinyBERTLV.TLV_INT, rs[0].toByteArray());
+    writeTLV(ecdsa, TinyBERTLV.TLV_INT, rs[1].toByteArray());
+
+    ByteArrayOutputStream signature = new ByteArrayOutputStream();
+    writeTLV(signature, TLV_PUB_KEY, Secp256k1Keys.publicKey(privateKey, false));
+    writeTLV(signature, TLV_ECDSA_TEMPLATE, ecdsa.toByteArray());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTLV(out, TLV_SIGNATURE_TEMPLATE, signature.toByteArray());
+    return out.toByteArray();
+  }
+
+  private byte[] rawSignature(byte[] privateKey, byte[] hash) {
+    byte[] legacy = legacySignature(privateKey, hash);
+    RecoverableSignature signature = new RecoverableSignature(hash, legacy);
+
+    byte[] raw = new byte[65];
+    byte[] r = signature.getR();
+    byte[] s = signature.getS();
+    System.arraycopy(r, 0, raw, 32 - r.length, r.length);
+    System.arraycopy(s, 0, raw, 64 - s.length, s.length);
+    raw[64] = (byte) signature.getRecId();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTLV(out, TLV_PUB_KEY, raw);
+    return out.toByteArray();
+  }
+
+  private static byte[] toKeyBytes(BigInteger d) {
+    byte[] key = d.toByteArray();
+
+    if (key.length == 32) {
+      return key;
+    }
+
+    byte[] out = new byte[32];
+    int len = Math.min(key.length, 32);
+    System.arraycopy(key, key.length - len, out, 32 - len, len);
+    return out;
+  }
+
+  private static boolean isDigits(byte[] data, int length) {
+    if (data.length != length) {
+      return false;
+    }
+
+    for (byte b : data) {
+      if (b < '0' || b > '9') {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    if (data.length < prefix.length) {
+      return false;
+    }
+
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[i] != prefix[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static byte[] sha256(byte[] data) {
+    SHA256Digest sha256 = new SHA256Digest();
+    sha256.update(data, 0, data.length);
+    byte[] out = new byte[32];
+    sha256.doFinal(out, 0);
+    return out;
+  }
+
+  private static void writeTLV(ByteArrayOutputStream out, byte tag, byte[] value) {
+    out.write(tag);
+    TinyBERTLV.writeNum(out, value.length);
+    out.write(value, 0, value.length);
+  }
+
+  private static byte[] respond(byte[] data, int sw) {
+    byte[] response = Arrays.copyOf(data, data.length + 2);
+    response[data.length] = (byte) (sw >> 8);
+    response[data.length + 1] = (byte) sw;
+    return response;
+  }
+
+  private static byte[] sw(int sw) {
+    return new byte[]{(byte) (sw >> 8), (byte) sw};
+  }
+}
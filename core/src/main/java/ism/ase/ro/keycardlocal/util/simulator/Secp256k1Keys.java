@@ -0,0 +1,124 @@
+package ism.ase.ro.keycardlocal.util.simulator;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import ism.ase.ro.keycardlocal.util.crypto.Secp256k1;
+
+/**
+ * secp256k1 key operations performed by the simulated card: public key computation, BIP32 private derivation and
+ * deterministic ECDSA signing.
+ */
+class Secp256k1Keys {
+  static final ECDomainParameters DOMAIN = Secp256k1.DOMAIN;
+
+  private static final BigInteger HALF_N = DOMAIN.getN().shiftRight(1);
+
+  static final int KEY_LENGTH = 32;
+
+  private Secp256k1Keys() {}
+
+  /**
+   * Computes the public key of the given private key.
+   *
+   * @param privateKey the private key
+   * @param compressed whether to return the compressed encoding
+   * @return the encoded public key
+   */
+  static byte[] publicKey(byte[] privateKey, boolean compressed) {
+    return Secp256k1.publicKey(privateKey, compressed);
+  }
+
+  /**
+   * Derives a BIP32 master key from a seed.
+   *
+   * @param seed the seed
+   * @return the private key followed by the chain code
+   */
+  static byte[] masterFromSeed(byte[] seed) {
+    return hmacSHA512("Bitcoin seed".getBytes(), seed, 0, seed.length);
+  }
+
+  /**
+   * Derives the private child key at the given path.
+   *
+   * @param privateKey the parent private key
+   * @param chainCode the parent chain code
+   * @param path the path, 4 bytes per component
+   * @return the private key followed by the chain code, or null if the path leads to an invalid key
+   */
+  static byte[] derive(byte[] privateKey, byte[] chainCode, byte[] path) {
+    BigInteger n = DOMAIN.getN();
+    byte[] key = privateKey;
+    byte[] chain = chainCode;
+    byte[] data = new byte[37];
+
+    for (int i = 0; i < path.length; i += 4) {
+      if ((path[i] & 0x80) == 0x80) {
+        data[0] = 0;
+        System.arraycopy(BigIntegers.asUnsignedByteArray(KEY_LENGTH, new BigInteger(1, key)), 0, data, 1, KEY_LENGTH);
+      } else {
+        System.arraycopy(publicKey(key, true), 0, data, 0, 33);
+      }
+
+      System.arraycopy(path, i, data, 33, 4);
+      byte[] i64 = hmacSHA512(chain, data, 0, data.length);
+      BigInteger il = new BigInteger(1, Arrays.copyOf(i64, KEY_LENGTH));
+
+      if (il.compareTo(n) >= 0) {
+        return null;
+      }
+
+      BigInteger child = il.add(new BigInteger(1, key)).mod(n);
+
+      if (child.signum() == 0) {
+        return null;
+      }
+
+      key = BigIntegers.asUnsignedByteArray(KEY_LENGTH, child);
+      chain = Arrays.copyOfRange(i64, KEY_LENGTH, 64);
+    }
+
+    byte[] result = Arrays.copyOf(BigIntegers.asUnsignedByteArray(KEY_LENGTH, new BigInteger(1, key)), 64);
+    System.arraycopy(chain, 0, result, KEY_LENGTH, KEY_LENGTH);
+    return result;
+  }
+
+  /**
+   * Signs the hash with deterministic (RFC 6979) ECDSA. The s value is normalized to the lower half of the order.
+   *
+   * @param privateKey the private key
+   * @param hash the 32-byte hash
+   * @return r and s
+   */
+  static BigInteger[] sign(byte[] privateKey, byte[] hash) {
+    ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+    signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, privateKey), DOMAIN));
+    BigInteger[] sig = signer.generateSignature(hash);
+
+    if (sig[1].compareTo(HALF_N) > 0) {
+      sig[1] = DOMAIN.getN().subtract(sig[1]);
+    }
+
+    return sig;
+  }
+
+  private static byte[] hmacSHA512(byte[] key, byte[] data, int off, int len) {
+    HMac hmac = new HMac(new SHA512Digest());
+    hmac.init(new KeyParameter(key));
+    hmac.update(data, off, len);
+    byte[] out = new byte[64];
+    hmac.doFinal(out, 0);
+    return out;
+  }
+}
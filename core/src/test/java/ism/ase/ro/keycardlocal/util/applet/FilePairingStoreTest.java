@@ -0,0 +1,116 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FilePairingStoreTest {
+  private static final byte[] KEY = new byte[32];
+  private static final byte[] CARD_A = {0x01, 0x02, 0x03};
+  private static final byte[] CARD_B = {0x04, 0x05, 0x06, 0x07};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Pairing pairing(int seed, int index) {
+    byte[] key = new byte[32];
+
+    for (int i = 0; i < key.length; i++) {
+      key[i] = (byte) (seed + i);
+    }
+
+    return new Pairing(key, (byte) index);
+  }
+
+  private static void assertPairing(Pairing expected, Pairing actual) {
+    assertNotNull(actual);
+    assertArrayEquals(expected.getPairingKey(), actual.getPairingKey());
+    assertEquals(expected.getPairingIndex(), actual.getPairingIndex());
+  }
+
+  @Test
+  public void missingFileIsEmpty() throws IOException {
+    File file = new File(folder.getRoot(), "pairings");
+    FilePairingStore store = new FilePairingStore(file, KEY);
+
+    assertEquals(0, store.size());
+    assertNull(store.get(CARD_A));
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void saveAndLoad() throws IOException {
+    File file = new File(folder.getRoot(), "pairings");
+    FilePairingStore store = new FilePairingStore(file, KEY);
+    store.put(CARD_A, pairing(1, 0));
+    store.put(CARD_B, pairing(2, 3));
+    store.put(CARD_A, pairing(3, 1));
+
+    assertTrue(file.exists());
+    assertFalse(new File(folder.getRoot(), "pairings.tmp").exists());
+
+    FilePairingStore reloaded = new FilePairingStore(file, KEY);
+    assertEquals(2, reloaded.size());
+    assertPairing(pairing(3, 1), reloaded.get(CARD_A));
+    assertPairing(pairing(2, 3), reloaded.get(CARD_B));
+
+    reloaded.remove(CARD_A);
+    reloaded = new FilePairingStore(file, KEY);
+    assertEquals(1, reloaded.size());
+    assertNull(reloaded.get(CARD_A));
+  }
+
+  @Test
+  public void rejectsWrongKey() throws IOException {
+    File file = new File(folder.getRoot(), "pairings");
+    new FilePairingStore(file, KEY).put(CARD_A, pairing(1, 0));
+
+    byte[] otherKey = KEY.clone();
+    otherKey[0] = 1;
+
+    try {
+      new FilePairingStore(file, otherKey);
+      fail("a store encrypted with another key must not load");
+    } catch (IOException e) {
+      assertEquals("The pairing store is corrupted or encrypted with another key", e.getMessage());
+    }
+  }
+
+  @Test
+  public void rejectsModifiedFile() throws IOException {
+    File file = new File(folder.getRoot(), "pairings");
+    new FilePairingStore(file, KEY).put(CARD_A, pairing(1, 0));
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0x01);
+    }
+
+    try {
+      new FilePairingStore(file, KEY);
+      fail("a modified store must not load");
+    } catch (IOException e) {
+      assertEquals("The pairing store is corrupted or encrypted with another key", e.getMessage());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsUnknownFormat() throws IOException {
+    File file = new File(folder.getRoot(), "pairings");
+
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(new byte[] {0x7F, 0x0C});
+    }
+
+    new FilePairingStore(file, KEY);
+  }
+}
@@ -0,0 +1,122 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ism.ase.ro.keycardlocal.util.simulator.KeycardSimulator;
+
+import static org.junit.Assert.*;
+
+public class PairingSecretCacheTest {
+  private static final int ITERATIONS = 10;
+
+  private PairingSecretCache cache;
+
+  @After
+  public void close() {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void derivesSameSecretAsUncached() {
+    cache = new PairingSecretCache();
+    byte[] expected = PairingSecretCache.computeSecret("KeycardTest", ITERATIONS);
+
+    assertEquals(PairingSecretCache.SECRET_LENGTH, expected.length);
+    assertArrayEquals(expected, cache.derive("KeycardTest", ITERATIONS));
+    assertArrayEquals(expected, cache.derive("KeycardTest", ITERATIONS));
+    assertEquals(1, cache.size());
+
+    // the iteration count is part of the key
+    assertFalse(Arrays.equals(expected, cache.derive("KeycardTest", ITERATIONS + 1)));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void returnsCopies() {
+    cache = new PairingSecretCache();
+    byte[] first = cache.derive("KeycardTest", ITERATIONS);
+    byte[] expected = first.clone();
+
+    Arrays.fill(first, (byte) 0);
+    assertArrayEquals(expected, cache.derive("KeycardTest", ITERATIONS));
+  }
+
+  @Test
+  public void evictsBeyondCapacity() {
+    cache = new PairingSecretCache(2, PairingSecretCache.DEFAULT_TTL_MS);
+
+    cache.derive("a", ITERATIONS);
+    cache.derive("b", ITERATIONS);
+    assertEquals(2, cache.size());
+
+    for (String password : new String[]{"c", "d", "a", "e"}) {
+      assertArrayEquals(PairingSecretCache.computeSecret(password, ITERATIONS), cache.derive(password, ITERATIONS));
+      assertEquals(2, cache.size());
+    }
+  }
+
+  @Test
+  public void expiresEntries() throws InterruptedException {
+    cache = new PairingSecretCache(4, 50);
+
+    byte[] secret = cache.derive("KeycardTest", ITERATIONS);
+    assertEquals(1, cache.size());
+
+    Thread.sleep(100);
+    assertEquals(0, cache.size());
+    assertArrayEquals(secret, cache.derive("KeycardTest", ITERATIONS));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void precomputes() throws InterruptedException {
+    cache = new PairingSecretCache();
+    cache.precompute("KeycardTest", ITERATIONS);
+
+    for (int i = 0; i < 100 && cache.size() == 0; i++) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(1, cache.size());
+    assertArrayEquals(PairingSecretCache.computeSecret("KeycardTest", ITERATIONS), cache.derive("KeycardTest", ITERATIONS));
+  }
+
+  @Test
+  public void clearAndClose() {
+    cache = new PairingSecretCache();
+    cache.derive("a", ITERATIONS);
+    cache.derive("b", ITERATIONS);
+
+    cache.clear();
+    assertEquals(0, cache.size());
+
+    cache.close();
+    assertArrayEquals(PairingSecretCache.computeSecret("a", ITERATIONS), cache.derive("a", ITERATIONS));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void commandSetUsesCacheOnlyWhenSet() {
+    KeycardCommandSet cmdSet = new KeycardCommandSet(new KeycardSimulator());
+    int sharedSize = PairingSecretCache.getShared().size();
+    byte[] expected = cmdSet.pairingPasswordToSecret("KeycardTest");
+
+    cmdSet.precomputePairingSecret("KeycardTest");
+    assertEquals(sharedSize, PairingSecretCache.getShared().size());
+
+    cache = new PairingSecretCache();
+    cmdSet.setPairingSecretCache(cache);
+    assertArrayEquals(expected, cmdSet.pairingPasswordToSecret("KeycardTest"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidCapacity() {
+    new PairingSecretCache(0, PairingSecretCache.DEFAULT_TTL_MS);
+  }
+}
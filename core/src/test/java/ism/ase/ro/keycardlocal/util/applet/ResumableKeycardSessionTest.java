@@ -0,0 +1,106 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.Security;
+
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.simulator.KeycardSimulator;
+
+import static org.junit.Assert.*;
+
+public class ResumableKeycardSessionTest {
+  private static final String PIN = "000000";
+  private static final String PUK = "123456789012";
+
+  @BeforeClass
+  public static void addProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  private static void startDaemon(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static byte[] hash(String message) {
+    return CryptoBackend.get().sha256(message.getBytes());
+  }
+
+  @Test
+  public void resumesSessionAfterTagLoss() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    byte[] secret = new byte[32];
+    card.initialize(PIN, PUK, secret);
+
+    // onConnected holds the tag until it is lost, like the callback thread of a card manager
+    ResumableKeycardSession session = new ResumableKeycardSession(5000);
+    startDaemon(() -> session.onConnected(card));
+
+    try {
+      KeycardCommandSet cmdSet = session.getCommandSet();
+      cmdSet.select().checkOK();
+      cmdSet.autoPair(secret);
+      cmdSet.autoOpenSecureChannel();
+      cmdSet.verifyPIN(PIN.getBytes()).checkAuthOK();
+      cmdSet.generateKey().checkOK();
+
+      byte[] publicKey = BIP32KeyPair.fromTLV(cmdSet.exportCurrentKey(true).checkOK().getData()).getPublicKey();
+
+      // the card leaves the field and comes back while the next command is pending
+      card.setConnected(false);
+      startDaemon(() -> {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        card.setConnected(true);
+        session.onConnected(card);
+      });
+
+      byte[] hash = hash("resumed");
+      APDUResponse response = cmdSet.sign(hash);
+
+      // SIGN needs the PIN, so the session has verified it again
+      assertTrue(response.isOK());
+      assertEquals(1, session.getResumeCount());
+      assertArrayEquals(publicKey, new RecoverableSignature(hash, response.getData()).getPublicKey());
+    } finally {
+      session.close();
+    }
+  }
+
+  @Test
+  public void closedSessionFailsCommands() throws Exception {
+    ResumableKeycardSession session = new ResumableKeycardSession(5000);
+    session.close();
+
+    try {
+      session.getCommandSet().select();
+      fail("a closed session must not wait for a card");
+    } catch (IOException e) {
+      assertEquals("Session closed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void idempotentCommands() {
+    assertTrue(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_GET_STATUS, 0));
+    assertTrue(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_SIGN, KeycardCommandSet.SIGN_P1_CURRENT_KEY));
+    assertTrue(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_SIGN, KeycardCommandSet.SIGN_P1_DERIVE_AND_MAKE_CURRENT | KeycardCommandSet.DERIVE_P1_SOURCE_MASTER));
+    assertFalse(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_SIGN, KeycardCommandSet.SIGN_P1_DERIVE_AND_MAKE_CURRENT | (KeycardCommandSet.DERIVE_P1_SOURCE_CURRENT & 0xff)));
+    assertTrue(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_DERIVE_KEY, KeycardCommandSet.DERIVE_P1_SOURCE_MASTER));
+    assertFalse(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_DERIVE_KEY, KeycardCommandSet.DERIVE_P1_SOURCE_PARENT));
+    assertFalse(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_GENERATE_KEY, 0));
+    assertFalse(ResumableKeycardSession.isIdempotent(KeycardCommandSet.INS_CHANGE_PIN, 0));
+  }
+}
@@ -0,0 +1,255 @@
+package ism.ase.ro.keycardlocal.util.applet;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.BigIntegers;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.CardChannel;
+import ism.ase.ro.keycardlocal.util.simulator.KeycardSimulator;
+
+import static org.junit.Assert.*;
+
+public class SecureChannelSessionTest {
+  private static final String PIN = "000000";
+  private static final String PUK = "123456789012";
+
+  @BeforeClass
+  public static void addProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  /**
+   * Forwards to the simulator, letting the test alter the next command or response on the wire.
+   */
+  private static class TamperingChannel implements CardChannel {
+    private final CardChannel card;
+    private UnaryOperator<byte[]> commandTamper;
+    private UnaryOperator<byte[]> responseTamper;
+
+    TamperingChannel(CardChannel card) {
+      this.card = card;
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      if (commandTamper != null) {
+        byte[] data = commandTamper.apply(cmd.getData().clone());
+        commandTamper = null;
+        cmd = new APDUCommand(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), data);
+      }
+
+      APDUResponse response = card.send(cmd);
+
+      if (responseTamper != null) {
+        byte[] raw = responseTamper.apply(response.getBytes().clone());
+        responseTamper = null;
+        response = new APDUResponse(raw);
+      }
+
+      return response;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return card.isConnected();
+    }
+  }
+
+  private static KeycardCommandSet openSession(TamperingChannel channel) throws Exception {
+    KeycardCommandSet cmdSet = new KeycardCommandSet(channel);
+    cmdSet.select().checkOK();
+    cmdSet.autoPair(new byte[32]);
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN(PIN).checkAuthOK();
+    return cmdSet;
+  }
+
+  private static byte[] flip(byte[] bytes, int index) {
+    bytes[index] ^= 0x01;
+    return bytes;
+  }
+
+  private static TamperingChannel simulator() {
+    KeycardSimulator card = new KeycardSimulator();
+    card.initialize(PIN, PUK, new byte[32]);
+    return new TamperingChannel(card);
+  }
+
+  @Test
+  public void wrapUnwrapRoundTrip() throws Exception {
+    KeycardCommandSet cmdSet = openSession(simulator());
+    SecureRandom random = new SecureRandom();
+
+    // around each block boundary, since the padding always adds at least one byte
+    int[] lengths = {0, 1, 14, 15, 16, 17, 31, 32, 33, 100, SecureChannelSession.PAYLOAD_MAX_SIZE};
+
+    for (int length : lengths) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+
+      cmdSet.storeData(data, KeycardCommandSet.STORE_DATA_P1_PUBLIC).checkOK();
+      APDUResponse response = cmdSet.getData(KeycardCommandSet.STORE_DATA_P1_PUBLIC).checkOK();
+      assertArrayEquals("length " + length, data, response.getData());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOversizedPayload() throws Exception {
+    openSession(simulator()).storeData(new byte[SecureChannelSession.PAYLOAD_MAX_SIZE + 1], KeycardCommandSet.STORE_DATA_P1_PUBLIC);
+  }
+
+  @Test
+  public void rejectsResponseWithInvalidMAC() throws Exception {
+    TamperingChannel channel = simulator();
+    KeycardCommandSet cmdSet = openSession(channel);
+
+    channel.responseTamper = raw -> flip(raw, 0);
+
+    try {
+      cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION);
+      fail("a response with an altered MAC must be rejected");
+    } catch (IOException e) {
+      assertEquals("Invalid MAC", e.getMessage());
+    }
+  }
+
+  @Test
+  public void rejectsResponseWithAlteredCiphertext() throws Exception {
+    TamperingChannel channel = simulator();
+    KeycardCommandSet cmdSet = openSession(channel);
+
+    channel.responseTamper = raw -> flip(raw, SecureChannelSession.SC_BLOCK_SIZE);
+
+    try {
+      cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION);
+      fail("a response with an altered ciphertext must be rejected");
+    } catch (IOException e) {
+      assertEquals("Invalid MAC", e.getMessage());
+    }
+  }
+
+  @Test
+  public void rejectsTruncatedResponse() throws Exception {
+    TamperingChannel channel = simulator();
+    KeycardCommandSet cmdSet = openSession(channel);
+
+    // drop half a block, the data is no longer a MAC followed by whole blocks
+    channel.responseTamper = raw -> Arrays.copyOfRange(raw, 8, raw.length);
+
+    try {
+      cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION);
+      fail("a truncated response must be rejected");
+    } catch (IOException e) {
+      assertEquals("Invalid MAC", e.getMessage());
+    }
+  }
+
+  @Test
+  public void cardRejectsCommandWithInvalidMAC() throws Exception {
+    TamperingChannel channel = simulator();
+    KeycardCommandSet cmdSet = openSession(channel);
+
+    channel.commandTamper = data -> flip(data, 0);
+    assertEquals(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED, cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION).getSw());
+
+    // both sides have dropped the session, a new one can be opened
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION).checkOK();
+  }
+
+  @Test
+  public void rejectsInvalidPadding() throws Exception {
+    X9ECParameters curve = CustomNamedCurves.getByName("secp256k1");
+    ECDomainParameters domain = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+    ECKeyPairGenerator generator = new ECKeyPairGenerator();
+    generator.init(new ECKeyGenerationParameters(domain, new SecureRandom()));
+    AsymmetricCipherKeyPair cardKey = generator.generateKeyPair();
+
+    // the test plays the card, so that it can send a response with a valid MAC but no ISO7816-4 padding
+    SecureChannelSession session = new SecureChannelSession();
+    session.generateSecret(((ECPublicKeyParameters) cardKey.getPublic()).getQ().getEncoded(false));
+
+    ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+    agreement.init(cardKey.getPrivate());
+    ECPublicKeyParameters clientKey = new ECPublicKeyParameters(domain.getCurve().decodePoint(session.getPublicKey()), domain);
+    byte[] secret = BigIntegers.asUnsignedByteArray(32, agreement.calculateAgreement(clientKey));
+
+    byte[] pairingKey = new byte[32];
+    byte[] openResponse = new byte[32 + 16 + 2];
+    new SecureRandom().nextBytes(openResponse);
+    openResponse[48] = (byte) 0x90;
+    openResponse[49] = 0x00;
+
+    session.setPairing(new Pairing(pairingKey, (byte) 0));
+    session.processOpenSecureChannelResponse(new APDUResponse(openResponse));
+
+    byte[] keys = CryptoBackend.get().sha512(secret, pairingKey, Arrays.copyOf(openResponse, 32));
+    KeyParameter encKey = new KeyParameter(keys, 0, 32);
+    KeyParameter macKey = new KeyParameter(keys, 32, 32);
+
+    CardChannel forger = new CardChannel() {
+      @Override
+      public APDUResponse send(APDUCommand cmd) {
+        // the IV of the response is the MAC of the command
+        byte[] iv = Arrays.copyOf(cmd.getData(), 16);
+        byte[] plain = new byte[16];
+        Arrays.fill(plain, (byte) 0x11);
+
+        CBCBlockCipher cipher = new CBCBlockCipher(new AESEngine());
+        cipher.init(true, new ParametersWithIV(encKey, iv));
+        byte[] encrypted = new byte[16];
+        cipher.processBlock(plain, 0, encrypted, 0);
+
+        byte[] meta = new byte[16];
+        meta[0] = 32;
+        CBCBlockCipherMac mac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+        mac.init(macKey);
+        mac.update(meta, 0, meta.length);
+        mac.update(encrypted, 0, encrypted.length);
+
+        byte[] response = new byte[34];
+        mac.doFinal(response, 0);
+        System.arraycopy(encrypted, 0, response, 16, 16);
+        response[32] = (byte) 0x90;
+        return new APDUResponse(response);
+      }
+
+      @Override
+      public boolean isConnected() {
+        return true;
+      }
+    };
+
+    try {
+      session.transmit(forger, session.protectedCommand(0x80, KeycardCommandSet.INS_GET_STATUS, 0, 0, new byte[0]));
+      fail("a plaintext without padding must be rejected");
+    } catch (IOException e) {
+      assertEquals("Invalid padding", e.getMessage());
+    }
+  }
+}
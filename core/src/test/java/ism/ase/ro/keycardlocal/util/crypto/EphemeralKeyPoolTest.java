@@ -0,0 +1,74 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EphemeralKeyPoolTest {
+  private static void awaitAvailable(EphemeralKeyPool pool, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+    while (pool.getAvailable() < count) {
+      assertTrue("the pool was not refilled", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void keysAgreeOnceAndOnlyOnce() {
+    SecureRandom random = new SecureRandom();
+    EphemeralKey a = EphemeralKey.generate(random);
+    EphemeralKey b = EphemeralKey.generate(random);
+    byte[] publicKeyA = a.getPublicKey();
+
+    byte[] secret = a.agree(b.getPublicKey());
+    assertEquals(32, secret.length);
+    assertTrue(a.isDestroyed());
+    assertArrayEquals(secret, b.agree(publicKeyA));
+
+    try {
+      a.agree(b.getPublicKey());
+      fail("an ephemeral key must not be used twice");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void refillsInTheBackground() throws InterruptedException {
+    try (EphemeralKeyPool pool = new EphemeralKeyPool(2)) {
+      awaitAvailable(pool, 2);
+
+      EphemeralKey first = pool.take();
+      EphemeralKey second = pool.take();
+      assertFalse(first.isDestroyed());
+      assertNotSame(first, second);
+      assertFalse(Arrays.equals(first.getPublicKey(), second.getPublicKey()));
+      assertEquals(0, pool.getMisses());
+
+      awaitAvailable(pool, 2);
+    }
+  }
+
+  @Test
+  public void generatesOnTheCallingThreadOnceClosed() throws InterruptedException {
+    EphemeralKeyPool pool = new EphemeralKeyPool(1);
+    awaitAvailable(pool, 1);
+    pool.close();
+
+    assertEquals(0, pool.getAvailable());
+
+    EphemeralKey key = pool.take();
+    assertFalse(key.isDestroyed());
+    assertEquals(1, pool.getMisses());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidCapacity() {
+    new EphemeralKeyPool(0);
+  }
+}
@@ -0,0 +1,145 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the lightweight backend gives the same results as the JCA one, which delegates to the BouncyCastle
+ * provider, for every primitive and for inputs around the block boundaries.
+ */
+public class LightweightCryptoBackendTest {
+  private static final int[] LENGTHS = {0, 1, 7, 8, 9, 15, 16, 17, 31, 32, 33, 64, 100, 255};
+
+  private final CryptoBackend lightweight = new LightweightCryptoBackend();
+  private final CryptoBackend jca = new JCACryptoBackend();
+  private final Random random = new Random(42);
+
+  @BeforeClass
+  public static void addProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void knownDigests() {
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", Hex.toHexString(lightweight.sha256("abc".getBytes())));
+    assertEquals("ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f", Hex.toHexString(lightweight.sha512("a".getBytes(), "bc".getBytes())));
+  }
+
+  @Test
+  public void digests() {
+    for (int length : LENGTHS) {
+      byte[] a = randomBytes(length);
+      byte[] b = randomBytes(length / 2);
+
+      assertArrayEquals(jca.sha256(a), lightweight.sha256(a));
+      assertArrayEquals(jca.sha256(a, b), lightweight.sha256(a, b));
+      assertArrayEquals(jca.sha512(a), lightweight.sha512(a));
+      assertArrayEquals(jca.sha512(a, b), lightweight.sha512(a, b));
+    }
+  }
+
+  @Test
+  public void hmac() {
+    for (int length : LENGTHS) {
+      byte[] key = randomBytes(length == 0 ? 1 : length);
+      byte[] data = randomBytes(length);
+      assertArrayEquals(jca.hmacSHA512(key, data), lightweight.hmacSHA512(key, data));
+    }
+
+    // longer than the block size, the key is hashed first
+    byte[] longKey = randomBytes(200);
+    assertArrayEquals(jca.hmacSHA512(longKey, longKey), lightweight.hmacSHA512(longKey, longKey));
+  }
+
+  @Test
+  public void pbkdf2() {
+    char[] password = "KeycardTest".toCharArray();
+    byte[] salt = "Keycard Pairing Password Salt".getBytes();
+
+    assertArrayEquals(jca.pbkdf2SHA256(password, salt, 10, 32), lightweight.pbkdf2SHA256(password, salt, 10, 32));
+    assertArrayEquals(jca.pbkdf2SHA512(password, salt, 10, 64), lightweight.pbkdf2SHA512(password, salt, 10, 64));
+    assertArrayEquals(jca.pbkdf2SHA512(password, salt, 3, 100), lightweight.pbkdf2SHA512(password, salt, 3, 100));
+  }
+
+  @Test
+  public void aes() {
+    byte[] key = randomBytes(32);
+    byte[] iv = randomBytes(16);
+
+    for (int length : LENGTHS) {
+      byte[] data = randomBytes(length);
+      assertArrayEquals("length " + length, jca.aesCBCEncrypt(key, iv, data), lightweight.aesCBCEncrypt(key, iv, data));
+    }
+  }
+
+  @Test
+  public void des() {
+    byte[] key = randomBytes(8);
+    byte[] iv = randomBytes(8);
+
+    for (int blocks = 1; blocks <= 4; blocks++) {
+      byte[] data = randomBytes(8 * blocks + 3);
+
+      assertArrayEquals(jca.desECBEncrypt(key, Arrays.copyOf(data, 8 * blocks)), lightweight.desECBEncrypt(key, Arrays.copyOf(data, 8 * blocks)));
+      assertArrayEquals(jca.desCBCEncrypt(key, iv, data, 3, 8 * blocks), lightweight.desCBCEncrypt(key, iv, data, 3, 8 * blocks));
+    }
+  }
+
+  @Test
+  public void des3() {
+    for (int keyLength : new int[] {16, 24}) {
+      byte[] key = randomBytes(keyLength);
+      byte[] iv = randomBytes(8);
+
+      for (int blocks = 1; blocks <= 4; blocks++) {
+        byte[] data = randomBytes(8 * blocks + 5);
+        byte[] aligned = Arrays.copyOf(data, 8 * blocks);
+
+        assertArrayEquals(jca.des3ECBEncrypt(key, aligned), lightweight.des3ECBEncrypt(key, aligned));
+        assertArrayEquals(jca.des3CBCEncrypt(key, iv, data, 5, 8 * blocks), lightweight.des3CBCEncrypt(key, iv, data, 5, 8 * blocks));
+      }
+    }
+  }
+
+  @Test
+  public void failedCallDoesNotAffectTheNextOne() {
+    byte[] data = randomBytes(40);
+    byte[] expected = jca.sha256(data);
+
+    try {
+      lightweight.sha256(data, null);
+      fail("a null input must fail");
+    } catch (NullPointerException e) {
+      // the digest has already absorbed the first array
+    }
+
+    assertArrayEquals(expected, lightweight.sha256(data));
+
+    byte[] key = randomBytes(32);
+
+    try {
+      lightweight.hmacSHA512(key, null);
+      fail("a null input must fail");
+    } catch (NullPointerException e) {
+      // expected
+    }
+
+    assertArrayEquals(jca.hmacSHA512(key, data), lightweight.hmacSHA512(key, data));
+  }
+}
@@ -0,0 +1,95 @@
+package ism.ase.ro.keycardlocal.util.crypto;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import ism.ase.ro.keycardlocal.util.applet.RecoverableSignature;
+
+import static org.junit.Assert.*;
+
+public class Secp256k1Test {
+  private static final String G = "0479be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8";
+  private static final String TWO_G = "04c6047f9441ed7d6d3045406e95c07cd85c778e4b8cef3ca7abac09b95c709ee51ae168fea63dc339a3c58419466ceaeef7f632653266d0e1236431a950cfe52a";
+  private static final String SIX_G_X = "fff97bd5755eeea420453a14355235d382f6472f8568a18b2f057a1460297556";
+
+  // RFC 6979 signature of SHA-256("Satoshi Nakamoto") with the private key 1, normalized to a low S
+  private static final String SATOSHI_R = "934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d8";
+  private static final String SATOSHI_S = "2442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5";
+
+  private static byte[] scalar(int value) {
+    byte[] key = new byte[Secp256k1.KEY_LENGTH];
+    key[key.length - 1] = (byte) value;
+    return key;
+  }
+
+  private static byte[] satoshiHash() {
+    return CryptoBackend.get().sha256("Satoshi Nakamoto".getBytes());
+  }
+
+  @Test
+  public void publicKeys() {
+    assertEquals(G, Hex.toHexString(Secp256k1.publicKey(scalar(1), false)));
+    assertEquals(TWO_G, Hex.toHexString(Secp256k1.publicKey(scalar(2), false)));
+    assertEquals("02" + TWO_G.substring(2, 66), Hex.toHexString(Secp256k1.publicKey(scalar(2), true)));
+  }
+
+  @Test
+  public void ecdh() {
+    byte[] secret = Secp256k1.ecdh(scalar(2), Secp256k1.publicKey(scalar(3), false));
+    assertEquals(SIX_G_X, Hex.toHexString(secret));
+
+    // compressed and uncompressed peer keys give the same secret, in both directions
+    assertArrayEquals(secret, Secp256k1.ecdh(scalar(3), Secp256k1.publicKey(scalar(2), true)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPointNotOnCurve() {
+    byte[] point = Hex.decode(G);
+    point[64] ^= 0x01;
+    Secp256k1.decodePoint(point);
+  }
+
+  @Test
+  public void verify() {
+    BigInteger r = new BigInteger(SATOSHI_R, 16);
+    BigInteger s = new BigInteger(SATOSHI_S, 16);
+    byte[] hash = satoshiHash();
+
+    assertTrue(Secp256k1.verify(hash, r, s, Hex.decode(G)));
+    assertTrue(Secp256k1.verify(hash, r, s, Secp256k1.publicKey(scalar(1), true)));
+    assertFalse(Secp256k1.verify(hash, r, s, Hex.decode(TWO_G)));
+    assertFalse(Secp256k1.verify(hash, r, s.add(BigInteger.ONE), Hex.decode(G)));
+
+    hash[0] ^= 0x01;
+    assertFalse(Secp256k1.verify(hash, r, s, Hex.decode(G)));
+  }
+
+  @Test
+  public void recovery() {
+    byte[] hash = satoshiHash();
+    byte[] raw = new byte[67];
+    raw[0] = RecoverableSignature.TLV_RAW_SIGNATURE;
+    raw[1] = 65;
+    System.arraycopy(Hex.decode(SATOSHI_R), 0, raw, 2, 32);
+    System.arraycopy(Hex.decode(SATOSHI_S), 0, raw, 34, 32);
+
+    int matches = 0;
+
+    for (int recId = 0; recId < 2; recId++) {
+      raw[66] = (byte) recId;
+      byte[] recovered = new RecoverableSignature(hash, raw).getPublicKey();
+
+      if (Arrays.equals(Hex.decode(G), recovered)) {
+        matches++;
+      } else {
+        // the other candidate is another key for which the signature is valid too
+        assertTrue(Secp256k1.verify(hash, new BigInteger(SATOSHI_R, 16), new BigInteger(SATOSHI_S, 16), recovered));
+      }
+    }
+
+    assertEquals(1, matches);
+  }
+}
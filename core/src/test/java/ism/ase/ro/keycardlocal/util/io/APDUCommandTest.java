@@ -0,0 +1,125 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class APDUCommandTest {
+  private static byte[] bytes(int... values) {
+    byte[] out = new byte[values.length];
+
+    for (int i = 0; i < values.length; i++) {
+      out[i] = (byte) values[i];
+    }
+
+    return out;
+  }
+
+  private static byte[] serialize(APDUCommand cmd) throws IOException {
+    byte[] apdu = cmd.serialize();
+    assertEquals(cmd.getSerializedLength(), apdu.length);
+    return apdu;
+  }
+
+  @Test
+  public void shortEncoding() throws IOException {
+    // case 1: header only, with a zero Lc
+    assertArrayEquals(bytes(0x80, 0xF2, 0x01, 0x02, 0x00), serialize(new APDUCommand(0x80, 0xF2, 0x01, 0x02, new byte[0])));
+
+    // case 2: Le only
+    assertArrayEquals(bytes(0x00, 0xB0, 0x00, 0x00, 0x00), serialize(new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], true)));
+    assertArrayEquals(bytes(0x00, 0xB0, 0x00, 0x00, 0x10), serialize(new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], 16)));
+
+    // case 3 and 4
+    assertArrayEquals(bytes(0x80, 0xE2, 0x00, 0x00, 0x02, 0xAA, 0xBB), serialize(new APDUCommand(0x80, 0xE2, 0x00, 0x00, bytes(0xAA, 0xBB))));
+    assertArrayEquals(bytes(0x00, 0xA4, 0x04, 0x00, 0x01, 0xAA, 0x00), serialize(new APDUCommand(0x00, 0xA4, 0x04, 0x00, bytes(0xAA), true)));
+
+    // 256 bytes is the largest short Le, encoded as zero
+    APDUCommand max = new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], 256);
+    assertFalse(max.isExtendedLength());
+    assertArrayEquals(bytes(0x00, 0xB0, 0x00, 0x00, 0x00), serialize(max));
+  }
+
+  @Test
+  public void extendedLc() throws IOException {
+    APDUCommand shortest = new APDUCommand(0x80, 0xE8, 0x00, 0x01, new byte[APDUCommand.MAX_SHORT_DATA_LENGTH]);
+    assertFalse(shortest.isExtendedLength());
+    assertEquals(5 + APDUCommand.MAX_SHORT_DATA_LENGTH, serialize(shortest).length);
+
+    byte[] data = new byte[APDUCommand.MAX_SHORT_DATA_LENGTH + 1];
+    data[0] = 0x11;
+    data[data.length - 1] = 0x22;
+
+    APDUCommand cmd = new APDUCommand(0x80, 0xE8, 0x00, 0x01, data);
+    assertTrue(cmd.isExtendedLength());
+
+    byte[] apdu = serialize(cmd);
+    assertEquals(7 + data.length, apdu.length);
+    assertArrayEquals(bytes(0x80, 0xE8, 0x00, 0x01, 0x00, 0x01, 0x00), Arrays.copyOf(apdu, 7));
+    assertEquals(0x11, apdu[7]);
+    assertEquals(0x22, apdu[apdu.length - 1]);
+  }
+
+  @Test
+  public void extendedLcAndLe() throws IOException {
+    byte[] data = new byte[APDUCommand.MAX_EXTENDED_DATA_LENGTH];
+    APDUCommand cmd = new APDUCommand(0x80, 0xE8, 0x00, 0x00, data, true);
+
+    byte[] apdu = serialize(cmd);
+    assertEquals(4 + 3 + data.length + 2, apdu.length);
+    assertEquals(0x00, apdu[4]);
+    assertEquals((byte) 0xFF, apdu[5]);
+    assertEquals((byte) 0xFF, apdu[6]);
+
+    // Le of 65536 is encoded as two zero bytes
+    assertEquals(0x00, apdu[apdu.length - 2]);
+    assertEquals(0x00, apdu[apdu.length - 1]);
+  }
+
+  @Test
+  public void extendedLeOnly() throws IOException {
+    // an expected length beyond 256 bytes forces the extended encoding: a zero byte, then the 2-byte Le
+    APDUCommand cmd = new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], 0x0123);
+    assertTrue(cmd.isExtendedLength());
+    assertArrayEquals(bytes(0x00, 0xB0, 0x00, 0x00, 0x00, 0x01, 0x23), serialize(cmd));
+
+    APDUCommand max = new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], APDUCommand.MAX_EXTENDED_DATA_LENGTH + 1);
+    assertArrayEquals(bytes(0x00, 0xB0, 0x00, 0x00, 0x00, 0x00, 0x00), serialize(max));
+  }
+
+  @Test
+  public void forcedExtendedEncoding() throws IOException {
+    APDUCommand cmd = new APDUCommand(0x80, 0xCA, 0x00, 0x00, bytes(0xAA), true, true);
+    assertArrayEquals(bytes(0x80, 0xCA, 0x00, 0x00, 0x00, 0x00, 0x01, 0xAA, 0x00, 0x00), serialize(cmd));
+
+    // without data nor Le there is nothing to encode in extended form
+    APDUCommand empty = new APDUCommand(0x80, 0xCA, 0x00, 0x00, new byte[0], false, true);
+    assertFalse(empty.isExtendedLength());
+    assertArrayEquals(bytes(0x80, 0xCA, 0x00, 0x00, 0x00), serialize(empty));
+  }
+
+  @Test
+  public void serializeIntoBuffer() throws IOException {
+    APDUCommand cmd = new APDUCommand(0x80, 0xE8, 0x00, 0x01, new byte[300], true);
+    ByteBuffer buffer = ByteBuffer.allocate(cmd.getSerializedLength() + 3);
+    buffer.position(3);
+
+    assertEquals(cmd.getSerializedLength(), cmd.serializeInto(buffer));
+    assertEquals(buffer.capacity(), buffer.position());
+    assertArrayEquals(cmd.serialize(), Arrays.copyOfRange(buffer.array(), 3, buffer.capacity()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTooMuchData() {
+    new APDUCommand(0x80, 0xE8, 0x00, 0x00, new byte[APDUCommand.MAX_EXTENDED_DATA_LENGTH + 1]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidLe() {
+    new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], APDUCommand.MAX_EXTENDED_DATA_LENGTH + 2);
+  }
+}
@@ -0,0 +1,79 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+public class APDUResponseTest {
+  private static final byte[] RAW = {0x11, 0x22, 0x33, (byte) 0x90, 0x00};
+
+  @Test
+  public void parsesStatusWord() {
+    APDUResponse response = new APDUResponse(new byte[] {0x01, 0x63, (byte) 0xC2});
+    assertEquals(0x63C2, response.getSw());
+    assertEquals(0x63, response.getSw1());
+    assertEquals(0xC2, response.getSw2());
+    assertEquals(1, response.getDataLength());
+    assertFalse(response.isOK());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsShortResponse() {
+    new APDUResponse(new byte[] {(byte) 0x90});
+  }
+
+  @Test
+  public void wrapDoesNotCopy() {
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.position(4);
+    buffer.put(RAW);
+    buffer.position(4);
+
+    APDUResponse response = APDUResponse.wrap(buffer, RAW.length);
+    assertEquals(4 + RAW.length, buffer.position());
+    assertTrue(response.isOK());
+    assertEquals(3, response.getDataLength());
+
+    // the response is a view on the buffer until the data is first copied out
+    buffer.put(5, (byte) 0x44);
+    assertEquals(0x44, response.getDataBuffer().get(1));
+    assertArrayEquals(new byte[] {0x11, 0x44, 0x33}, response.getData());
+  }
+
+  @Test
+  public void wrapDirectBuffer() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(RAW.length);
+    buffer.put(RAW);
+    buffer.flip();
+
+    APDUResponse response = APDUResponse.wrap(buffer, RAW.length);
+    assertEquals(RAW.length, buffer.position());
+    assertArrayEquals(RAW, response.getBytes());
+  }
+
+  @Test(expected = ReadOnlyBufferException.class)
+  public void dataBufferIsReadOnly() {
+    APDUResponse response = new APDUResponse(RAW);
+    ByteBuffer data = response.getDataBuffer();
+    assertEquals(3, data.remaining());
+    assertEquals(0x11, data.get(0));
+    data.put(0, (byte) 0);
+  }
+
+  @Test
+  public void getBytesOfWrappedSlice() {
+    byte[] backing = new byte[RAW.length + 2];
+    System.arraycopy(RAW, 0, backing, 1, RAW.length);
+
+    ByteBuffer buffer = ByteBuffer.wrap(backing);
+    buffer.position(1);
+
+    APDUResponse response = APDUResponse.wrap(buffer, RAW.length);
+    assertArrayEquals(RAW, response.getBytes());
+    assertSame(response.getBytes(), response.getBytes());
+    assertArrayEquals(new byte[] {0x11, 0x22, 0x33}, response.getData());
+  }
+}
@@ -0,0 +1,147 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveTimeoutPolicyTest {
+  private static final APDUCommand GET_STATUS = new APDUCommand(0x80, 0xF2, 0x00, 0x00, new byte[0]);
+  private static final APDUCommand GET_STATUS_KEY_PATH = new APDUCommand(0x80, 0xF2, 0x01, 0x00, new byte[0]);
+  private static final APDUCommand GET_DATA = new APDUCommand(0x80, 0xCA, 0x00, 0x00, new byte[0]);
+  private static final APDUCommand SIGN = new APDUCommand(0x80, 0xC0, 0x00, 0x00, new byte[32]);
+  private static final APDUCommand GENERATE_KEY = new APDUCommand(0x80, 0xD4, 0x00, 0x00, new byte[0]);
+
+  private static void record(AdaptiveTimeoutPolicy policy, APDUCommand cmd, int count, long millis) {
+    for (int i = 0; i < count; i++) {
+      policy.recordLatency(cmd, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+
+  private static int expectedTimeout(int count, long millis) {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 0; i < count; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    long p99 = TimeUnit.NANOSECONDS.toMillis(histogram.snapshot().getValueAtPercentile(99));
+    return (int) Math.ceil(p99 * AdaptiveTimeoutPolicy.DEFAULT_MULTIPLIER);
+  }
+
+  @Test
+  public void defaults() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+    assertEquals(AdaptiveTimeoutPolicy.SLOW_COMMAND_TIMEOUT_MS, policy.getTimeoutMillis(GENERATE_KEY));
+
+    AdaptiveTimeoutPolicy bounded = new AdaptiveTimeoutPolicy(100, 10000, 2.0);
+    assertEquals(10000, bounded.getTimeoutMillis(GENERATE_KEY));
+  }
+
+  @Test
+  public void learnsFromSamples() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+
+    record(policy, GET_DATA, AdaptiveTimeoutPolicy.MIN_SAMPLES - 1, 100);
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_DATA));
+
+    record(policy, GET_DATA, 1, 100);
+    int learned = expectedTimeout(AdaptiveTimeoutPolicy.MIN_SAMPLES, 100);
+    assertEquals(learned, policy.getTimeoutMillis(GET_DATA));
+    assertTrue(learned >= 400 && learned < AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS);
+
+    // other commands keep their own default
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+
+    // the learned timeout is only recomputed every RECOMPUTE_INTERVAL samples
+    record(policy, GET_DATA, AdaptiveTimeoutPolicy.RECOMPUTE_INTERVAL - AdaptiveTimeoutPolicy.MIN_SAMPLES - 1, 1000);
+    assertEquals(learned, policy.getTimeoutMillis(GET_DATA));
+    record(policy, GET_DATA, 1, 1000);
+    assertTrue(policy.getTimeoutMillis(GET_DATA) > learned);
+
+    policy.reset();
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_DATA));
+  }
+
+  @Test
+  public void clampsLearnedTimeout() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy(200, 1000, 4.0);
+
+    record(policy, GET_STATUS, AdaptiveTimeoutPolicy.MIN_SAMPLES, 1);
+    assertEquals(200, policy.getTimeoutMillis(GET_STATUS));
+
+    record(policy, GET_DATA, AdaptiveTimeoutPolicy.MIN_SAMPLES, 500);
+    assertEquals(1000, policy.getTimeoutMillis(GET_DATA));
+  }
+
+  @Test
+  public void backsOff() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+
+    policy.recordTimeout(GET_STATUS);
+    assertEquals(2 * AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+    policy.recordTimeout(GET_STATUS);
+    assertEquals(4 * AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+
+    // the back-off is per command
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_DATA));
+
+    for (int i = 0; i < 64; i++) {
+      policy.recordTimeout(GET_STATUS);
+    }
+
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_MAX_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+
+    // a response resets the back-off
+    policy.recordLatency(GET_STATUS, TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS));
+  }
+
+  @Test
+  public void backsOffFromLearnedTimeout() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+    record(policy, GET_DATA, AdaptiveTimeoutPolicy.MIN_SAMPLES, 100);
+    int learned = policy.getTimeoutMillis(GET_DATA);
+
+    policy.recordTimeout(GET_DATA);
+    assertEquals(2 * learned, policy.getTimeoutMillis(GET_DATA));
+
+    policy.recordLatency(GET_DATA, TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(learned, policy.getTimeoutMillis(GET_DATA));
+  }
+
+  @Test
+  public void keyedOnP1() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+    record(policy, GET_STATUS, AdaptiveTimeoutPolicy.MIN_SAMPLES, 10);
+    assertTrue(policy.getTimeoutMillis(GET_STATUS) < AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS);
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS_KEY_PATH));
+
+    policy.recordTimeout(GET_STATUS_KEY_PATH);
+    assertEquals(2 * AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(GET_STATUS_KEY_PATH));
+    assertTrue(policy.getTimeoutMillis(GET_STATUS) < AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS);
+  }
+
+  @Test
+  public void variableCostCommandsKeepTheDefault() {
+    AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+    record(policy, SIGN, AdaptiveTimeoutPolicy.MIN_SAMPLES, 10);
+    assertEquals(AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS, policy.getTimeoutMillis(SIGN));
+
+    // slower than the default, the learned timeout is used
+    record(policy, SIGN, AdaptiveTimeoutPolicy.RECOMPUTE_INTERVAL - AdaptiveTimeoutPolicy.MIN_SAMPLES, 3000);
+    assertTrue(policy.getTimeoutMillis(SIGN) > AdaptiveTimeoutPolicy.DEFAULT_TIMEOUT_MS);
+
+    // the floor never exceeds the maximum
+    AdaptiveTimeoutPolicy bounded = new AdaptiveTimeoutPolicy(100, 1000, 4.0);
+    record(bounded, SIGN, AdaptiveTimeoutPolicy.MIN_SAMPLES, 10);
+    assertEquals(1000, bounded.getTimeoutMillis(SIGN));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidBounds() {
+    new AdaptiveTimeoutPolicy(1000, 100, 4.0);
+  }
+}
@@ -0,0 +1,49 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+  @Test
+  public void reusesReleasedBuffers() {
+    BufferPool pool = new BufferPool();
+    ByteBuffer buffer = pool.acquire();
+    assertEquals(BufferPool.SHORT_APDU_BUFFER_SIZE, buffer.capacity());
+
+    buffer.put((byte) 1);
+    pool.release(buffer);
+
+    ByteBuffer again = pool.acquire(16);
+    assertSame(buffer, again);
+    assertEquals(0, again.position());
+    assertEquals(again.capacity(), again.limit());
+  }
+
+  @Test
+  public void oversizedBuffersAreNotRetained() {
+    BufferPool pool = new BufferPool(32, 4);
+    ByteBuffer large = pool.acquire(64);
+    assertEquals(64, large.capacity());
+
+    pool.release(large);
+    assertNotSame(large, pool.acquire(64));
+    assertEquals(32, pool.acquire().capacity());
+  }
+
+  @Test
+  public void keepsAtMostMaxPooled() {
+    BufferPool pool = new BufferPool(32, 1);
+    ByteBuffer first = pool.acquire();
+    ByteBuffer second = pool.acquire();
+    assertNotSame(first, second);
+
+    pool.release(first);
+    pool.release(second);
+
+    assertSame(first, pool.acquire());
+    assertNotSame(second, pool.acquire());
+  }
+}
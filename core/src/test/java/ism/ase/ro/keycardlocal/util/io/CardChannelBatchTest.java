@@ -0,0 +1,76 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CardChannelBatchTest {
+  /**
+   * Answers each command with the SW given by its P1, 0 standing for 0x9000.
+   */
+  private static class EchoCardChannel implements CardChannel {
+    private final List<APDUCommand> sent = new ArrayList<>();
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      sent.add(cmd);
+      return new APDUResponse(cmd.getP1() == 0 ? new byte[] {(byte) 0x90, 0x00} : new byte[] {0x6A, (byte) cmd.getP1()});
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+  }
+
+  private static List<APDUCommand> commands(int... p1s) {
+    List<APDUCommand> cmds = new ArrayList<>();
+
+    for (int p1 : p1s) {
+      cmds.add(new APDUCommand(0x80, 0xCA, p1, 0x00, new byte[0]));
+    }
+
+    return cmds;
+  }
+
+  @Test
+  public void stopsOnError() throws IOException {
+    EchoCardChannel channel = new EchoCardChannel();
+    BatchResult result = channel.sendBatch(commands(0, 0x88, 0));
+
+    assertEquals(2, channel.sent.size());
+    assertEquals(3, result.getCommandCount());
+    assertFalse(result.isComplete());
+    assertEquals(1, result.getErrorCount());
+    assertEquals(0x6A88, result.get(1).getSw());
+  }
+
+  @Test
+  public void continuesOnError() throws IOException {
+    EchoCardChannel channel = new EchoCardChannel();
+    BatchResult result = channel.sendBatch(commands(0x88, 0, 0x82), BatchPolicy.CONTINUE_ON_ERROR);
+
+    assertEquals(3, channel.sent.size());
+    assertTrue(result.isComplete());
+    assertEquals(2, result.getErrorCount());
+
+    try {
+      result.checkOK();
+      fail("a batch with errors must not pass checkOK");
+    } catch (APDUException e) {
+      assertEquals(0x6A88, e.sw);
+    }
+  }
+
+  @Test
+  public void emptyBatch() throws IOException {
+    BatchResult result = new EchoCardChannel().sendBatch(Arrays.asList(), BatchPolicy.STOP_ON_ERROR);
+    assertTrue(result.isComplete());
+    assertEquals(0, result.getErrorCount());
+  }
+}
@@ -0,0 +1,91 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+  private static void assertBucket(long value) {
+    int index = LatencyHistogram.bucketIndex(value);
+    long upper = LatencyHistogram.bucketUpperBound(index);
+
+    assertTrue("value " + value + " above its bucket", value <= upper);
+
+    if (index > 0) {
+      assertTrue("value " + value + " fits the previous bucket", value > LatencyHistogram.bucketUpperBound(index - 1));
+    }
+
+    // the bucket width is at most 1/16 of its lower bound
+    assertTrue("bucket of " + value + " too wide", (upper - value) <= Math.max(value / 16, 0));
+  }
+
+  @Test
+  public void linearBelowSixteen() {
+    for (int i = 0; i < 16; i++) {
+      assertEquals(i, LatencyHistogram.bucketIndex(i));
+      assertEquals(i, LatencyHistogram.bucketUpperBound(i));
+    }
+  }
+
+  @Test
+  public void bucketBoundaries() {
+    assertEquals(16, LatencyHistogram.bucketIndex(16));
+    assertEquals(31, LatencyHistogram.bucketIndex(31));
+    assertEquals(32, LatencyHistogram.bucketIndex(32));
+    assertEquals(32, LatencyHistogram.bucketIndex(33));
+    assertEquals(33, LatencyHistogram.bucketIndex(34));
+    assertEquals(33, LatencyHistogram.bucketUpperBound(32));
+
+    for (int exponent = 4; exponent < 63; exponent++) {
+      long power = 1L << exponent;
+      assertBucket(power - 1);
+      assertBucket(power);
+      assertBucket(power + 1);
+    }
+
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void indexIsMonotonic() {
+    Random random = new Random(1);
+    int previous = LatencyHistogram.bucketIndex(0);
+
+    for (long value = 1; value < 100000; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(index == previous || index == previous + 1);
+      previous = index;
+    }
+
+    for (int i = 0; i < 10000; i++) {
+      assertBucket((random.nextLong() >>> 1) >>> random.nextInt(63));
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().getValueAtPercentile(50));
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    histogram.record(-5);
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1001, snapshot.getCount());
+    assertEquals(0, snapshot.getMin());
+    assertEquals(1000000, snapshot.getMax());
+    assertEquals(1000000, snapshot.getValueAtPercentile(100));
+
+    long median = snapshot.getValueAtPercentile(50);
+    assertTrue(median >= 500000 && median <= 500000 + 500000 / 16);
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.snapshot().getMax());
+  }
+}
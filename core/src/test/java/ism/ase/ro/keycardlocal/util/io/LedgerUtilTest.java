@@ -0,0 +1,154 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LedgerUtilTest {
+  private static final int SEGMENT_SIZE = 20;
+
+  private static byte[] sequence(int length) {
+    byte[] data = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) i;
+    }
+
+    return data;
+  }
+
+  private static List<byte[]> encode(byte[] data, int segmentSize, boolean channelInfo) {
+    LedgerUtil.FrameEncoder encoder = new LedgerUtil.FrameEncoder(data, data.length, segmentSize, channelInfo);
+    List<byte[]> frames = new ArrayList<>();
+
+    while (encoder.hasNext()) {
+      byte[] chunk = new byte[segmentSize];
+      encoder.next(chunk);
+      frames.add(chunk);
+    }
+
+    return frames;
+  }
+
+  private static byte[] decode(List<byte[]> frames, int segmentSize, boolean channelInfo) throws IOException {
+    LedgerUtil.FrameDecoder decoder = new LedgerUtil.FrameDecoder(segmentSize, channelInfo);
+
+    for (int i = 0; i < frames.size(); i++) {
+      assertEquals(i == frames.size() - 1, decoder.update(frames.get(i)));
+    }
+
+    return decoder.getResponse();
+  }
+
+  @Test
+  public void encodesHeaders() {
+    List<byte[]> frames = encode(sequence(30), SEGMENT_SIZE, false);
+
+    // 15 bytes in the first frame after tag, sequence and length, 17 in the following ones
+    assertEquals(2, frames.size());
+    assertArrayEquals(new byte[]{0x05, 0x00, 0x00, 0x00, 30}, Arrays.copyOf(frames.get(0), 5));
+    assertArrayEquals(new byte[]{0x05, 0x00, 0x01}, Arrays.copyOf(frames.get(1), 3));
+
+    // the second frame carries the remaining 15 bytes and is padded with zeroes
+    assertEquals(15, frames.get(1)[3]);
+    assertEquals(29, frames.get(1)[3 + 14]);
+    assertArrayEquals(new byte[2], Arrays.copyOfRange(frames.get(1), 3 + 15, SEGMENT_SIZE));
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    for (boolean channelInfo : new boolean[]{false, true}) {
+      for (int length = 0; length < 100; length++) {
+        byte[] data = sequence(length);
+        assertArrayEquals(data, decode(encode(data, SEGMENT_SIZE, channelInfo), SEGMENT_SIZE, channelInfo));
+      }
+    }
+  }
+
+  @Test
+  public void responseFillingFirstSegment() throws IOException {
+    // 3 bytes of header and 2 of length, or 5 and 2 with the channel id
+    for (boolean channelInfo : new boolean[]{false, true}) {
+      int length = SEGMENT_SIZE - (channelInfo ? 7 : 5);
+      byte[] data = sequence(length);
+      List<byte[]> frames = encode(data, SEGMENT_SIZE, channelInfo);
+
+      assertEquals(1, frames.size());
+      assertArrayEquals(data, decode(frames, SEGMENT_SIZE, channelInfo));
+
+      byte[] longer = sequence(length + 1);
+      assertEquals(2, encode(longer, SEGMENT_SIZE, channelInfo).size());
+    }
+  }
+
+  @Test
+  public void rejectsInvalidFrames() throws IOException {
+    List<byte[]> frames = encode(sequence(40), SEGMENT_SIZE, false);
+
+    LedgerUtil.FrameDecoder decoder = new LedgerUtil.FrameDecoder(SEGMENT_SIZE, false);
+    assertFalse(decoder.update(frames.get(0)));
+
+    try {
+      decoder.update(frames.get(0));
+      fail("a repeated sequence number must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+
+    decoder = new LedgerUtil.FrameDecoder(SEGMENT_SIZE, false);
+    byte[] badTag = frames.get(0).clone();
+    badTag[0] = 0x06;
+
+    try {
+      decoder.update(badTag);
+      fail("an unknown tag must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+
+    decoder = new LedgerUtil.FrameDecoder(SEGMENT_SIZE, false);
+    assertTrue(decoder.update(encode(sequence(3), SEGMENT_SIZE, false).get(0)));
+
+    try {
+      decoder.update(frames.get(1));
+      fail("a frame after the complete response must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void send() throws IOException {
+    APDUCommand cmd = new APDUCommand(0x80, 0xF2, 0x00, 0x00, sequence(50));
+    byte[] response = sequence(SEGMENT_SIZE - 5);
+    response[response.length - 2] = (byte) 0x90;
+    response[response.length - 1] = 0x00;
+
+    List<byte[]> written = new ArrayList<>();
+    ArrayDeque<byte[]> toRead = new ArrayDeque<>(encode(response, SEGMENT_SIZE, false));
+
+    APDUResponse resp = LedgerUtil.send(cmd, SEGMENT_SIZE, false, new LedgerUtil.Callback() {
+      @Override
+      public void write(byte[] chunk) {
+        written.add(chunk.clone());
+      }
+
+      @Override
+      public void read(byte[] chunk) {
+        byte[] frame = toRead.poll();
+        System.arraycopy(frame, 0, chunk, 0, frame.length);
+      }
+    }, new BufferPool());
+
+    assertArrayEquals(cmd.serialize(), decode(written, SEGMENT_SIZE, false));
+    assertTrue(toRead.isEmpty());
+    assertTrue(resp.isOK());
+    assertArrayEquals(Arrays.copyOf(response, response.length - 2), resp.getData());
+  }
+}
@@ -0,0 +1,119 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ism.ase.ro.keycardlocal.util.applet.KeycardCommandSet;
+import ism.ase.ro.keycardlocal.util.simulator.KeycardSimulator;
+
+import static org.junit.Assert.*;
+
+public class RecordingCardChannelTest {
+  private static final String PIN = "000000";
+  private static final String PUK = "123456789012";
+
+  private static final APDUCommand UNKNOWN_INS = new APDUCommand(0x80, 0x7E, 0x00, 0x00, new byte[] {0x01, 0x02});
+
+  private static byte[] record(KeycardSimulator card, List<APDUResponse> responses) throws Exception {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    RecordingCardChannel recorder = new RecordingCardChannel(card, trace);
+    KeycardCommandSet cmdSet = new KeycardCommandSet(recorder);
+
+    responses.add(cmdSet.select().checkOK());
+    responses.add(recorder.send(UNKNOWN_INS));
+
+    card.setConnected(false);
+
+    try {
+      recorder.send(UNKNOWN_INS);
+      fail("a disconnected card must not answer");
+    } catch (IOException e) {
+      // recorded as an error
+    }
+
+    card.setConnected(true);
+    recorder.close();
+
+    return trace.toByteArray();
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    card.initialize(PIN, PUK, new byte[32]);
+
+    List<APDUResponse> recorded = new ArrayList<>();
+    ReplayCardChannel replay = new ReplayCardChannel(new ByteArrayInputStream(record(card, recorded)));
+    assertEquals(card.getMaxCommandDataLength(), replay.getMaxCommandDataLength());
+    assertEquals(card.pairingPasswordPBKDF2IterationCount(), replay.pairingPasswordPBKDF2IterationCount());
+    assertEquals(3, replay.remaining());
+    assertTrue(replay.isConnected());
+
+    KeycardCommandSet cmdSet = new KeycardCommandSet(replay);
+    assertArrayEquals(recorded.get(0).getBytes(), cmdSet.select().checkOK().getBytes());
+    assertArrayEquals(recorded.get(1).getBytes(), replay.send(UNKNOWN_INS).getBytes());
+
+    try {
+      replay.send(UNKNOWN_INS);
+      fail("the recorded error must be replayed");
+    } catch (IOException e) {
+      assertFalse(e.getMessage().contains("trace"));
+    }
+
+    assertEquals(0, replay.remaining());
+    assertFalse(replay.isConnected());
+
+    try {
+      replay.send(UNKNOWN_INS);
+      fail("nothing is left to replay");
+    } catch (IOException e) {
+      assertEquals("End of trace reached", e.getMessage());
+    }
+
+    replay.rewind();
+    assertEquals(3, replay.remaining());
+  }
+
+  @Test
+  public void strictModeComparesTheWholeCommand() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    card.initialize(PIN, PUK, new byte[32]);
+    byte[] trace = record(card, new ArrayList<>());
+
+    APDUCommand otherData = new APDUCommand(0x80, 0x7E, 0x00, 0x00, new byte[] {0x03, 0x04});
+
+    ReplayCardChannel strict = new ReplayCardChannel(new ByteArrayInputStream(trace));
+    new KeycardCommandSet(strict).select().checkOK();
+
+    try {
+      strict.send(otherData);
+      fail("a different command must not match in strict mode");
+    } catch (IOException e) {
+      assertEquals("Command 2 does not match the trace", e.getMessage());
+    }
+
+    ReplayCardChannel lenient = new ReplayCardChannel(new ByteArrayInputStream(trace), false, ReplayCardChannel.Latency.NONE, 1.0);
+    new KeycardCommandSet(lenient).select().checkOK();
+    lenient.send(otherData);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsForeignData() throws Exception {
+    new ReplayCardChannel(new ByteArrayInputStream(new byte[] {'K', 'C', 'T', 'X', 2}));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedTrace() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    byte[] trace = record(card, new ArrayList<>());
+    byte[] truncated = new byte[trace.length - 1];
+    System.arraycopy(trace, 0, truncated, 0, truncated.length);
+
+    new ReplayCardChannel(new ByteArrayInputStream(truncated));
+  }
+}
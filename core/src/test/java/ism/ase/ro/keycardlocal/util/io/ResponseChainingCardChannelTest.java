@@ -0,0 +1,154 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResponseChainingCardChannelTest {
+  /**
+   * Returns scripted responses and records the commands it receives.
+   */
+  private static class ScriptedCardChannel implements CardChannel {
+    final ArrayDeque<byte[]> responses = new ArrayDeque<>();
+    final List<APDUCommand> commands = new ArrayList<>();
+
+    ScriptedCardChannel respond(byte[]... responses) {
+      for (byte[] response : responses) {
+        this.responses.addLast(response);
+      }
+
+      return this;
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      commands.add(cmd);
+
+      if (responses.isEmpty()) {
+        throw new IOException("No response scripted");
+      }
+
+      return new APDUResponse(responses.pollFirst());
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+  }
+
+  @Test
+  public void passesThroughCompleteResponses() throws IOException {
+    ScriptedCardChannel card = new ScriptedCardChannel().respond(new byte[]{0x01, (byte) 0x90, 0x00});
+    ResponseChainingCardChannel channel = new ResponseChainingCardChannel(card);
+
+    APDUResponse response = channel.send(new APDUCommand(0x80, 0xF2, 0x00, 0x00, new byte[0]));
+    assertArrayEquals(new byte[]{0x01}, response.getData());
+    assertEquals(1, card.commands.size());
+    assertEquals(0, channel.getExtraRoundTrips());
+  }
+
+  @Test
+  public void followsResponseBytesAvailable() throws IOException {
+    ScriptedCardChannel card = new ScriptedCardChannel().respond(
+        new byte[]{0x01, 0x02, 0x61, 0x03},
+        new byte[]{0x03, 0x04, 0x05, 0x61, 0x01},
+        new byte[]{0x06, (byte) 0x90, 0x00});
+    ResponseChainingCardChannel channel = new ResponseChainingCardChannel(card);
+
+    APDUResponse response = channel.send(new APDUCommand(0x81, 0xCA, 0x00, 0x00, new byte[0]));
+    assertEquals(0x9000, response.getSw());
+    assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06}, response.getData());
+
+    assertEquals(3, card.commands.size());
+    APDUCommand getResponse = card.commands.get(1);
+    assertEquals(0x01, getResponse.getCla());
+    assertEquals(ResponseChainingCardChannel.INS_GET_RESPONSE, getResponse.getIns());
+    assertEquals(3, getResponse.getLe());
+    assertEquals(1, card.commands.get(2).getLe());
+    assertEquals(2, channel.getResponseCount());
+    assertEquals(0, channel.getReissueCount());
+  }
+
+  @Test
+  public void responseBytesAvailableZeroMeans256() throws IOException {
+    byte[] rest = new byte[258];
+    rest[256] = (byte) 0x90;
+
+    ScriptedCardChannel card = new ScriptedCardChannel().respond(new byte[]{0x61, 0x00}, rest);
+    APDUResponse response = new ResponseChainingCardChannel(card).send(new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0]));
+
+    assertEquals(256, card.commands.get(1).getLe());
+    assertEquals(256, response.getDataLength());
+    assertTrue(response.isOK());
+  }
+
+  @Test
+  public void reissuesWrongLe() throws IOException {
+    ScriptedCardChannel card = new ScriptedCardChannel().respond(new byte[]{0x6C, 0x04}, new byte[]{0x01, 0x02, 0x03, 0x04, (byte) 0x90, 0x00});
+    ResponseChainingCardChannel channel = new ResponseChainingCardChannel(card);
+
+    APDUCommand cmd = new APDUCommand(0x00, 0xB0, 0x00, 0x10, new byte[0], 2);
+    APDUResponse response = channel.send(cmd);
+
+    assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04}, response.getData());
+    assertEquals(2, card.commands.size());
+
+    APDUCommand reissued = card.commands.get(1);
+    assertEquals(cmd.getCla(), reissued.getCla());
+    assertEquals(cmd.getIns(), reissued.getIns());
+    assertEquals(cmd.getP2(), reissued.getP2());
+    assertEquals(4, reissued.getLe());
+    assertEquals(1, channel.getReissueCount());
+  }
+
+  @Test
+  public void reissuedCommandCanBeChained() throws IOException {
+    ScriptedCardChannel card = new ScriptedCardChannel().respond(new byte[]{0x6C, 0x02}, new byte[]{0x01, 0x61, 0x01}, new byte[]{0x02, (byte) 0x90, 0x00});
+    ResponseChainingCardChannel channel = new ResponseChainingCardChannel(card);
+
+    APDUResponse response = channel.send(new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0], 1));
+    assertArrayEquals(new byte[]{0x01, 0x02}, response.getData());
+    assertEquals(2, channel.getExtraRoundTrips());
+  }
+
+  @Test
+  public void doesNotReissueSecureMessaging() throws IOException {
+    for (int cla : new int[]{0x80, 0x84, 0x0C, 0x04}) {
+      ScriptedCardChannel card = new ScriptedCardChannel().respond(new byte[]{0x6C, 0x10});
+      ResponseChainingCardChannel channel = new ResponseChainingCardChannel(card);
+
+      APDUResponse response = channel.send(new APDUCommand(cla, 0xC0, 0x00, 0x00, new byte[16]));
+      assertEquals(0x6C10, response.getSw());
+      assertEquals(1, card.commands.size());
+      assertEquals(0, channel.getReissueCount());
+    }
+  }
+
+  @Test
+  public void canReissue() {
+    assertTrue(ResponseChainingCardChannel.canReissue(0x00));
+    assertTrue(ResponseChainingCardChannel.canReissue(0x03));
+    assertTrue(ResponseChainingCardChannel.canReissue(0x10));
+    assertFalse(ResponseChainingCardChannel.canReissue(0x04));
+    assertFalse(ResponseChainingCardChannel.canReissue(0x08));
+    assertFalse(ResponseChainingCardChannel.canReissue(0x0C));
+    assertFalse(ResponseChainingCardChannel.canReissue(0x80));
+  }
+
+  @Test(expected = IOException.class)
+  public void boundsChainLength() throws IOException {
+    ScriptedCardChannel card = new ScriptedCardChannel();
+
+    for (int i = 0; i < 300; i++) {
+      card.respond(new byte[]{0x00, 0x61, 0x01});
+    }
+
+    new ResponseChainingCardChannel(card).send(new APDUCommand(0x00, 0xB0, 0x00, 0x00, new byte[0]));
+  }
+}
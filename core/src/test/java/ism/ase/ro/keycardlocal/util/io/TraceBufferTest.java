@@ -0,0 +1,84 @@
+package ism.ase.ro.keycardlocal.util.io;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+  @Test
+  public void roundsCapacityUp() {
+    assertEquals(1, new TraceBuffer(1).getCapacity());
+    assertEquals(8, new TraceBuffer(5).getCapacity());
+    assertEquals(8, new TraceBuffer(8).getCapacity());
+  }
+
+  @Test
+  public void recordsEvents() {
+    TraceBuffer trace = new TraceBuffer(4);
+    trace.record(new APDUCommand(0x80, 0xC0, 0x01, 0x02, new byte[32]), new APDUResponse(new byte[]{0x01, 0x02, (byte) 0x90, 0x00}), 1000, 500);
+    trace.recordFailure(new APDUCommand(0x00, 0xA4, 0x04, 0x00, new byte[9]), 2000, 700);
+
+    List<TraceBuffer.Event> events = trace.snapshot();
+    assertEquals(2, events.size());
+
+    TraceBuffer.Event event = events.get(0);
+    assertEquals(0, event.getSequence());
+    assertEquals(0x80, event.getCla());
+    assertEquals(0xC0, event.getIns());
+    assertEquals(0x01, event.getP1());
+    assertEquals(0x02, event.getP2());
+    assertEquals(32, event.getLc());
+    assertEquals(0x9000, event.getSw());
+    assertEquals(2, event.getResponseLength());
+    assertEquals(1000, event.getTimestampNanos());
+    assertEquals(500, event.getDurationNanos());
+
+    event = events.get(1);
+    assertEquals(0xA4, event.getIns());
+    assertEquals(TraceBuffer.SW_NONE, event.getSw());
+    assertEquals(0, event.getResponseLength());
+  }
+
+  @Test
+  public void wrapsAround() {
+    TraceBuffer trace = new TraceBuffer(4);
+
+    for (int i = 0; i < 10; i++) {
+      trace.record(0x80, i, 0, 0, i, 0x9000, 0, i * 100, 10);
+    }
+
+    assertEquals(10, trace.getRecordedCount());
+
+    List<TraceBuffer.Event> events = trace.snapshot();
+    assertEquals(4, events.size());
+
+    // the oldest events have been overwritten, the newest are returned oldest first
+    for (int i = 0; i < 4; i++) {
+      TraceBuffer.Event event = events.get(i);
+      assertEquals(6 + i, event.getSequence());
+      assertEquals(6 + i, event.getIns());
+      assertEquals(6 + i, event.getLc());
+      assertEquals((6 + i) * 100, event.getTimestampNanos());
+    }
+  }
+
+  @Test
+  public void clear() {
+    TraceBuffer trace = new TraceBuffer(4);
+
+    for (int i = 0; i < 6; i++) {
+      trace.record(0x80, i, 0, 0, 0, 0x9000, 0, 0, 0);
+    }
+
+    trace.clear();
+    assertTrue(trace.snapshot().isEmpty());
+    assertEquals("", trace.dump());
+
+    trace.record(0x80, 0xF2, 0, 0, 0, 0x9000, 0, 0, 0);
+    List<TraceBuffer.Event> events = trace.snapshot();
+    assertEquals(1, events.size());
+    assertEquals(6, events.get(0).getSequence());
+  }
+}
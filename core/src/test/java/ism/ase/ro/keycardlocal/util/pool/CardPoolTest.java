@@ -0,0 +1,118 @@
+package ism.ase.ro.keycardlocal.util.pool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ism.ase.ro.keycardlocal.util.io.APDUCommand;
+import ism.ase.ro.keycardlocal.util.io.APDUResponse;
+import ism.ase.ro.keycardlocal.util.io.CardChannel;
+
+import static org.junit.Assert.*;
+
+public class CardPoolTest {
+  private static final CardChannel NO_CARD = new CardChannel() {
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      throw new IOException("no card");
+    }
+
+    @Override
+    public boolean isConnected() {
+      return false;
+    }
+  };
+
+  private static void awaitRemoval(CardPool pool, String id) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+    while (pool.get(id) != null) {
+      assertTrue("card " + id + " not removed", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void requeuesPoolJobAfterIOException() throws Exception {
+    try (CardPool pool = new CardPool()) {
+      CardPool.Card dead = pool.add("dead", NO_CARD);
+
+      CompletableFuture<String> result = pool.submit(card -> {
+        if (card.getId().equals("dead")) {
+          throw new IOException("tag lost");
+        }
+
+        return card.getId();
+      });
+
+      awaitRemoval(pool, "dead");
+      assertFalse(result.isDone());
+      assertEquals(1, pool.getPendingJobs());
+      assertEquals(1, dead.getFailedJobs());
+
+      CardPool.Card live = pool.add("live", NO_CARD);
+      assertEquals("live", result.get(5, TimeUnit.SECONDS));
+      assertEquals(1, live.getCompletedJobs());
+      assertEquals(0, pool.getPendingJobs());
+    }
+  }
+
+  @Test
+  public void boundsPoolJobAttempts() throws Exception {
+    try (CardPool pool = new CardPool()) {
+      AtomicInteger attempts = new AtomicInteger();
+
+      CompletableFuture<Void> result = pool.submit(card -> {
+        attempts.incrementAndGet();
+        throw new IOException("tag lost");
+      });
+
+      for (int i = 0; i < CardPool.MAX_POOL_JOB_ATTEMPTS; i++) {
+        pool.add("card" + i, NO_CARD);
+        awaitRemoval(pool, "card" + i);
+      }
+
+      try {
+        result.get(5, TimeUnit.SECONDS);
+        fail("the job must fail after the last attempt");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+
+      assertEquals(CardPool.MAX_POOL_JOB_ATTEMPTS, attempts.get());
+      assertEquals(0, pool.getPendingJobs());
+    }
+  }
+
+  @Test
+  public void cardJobIsNotRequeued() throws Exception {
+    try (CardPool pool = new CardPool()) {
+      pool.add("dead", NO_CARD);
+
+      CompletableFuture<Void> failed = pool.submit("dead", card -> {
+        throw new IOException("tag lost");
+      });
+
+      try {
+        failed.get(5, TimeUnit.SECONDS);
+        fail("a job submitted to a card must not move to another card");
+      } catch (ExecutionException e) {
+        assertEquals("tag lost", e.getCause().getMessage());
+      }
+
+      awaitRemoval(pool, "dead");
+      assertEquals(0, pool.getPendingJobs());
+
+      try {
+        pool.submit("dead", card -> null).get(5, TimeUnit.SECONDS);
+        fail("the card is no longer in the pool");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+  }
+}
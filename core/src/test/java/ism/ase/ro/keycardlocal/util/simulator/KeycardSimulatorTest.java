@@ -0,0 +1,123 @@
+package ism.ase.ro.keycardlocal.util.simulator;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.Security;
+
+import ism.ase.ro.keycardlocal.util.applet.ApplicationInfo;
+import ism.ase.ro.keycardlocal.util.applet.ApplicationStatus;
+import ism.ase.ro.keycardlocal.util.applet.BIP32KeyPair;
+import ism.ase.ro.keycardlocal.util.applet.KeycardCommandSet;
+import ism.ase.ro.keycardlocal.util.applet.RecoverableSignature;
+import ism.ase.ro.keycardlocal.util.crypto.CryptoBackend;
+import ism.ase.ro.keycardlocal.util.io.WrongPINException;
+
+import static org.junit.Assert.*;
+
+public class KeycardSimulatorTest {
+  private static final String PIN = "000000";
+  private static final String PUK = "123456789012";
+  private static final String PAIRING_PASSWORD = "KeycardTest";
+
+  @BeforeClass
+  public static void addProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  private static byte[] hash(String message) {
+    return CryptoBackend.get().sha256(message.getBytes());
+  }
+
+  @Test
+  public void initPairOpenSecureChannelAndSign() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card);
+
+    ApplicationInfo info = new ApplicationInfo(cmdSet.select().checkOK().getData());
+    assertFalse(info.isInitializedCard());
+
+    cmdSet.init(PIN, PUK, PAIRING_PASSWORD).checkOK();
+    info = new ApplicationInfo(cmdSet.select().checkOK().getData());
+    assertTrue(info.isInitializedCard());
+    assertTrue(info.hasSecureChannelCapability());
+    assertFalse(info.hasMasterKey());
+
+    cmdSet.autoPair(PAIRING_PASSWORD);
+    assertNotNull(cmdSet.getPairing());
+    cmdSet.autoOpenSecureChannel();
+
+    ApplicationStatus status = new ApplicationStatus(cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION).checkOK().getData());
+    assertEquals(KeycardSimulator.DEFAULT_PIN_RETRIES, status.getPINRetryCount());
+    assertFalse(status.hasMasterKey());
+
+    // signing needs the PIN
+    byte[] hash = hash("thiscouldbeahashintheorysoitisok");
+    assertEquals(KeycardSimulator.SW_SECURITY_CONDITION_NOT_SATISFIED, cmdSet.sign(hash).getSw());
+
+    cmdSet.verifyPIN(PIN).checkAuthOK();
+    cmdSet.generateKey().checkOK();
+
+    byte[] publicKey = BIP32KeyPair.fromTLV(cmdSet.exportCurrentKey(true).checkOK().getData()).getPublicKey();
+    RecoverableSignature signature = new RecoverableSignature(hash, cmdSet.sign(hash).checkOK().getData());
+
+    assertArrayEquals(publicKey, signature.getPublicKey());
+    assertTrue(signature.getRecId() >= 0 && signature.getRecId() < 4);
+
+    // the public key recovered from another hash signed with the same key is the same
+    byte[] otherHash = hash("anotherhash");
+    RecoverableSignature other = new RecoverableSignature(otherHash, cmdSet.sign(otherHash).checkOK().getData());
+    assertArrayEquals(publicKey, other.getPublicKey());
+  }
+
+  @Test
+  public void wrongPIN() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    byte[] secret = new byte[32];
+    card.initialize(PIN, PUK, secret);
+
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card);
+    cmdSet.select().checkOK();
+    cmdSet.autoPair(secret);
+    cmdSet.autoOpenSecureChannel();
+
+    try {
+      cmdSet.verifyPIN("999999").checkAuthOK();
+      fail("a wrong PIN must be rejected");
+    } catch (WrongPINException e) {
+      assertEquals(KeycardSimulator.DEFAULT_PIN_RETRIES - 1, e.getRetryAttempts());
+    }
+
+    cmdSet.verifyPIN(PIN).checkAuthOK();
+  }
+
+  @Test
+  public void disconnectionLosesSession() throws Exception {
+    KeycardSimulator card = new KeycardSimulator();
+    byte[] secret = new byte[32];
+    card.initialize(PIN, PUK, secret);
+
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card);
+    cmdSet.select().checkOK();
+    cmdSet.autoPair(secret);
+    cmdSet.autoOpenSecureChannel();
+
+    card.setConnected(false);
+
+    try {
+      cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION);
+      fail("a disconnected card must not answer");
+    } catch (IOException e) {
+      // expected
+    }
+
+    card.setConnected(true);
+    cmdSet.select().checkOK();
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION).checkOK();
+  }
+}